@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates trees and content benchmarks are run on. Content is random but the same for every
+ * run, so results of different runs are comparable. Files of a tree have different content, so
+ * patches don't store them once as duplicates.
+ *
+ * @author Alexander Alexeev
+ */
+public final class BenchTrees {
+    private static final long SEED = 20130101L;
+    private static final long TIME = 1356998400000L; // 2013-01-01
+
+    /**
+     * Tree shapes: number of nested levels, subdirectories and files in every directory.
+     */
+    public enum Shape {
+        /** Single directory with many files. */
+        FLAT(0, 0, 2000),
+        /** Two levels of many small directories. */
+        WIDE(2, 40, 2),
+        /** Deeply nested directories with a few files. */
+        DEEP(7, 3, 1);
+
+        final int depth;
+        final int dirs;
+        final int files;
+
+        Shape(int depth, int dirs, int files) {
+            this.depth = depth;
+            this.dirs = dirs;
+            this.files = files;
+        }
+    }
+
+    private BenchTrees() {
+    }
+
+    /**
+     * Returns random content of the given size.
+     * @param size size of content.
+     * @return content.
+     */
+    public static byte[] content(int size) {
+        byte[] b = new byte[size];
+        new Random(SEED + size).nextBytes(b);
+        return b;
+    }
+
+    /**
+     * Creates temporary directory which is deleted on exit.
+     * @param prefix prefix of directory name.
+     * @return empty directory.
+     * @throws IOException
+     */
+    public static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Couldn't create directory: " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Creates tree of the given shape in the directory.
+     * @param root existing directory.
+     * @param shape shape of the tree.
+     * @param fileSize size of every file.
+     * @throws IOException
+     */
+    public static void createTree(File root, Shape shape, int fileSize) throws IOException {
+        createDir(root, shape, shape.depth, new Random(SEED), new byte[fileSize]);
+    }
+
+    /**
+     * Creates zip archive containing tree of the given shape.
+     * @param zip archive file.
+     * @param shape shape of the tree.
+     * @param fileSize size of every file.
+     * @throws IOException
+     */
+    public static void createZip(File zip, Shape shape, int fileSize) throws IOException {
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip))) {
+            zos.setLevel(0);
+            createEntries(zos, "", shape, shape.depth, new Random(SEED), new byte[fileSize]);
+        }
+    }
+
+    /**
+     * Deletes the file or directory with its content.
+     * @param file file to be deleted.
+     */
+    public static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    private static void createDir(File dir, Shape shape, int level, Random random, byte[] content)
+            throws IOException {
+        for (int i = 0; i < shape.files; i++) {
+            random.nextBytes(content);
+            File file = new File(dir, fileName(i));
+            try (OutputStream os = new FileOutputStream(file)) {
+                os.write(content);
+            }
+            file.setLastModified(TIME);
+        }
+        if (level > 0) {
+            for (int i = 0; i < shape.dirs; i++) {
+                File sub = new File(dir, "dir" + i);
+                sub.mkdir();
+                createDir(sub, shape, level - 1, random, content);
+                sub.setLastModified(TIME);
+            }
+        }
+    }
+
+    private static void createEntries(ZipOutputStream zos, String path, Shape shape, int level,
+            Random random, byte[] content) throws IOException {
+        for (int i = 0; i < shape.files; i++) {
+            random.nextBytes(content);
+            ZipEntry entry = new ZipEntry(path + fileName(i));
+            entry.setTime(TIME);
+            zos.putNextEntry(entry);
+            zos.write(content);
+            zos.closeEntry();
+        }
+        if (level > 0) {
+            for (int i = 0; i < shape.dirs; i++) {
+                String sub = path + "dir" + i + "/";
+                ZipEntry entry = new ZipEntry(sub);
+                entry.setTime(TIME);
+                zos.putNextEntry(entry);
+                zos.closeEntry();
+                createEntries(zos, sub, shape, level - 1, random, content);
+            }
+        }
+    }
+
+    /**
+     * Every third file is a text file, so patterns select part of the tree.
+     */
+    private static String fileName(int i) {
+        return "file" + i + (i % 3 == 0 ? ".txt" : ".bin");
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Comparing and copying of in-memory content, so results show costs of the loops rather than
+ * of the disk.
+ *
+ * @author Alexander Alexeev
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FileUtilsBenchmark {
+    @Param({"4096", "1048576", "16777216"})
+    public int size;
+
+    private byte[] content;
+    private byte[] same;
+    private byte[] differentAtEnd;
+
+    @Setup
+    public void setUp() {
+        content = BenchTrees.content(size);
+        same = content.clone();
+        differentAtEnd = content.clone();
+        differentAtEnd[size - 1] ^= 1;
+    }
+
+    @Benchmark
+    public boolean isEqualSame() throws IOException {
+        return FileUtils.isEqual(new ByteArrayInputStream(content), new ByteArrayInputStream(same));
+    }
+
+    @Benchmark
+    public boolean isEqualDifferentAtEnd() throws IOException {
+        return FileUtils.isEqual(new ByteArrayInputStream(content),
+                new ByteArrayInputStream(differentAtEnd));
+    }
+
+    @Benchmark
+    public void copy(final Blackhole bh) throws IOException {
+        FileUtils.copy(new ByteArrayInputStream(content), new OutputStream() {
+            @Override
+            public void write(int b) {
+                bh.consume(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                bh.consume(b);
+            }
+        });
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Hash calculators of {@link HashManager} over in-memory content.
+ *
+ * @author Alexander Alexeev
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HashBenchmark {
+    @Param({"CRC-32", "MD5", "SHA-1", "SHA-256"})
+    public String hashFunc;
+
+    @Param({"4096", "1048576", "16777216"})
+    public int size;
+
+    private HashCalculator calculator;
+    private byte[] content;
+
+    @Setup
+    public void setUp() {
+        calculator = HashManager.getHashManager().getCalculator(hashFunc);
+        content = BenchTrees.content(size);
+    }
+
+    @Benchmark
+    public byte[] calculate() throws IOException {
+        return calculator.calculate(new ByteArrayInputStream(content));
+    }
+
+    @Benchmark
+    public byte[] digest() {
+        HashCalculator.Digest digest = calculator.createDigest();
+        digest.update(content, 0, content.length);
+        return digest.digest();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Matching of file patterns and sifting of trees by {@link FileSieve}. Sieve is lazy, so the
+ * whole sifted tree is walked.
+ *
+ * @author Alexander Alexeev
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MatcherBenchmark {
+    @Param({"FLAT", "WIDE", "DEEP"})
+    public BenchTrees.Shape shape;
+
+    @Param({"**/*.txt", "dir1/**", "*.bin"})
+    public String pattern;
+
+    private File dir;
+    private MetaFile root;
+    private List<MetaFile> files = new ArrayList<>();
+    private FileMatcher include;
+    private FileMatcher composed;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchTrees.createTempDir("matcher");
+        BenchTrees.createTree(dir, shape, 0);
+        root = new FileSystemSerializer(dir.getPath()).read();
+        collect(root);
+        include = new FilePatternMatcher(pattern, true);
+        composed = new ComposedFileMatcher(Arrays.<FileMatcher>asList(include,
+                new FilePatternMatcher("**/file1*", false)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchTrees.delete(dir);
+    }
+
+    @Benchmark
+    public void accept(Blackhole bh) {
+        for (MetaFile f : files) {
+            bh.consume(include.accept(f));
+        }
+    }
+
+    @Benchmark
+    public void sift(Blackhole bh) {
+        walk(new FileSieve(include).sift(root), bh);
+    }
+
+    @Benchmark
+    public void siftComposed(Blackhole bh) {
+        walk(new FileSieve(composed).sift(root), bh);
+    }
+
+    private void collect(MetaFile file) {
+        files.add(file);
+        if (!file.isFile()) {
+            for (MetaFile f : file.getFiles().values()) {
+                collect(f);
+            }
+        }
+    }
+
+    private static void walk(MetaFile file, Blackhole bh) {
+        bh.consume(file.getName());
+        if (!file.isFile()) {
+            for (MetaFile f : file.getFiles().values()) {
+                walk(f, bh);
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Saving and loading of {@link SyncPatch} which copies the whole tree to an empty directory.
+ * Saving reads content of master files from disk, loading reads saved patch from memory.
+ *
+ * @author Alexander Alexeev
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PatchBenchmark {
+    @Param({"FLAT", "WIDE", "DEEP"})
+    public BenchTrees.Shape shape;
+
+    @Param({"256", "16384"})
+    public int fileSize;
+
+    @Param({"none", "lz"})
+    public String compression;
+
+    private File dir;
+    private SyncPatch patch;
+    private byte[] saved;
+
+    @Setup
+    public void setUp() throws IOException, SynchronizationException {
+        dir = BenchTrees.createTempDir("patch");
+        File first = new File(dir, "first");
+        File second = new File(dir, "second");
+        first.mkdir();
+        second.mkdir();
+        BenchTrees.createTree(first, shape, fileSize);
+        second.setLastModified(0);
+        patch = Synchronizer.sync(new FileSystemSerializer(first.getPath()).read(),
+                new FileSystemSerializer(second.getPath()).read());
+        saved = save();
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchTrees.delete(dir);
+    }
+
+    @Benchmark
+    public byte[] save() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SyncPatch.save(patch, bytes, compression);
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public SyncPatch load() throws IOException {
+        return SyncPatch.load(new ByteArrayInputStream(saved));
+    }
+}
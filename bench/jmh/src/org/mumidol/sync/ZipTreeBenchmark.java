@@ -0,0 +1,55 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Construction of {@link MetaFile} tree from zip archive entries by {@link ZipSerializer}.
+ * Archive is opened once, so every read constructs the tree from entries of the opened archive.
+ *
+ * @author Alexander Alexeev
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ZipTreeBenchmark {
+    @Param({"FLAT", "WIDE", "DEEP"})
+    public BenchTrees.Shape shape;
+
+    private File zip;
+    private ZipSerializer serializer;
+
+    @Setup
+    public void setUp() throws IOException {
+        zip = File.createTempFile("tree", ".zip");
+        BenchTrees.createZip(zip, shape, 16);
+        serializer = new ZipSerializer(zip.getPath());
+    }
+
+    @TearDown
+    public void tearDown() {
+        zip.delete();
+    }
+
+    @Benchmark
+    public MetaFile read() throws IOException {
+        return serializer.read();
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * End to end benchmark of {@link Sync} and {@link Patcher} on synthetic trees generated by
+ * {@link TreeGenerator}. Every run is made in its own JVM by {@link MacroRunner} on a fresh copy
+ * of the destination, results of runs of every scenario are aggregated and written as JSON.
+ * Results can be compared with the baseline written by the previous run of the benchmark.
+ * <p>
+ * Scenarios: <code>fs-fs</code>, <code>fs-zip</code>, <code>zip-fs</code> synchronize
+ * directories and zip archives, <code>patch-create</code> creates patch of changes,
+ * <code>patch-apply</code> applies it in a single pass.
+ * <p>
+ * Accepts following parameters:
+ *  -n - followed by number of files, 1000 by default
+ *  -d - followed by depth of directories, 3 by default
+ *  -f - followed by number of subdirectories of every directory, 4 by default
+ *  -s - followed by size of files or range of sizes, for example 4k-1m (default)
+ *  -c - followed by ratio of changed files, 0.1 by default
+ *  -m - followed by ratio of renamed files, 0.02 by default
+ *  -u - followed by ratio of files duplicating content of other files, 0.05 by default
+ *  -e - followed by seed of the generator
+ *  -R - followed by number of runs of every scenario, 3 by default
+ *  -S - followed by comma separated scenarios, all by default
+ *  -a - followed by arguments passed to Sync and Patcher, for example "-h SHA-1"
+ *  -j - followed by options of forked JVMs, for example "-Xmx256m"
+ *  -w - followed by work directory, trees are generated to temporary directory by default
+ *  -k - keeps generated trees
+ *  -o - followed by file results are written to
+ *  -b - followed by baseline results; the benchmark exits with status 2 if time or memory
+ *       of any scenario exceeds the baseline by more than tolerance
+ *  -t - followed by tolerance in percents, 10 by default
+ *
+ * @author Alexander Alexeev
+ */
+public class MacroBenchmark {
+    private static final String[] SCENARIOS = {"fs-fs", "fs-zip", "zip-fs", "patch-create", "patch-apply"};
+    private static final Pattern SCENARIO = Pattern.compile("\"([a-z-]+)\": \\{([^{}]*)\\}");
+    private static final Pattern VALUE = Pattern.compile("\"(\\w+)\": (-?[0-9.]+)");
+
+    private static TreeGenerator generator = new TreeGenerator();
+    private static int repeats = 3;
+    private static List<String> scenarios = Arrays.asList(SCENARIOS);
+    private static List<String> extraArgs = Collections.emptyList();
+    private static List<String> jvmArgs = Collections.emptyList();
+    private static File work;
+    private static boolean keep;
+    private static File output;
+    private static File baseline;
+    private static double tolerance = 10;
+
+    private MacroBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        parseArgs(args);
+
+        boolean temporary = work == null;
+        if (temporary) {
+            work = File.createTempFile("macro", "");
+            work.delete();
+        }
+        work.mkdirs();
+        File src = new File(work, "src");
+        File dst = new File(work, "dst");
+        File run = new File(work, "run");
+        try {
+            System.out.println("Generating trees in " + work);
+            TreeGenerator.delete(src);
+            TreeGenerator.delete(dst);
+            generator.generate(src, dst);
+            TreeGenerator.zip(src, new File(work, "src.zip"));
+            TreeGenerator.zip(dst, new File(work, "dst.zip"));
+            if (scenarios.contains("patch-apply")) {
+                fork(Patcher.class, args("-c", "-b", dst.getPath(), "-p", new File(work, "dst.patch").getPath(),
+                        src.getPath()));
+            }
+
+            Map<String, Map<String, Double>> results = new LinkedHashMap<>();
+            for (String scenario : scenarios) {
+                List<Map<String, Double>> runs = new ArrayList<>();
+                for (int i = 0; i < repeats; i++) {
+                    TreeGenerator.delete(run);
+                    run.mkdirs();
+                    runs.add(runScenario(scenario, run));
+                    if (i == 0) {
+                        verify(scenario, src, run);
+                    }
+                }
+                results.put(scenario, aggregate(runs));
+                System.out.println(format(scenario, results.get(scenario)));
+            }
+
+            String json = toJson(results);
+            if (output != null) {
+                try (Writer writer = new OutputStreamWriter(new FileOutputStream(output), "UTF-8")) {
+                    writer.write(json);
+                }
+            }
+            if ((baseline != null) && !compare(json, read(baseline))) {
+                System.exit(2);
+            }
+        } finally {
+            TreeGenerator.delete(run);
+            if (!keep) {
+                TreeGenerator.delete(src);
+                TreeGenerator.delete(dst);
+                new File(work, "src.zip").delete();
+                new File(work, "dst.zip").delete();
+                new File(work, "dst.patch").delete();
+                if (temporary) {
+                    work.delete();
+                }
+            }
+        }
+    }
+
+    private static Map<String, Double> runScenario(String scenario, File run) throws IOException {
+        String src = new File(work, "src").getPath();
+        File dst = new File(run, "dst");
+        switch (scenario) {
+            case "fs-fs":
+                TreeGenerator.copy(new File(work, "dst"), dst);
+                return fork(Sync.class, args("-c", src, dst.getPath()));
+            case "fs-zip":
+                TreeGenerator.copy(new File(work, "dst.zip"), new File(run, "dst.zip"));
+                return fork(Sync.class, args("-c", src, new File(run, "dst.zip").getPath()));
+            case "zip-fs":
+                TreeGenerator.copy(new File(work, "dst"), dst);
+                return fork(Sync.class, args("-c", new File(work, "src.zip").getPath(), dst.getPath()));
+            case "patch-create":
+                return fork(Patcher.class, args("-c", "-b", new File(work, "dst").getPath(),
+                        "-p", new File(run, "dst.patch").getPath(), src));
+            case "patch-apply":
+                TreeGenerator.copy(new File(work, "dst"), dst);
+                return fork(Patcher.class, args("-a", "-s", "-p", new File(work, "dst.patch").getPath(),
+                        dst.getPath()));
+            default:
+                throw new IllegalArgumentException("Unknown scenario: " + scenario);
+        }
+    }
+
+    /**
+     * Checks that destination of the scenario has the same files as source.
+     */
+    private static void verify(String scenario, File src, File run) throws IOException, SynchronizationException {
+        File dst;
+        if (new File(run, "dst").exists()) {
+            dst = new File(run, "dst");
+        } else if (new File(run, "dst.zip").exists()) {
+            dst = new File(run, "dst.zip");
+        } else {
+            return;
+        }
+        MetaFile expected = new FileSystemSerializer(src.getPath()).read();
+        MetaFile actual = dst.isFile() ? new ZipSerializer(dst.getPath()).read() :
+                new FileSystemSerializer(dst.getPath()).read();
+        if (Synchronizer.sync(expected, actual) != null) {
+            throw new IllegalStateException("Destination differs from source after " + scenario);
+        }
+    }
+
+    /**
+     * Arguments of the program preceded by extra arguments.
+     */
+    private static List<String> args(String... args) {
+        List<String> list = new ArrayList<>(extraArgs);
+        list.addAll(Arrays.asList(args));
+        return list;
+    }
+
+    private static Map<String, Double> fork(Class<?> program, List<String> args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(MacroRunner.class.getName());
+        command.add(program.getName());
+        command.addAll(args);
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String result = null;
+        StringBuilder log = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith(MacroRunner.RESULT)) {
+                    result = line.substring(MacroRunner.RESULT.length());
+                } else {
+                    log.append(line).append('\n');
+                }
+            }
+        }
+        try {
+            if ((process.waitFor() != 0) || (result == null)) {
+                throw new IOException("Run failed: " + command + "\n" + log);
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Run interrupted");
+        }
+        return parseValues(result);
+    }
+
+    private static Map<String, Double> aggregate(List<Map<String, Double>> runs) {
+        Map<String, Double> result = new LinkedHashMap<>();
+        double wall = median(runs, "wall_ms");
+        result.put("wall_ms_median", wall);
+        result.put("wall_ms_min", min(runs, "wall_ms"));
+        result.put("wall_ms_max", max(runs, "wall_ms"));
+        result.put("mb_per_s", generator.getSourceBytes() / (1024.0 * 1024) / (wall / 1000));
+        result.put("files_per_s", generator.files / (wall / 1000));
+        result.put("gc_count", median(runs, "gc_count"));
+        result.put("gc_ms", median(runs, "gc_ms"));
+        result.put("peak_rss_kb", max(runs, "peak_rss_kb"));
+        result.put("files_written", median(runs, "files_written"));
+        result.put("bytes_written", median(runs, "bytes_written"));
+        result.put("bytes_read", median(runs, "bytes_read"));
+        result.put("write_p50_us", median(runs, "write_p50_us"));
+        result.put("write_p99_us", median(runs, "write_p99_us"));
+        return result;
+    }
+
+    private static double median(List<Map<String, Double>> runs, String key) {
+        double[] values = new double[runs.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = runs.get(i).get(key);
+        }
+        Arrays.sort(values);
+        int n = values.length;
+        return n % 2 == 1 ? values[n / 2] : (values[n / 2 - 1] + values[n / 2]) / 2;
+    }
+
+    private static double min(List<Map<String, Double>> runs, String key) {
+        double min = Double.MAX_VALUE;
+        for (Map<String, Double> run : runs) {
+            min = Math.min(min, run.get(key));
+        }
+        return min;
+    }
+
+    private static double max(List<Map<String, Double>> runs, String key) {
+        double max = -Double.MAX_VALUE;
+        for (Map<String, Double> run : runs) {
+            max = Math.max(max, run.get(key));
+        }
+        return max;
+    }
+
+    private static String format(String scenario, Map<String, Double> r) {
+        return String.format(Locale.ROOT,
+                "%-13s %9.1f ms (%.1f-%.1f) %8.1f MB/s %9.1f files/s  gc %3.0f/%5.0f ms  rss %7.0f kB"
+                        + "  write p99 %6.0f us",
+                scenario, r.get("wall_ms_median"), r.get("wall_ms_min"), r.get("wall_ms_max"),
+                r.get("mb_per_s"), r.get("files_per_s"), r.get("gc_count"), r.get("gc_ms"),
+                r.get("peak_rss_kb"), r.get("write_p99_us"));
+    }
+
+    private static String toJson(Map<String, Map<String, Double>> results) {
+        StringBuilder sb = new StringBuilder("{\n  \"config\": ");
+        sb.append(String.format(Locale.ROOT,
+                "{\"files\": %d, \"depth\": %d, \"fanout\": %d, \"min_size\": %d, \"max_size\": %d, "
+                        + "\"change_ratio\": %.4f, \"rename_ratio\": %.4f, \"duplicate_ratio\": %.4f, "
+                        + "\"seed\": %d, \"repeats\": %d, \"source_bytes\": %d, \"args\": \"%s\", "
+                        + "\"java\": \"%s\", \"os\": \"%s\"}",
+                generator.files, generator.depth, generator.fanout, generator.minSize, generator.maxSize,
+                generator.changeRatio, generator.renameRatio, generator.duplicateRatio, generator.seed,
+                repeats, generator.getSourceBytes(), escape(join(extraArgs)),
+                escape(System.getProperty("java.version")), escape(System.getProperty("os.name"))));
+        sb.append(",\n  \"scenarios\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Map<String, Double>> e : results.entrySet()) {
+            sb.append(separator).append("    \"").append(e.getKey()).append("\": {");
+            String s = "";
+            for (Map.Entry<String, Double> v : e.getValue().entrySet()) {
+                sb.append(s).append('"').append(v.getKey()).append("\": ")
+                        .append(String.format(Locale.ROOT, "%.1f", v.getValue()));
+                s = ", ";
+            }
+            sb.append("}");
+            separator = ",\n";
+        }
+        sb.append("\n  }\n}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Prints changes against baseline.
+     * @return <code>false</code> if there are regressions beyond tolerance.
+     */
+    private static boolean compare(String current, String base) {
+        Map<String, Map<String, Double>> now = parseScenarios(current);
+        Map<String, Map<String, Double>> before = parseScenarios(base);
+        if (!getConfig(current).equals(getConfig(base))) {
+            System.out.println("Warning: baseline was measured with different configuration");
+        }
+        boolean passed = true;
+        System.out.println("Scenario         time      rss   (change against baseline)");
+        for (Map.Entry<String, Map<String, Double>> e : now.entrySet()) {
+            Map<String, Double> b = before.get(e.getKey());
+            if (b == null) {
+                System.out.println(String.format(Locale.ROOT, "%-13s  no baseline", e.getKey()));
+                continue;
+            }
+            double time = change(e.getValue(), b, "wall_ms_median");
+            double rss = change(e.getValue(), b, "peak_rss_kb");
+            boolean regressed = (time > tolerance) || (rss > tolerance);
+            passed &= !regressed;
+            System.out.println(String.format(Locale.ROOT, "%-13s %+7.1f%% %+7.1f%%%s", e.getKey(), time, rss,
+                    regressed ? "  REGRESSION" : ""));
+        }
+        return passed;
+    }
+
+    private static double change(Map<String, Double> now, Map<String, Double> before, String key) {
+        Double b = before.get(key);
+        return (b == null) || (b == 0) ? 0 : (now.get(key) - b) / b * 100;
+    }
+
+    private static String getConfig(String json) {
+        int i = json.indexOf("\"config\": ");
+        return i == -1 ? "" : json.substring(i, json.indexOf('}', i));
+    }
+
+    private static Map<String, Map<String, Double>> parseScenarios(String json) {
+        Map<String, Map<String, Double>> scenarios = new LinkedHashMap<>();
+        int i = json.indexOf("\"scenarios\"");
+        if (i != -1) {
+            Matcher m = SCENARIO.matcher(json.substring(i));
+            while (m.find()) {
+                scenarios.put(m.group(1), parseValues(m.group(2)));
+            }
+        }
+        return scenarios;
+    }
+
+    private static Map<String, Double> parseValues(String json) {
+        Map<String, Double> values = new LinkedHashMap<>();
+        Matcher m = VALUE.matcher(json);
+        while (m.find()) {
+            values.put(m.group(1), Double.valueOf(m.group(2)));
+        }
+        return values;
+    }
+
+    private static String read(File file) throws IOException {
+        try (InputStream is = new FileInputStream(file)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            FileUtils.copy(is, bytes);
+            return bytes.toString("UTF-8");
+        }
+    }
+
+    private static String join(List<String> list) {
+        StringBuilder sb = new StringBuilder();
+        for (String s : list) {
+            sb.append(sb.length() > 0 ? " " : "").append(s);
+        }
+        return sb.toString();
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static List<String> split(String s) {
+        return s.trim().isEmpty() ? Collections.<String>emptyList() : Arrays.asList(s.trim().split("\\s+"));
+    }
+
+    private static void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; ) {
+            switch (args[i]) {
+                case "-n":
+                    generator.files = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-d":
+                    generator.depth = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-f":
+                    generator.fanout = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-s":
+                    generator.setSizes(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-c":
+                    generator.changeRatio = Double.parseDouble(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-m":
+                    generator.renameRatio = Double.parseDouble(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-u":
+                    generator.duplicateRatio = Double.parseDouble(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-e":
+                    generator.seed = Long.parseLong(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-R":
+                    repeats = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-S":
+                    scenarios = split(args[i + 1].replace(',', ' '));
+                    for (String scenario : scenarios) {
+                        if (!Arrays.asList(SCENARIOS).contains(scenario)) {
+                            throw new IllegalArgumentException("Unknown scenario: " + scenario);
+                        }
+                    }
+                    i += 2;
+                    break;
+                case "-a":
+                    extraArgs = split(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-j":
+                    jvmArgs = split(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-w":
+                    work = new File(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-k":
+                    keep = true;
+                    i += 1;
+                    break;
+                case "-o":
+                    output = new File(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-b":
+                    baseline = new File(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-t":
+                    tolerance = Double.parseDouble(args[i + 1]);
+                    i += 2;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown parameter: " + args[i]);
+            }
+        }
+        if (repeats < 1) {
+            throw new IllegalArgumentException("Number of runs must be positive");
+        }
+        if (generator.changeRatio + generator.renameRatio > 1) {
+            throw new IllegalArgumentException("Sum of change and rename ratios must not exceed 1");
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Runs program in the forked JVM of {@link MacroBenchmark} and prints its measurements as single
+ * line of JSON prefixed by {@link #RESULT}. Every run gets its own JVM, so garbage collection and
+ * peak resident memory belong to the run only.
+ * <p>
+ * Accepts class of the program followed by its arguments.
+ *
+ * @author Alexander Alexeev
+ */
+class MacroRunner {
+    static final String RESULT = "MACRO-RESULT ";
+
+    private MacroRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Method main = Class.forName(args[0]).getMethod("main", String[].class);
+        String[] programArgs = Arrays.copyOfRange(args, 1, args.length);
+
+        long start = System.nanoTime();
+        try {
+            main.invoke(null, (Object) programArgs);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw (Exception) e.getCause();
+        }
+        long wall = System.nanoTime() - start;
+
+        long gcCount = 0;
+        long gcTime = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(gc.getCollectionCount(), 0);
+            gcTime += Math.max(gc.getCollectionTime(), 0);
+        }
+        Metrics metrics = Metrics.getMetrics();
+        System.out.println(RESULT + String.format(Locale.ROOT,
+                "{\"wall_ms\": %.1f, \"gc_count\": %d, \"gc_ms\": %d, \"peak_rss_kb\": %d, "
+                        + "\"files_written\": %d, \"bytes_written\": %d, \"bytes_read\": %d, "
+                        + "\"write_p50_us\": %d, \"write_p99_us\": %d}",
+                wall / 1e6, gcCount, gcTime, getPeakRss(),
+                metrics.get(Metrics.Counter.FILES_WRITTEN), metrics.get(Metrics.Counter.BYTES_WRITTEN),
+                metrics.get(Metrics.Counter.BYTES_READ), metrics.getWriteLatency().getPercentile(50),
+                metrics.getWriteLatency().getPercentile(99)));
+    }
+
+    /**
+     * Returns peak resident set size of the process in kilobytes.
+     * @return peak size or 0 if it isn't known, procfs is available on Linux only.
+     */
+    private static long getPeakRss() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // unknown
+        }
+        return 0;
+    }
+}
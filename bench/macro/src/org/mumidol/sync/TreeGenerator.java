@@ -0,0 +1,237 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates pair of synthetic trees: destination is the state before changes and source is the
+ * state after them. Destination files are older, so source is master of every difference.
+ * <ul>
+ * <li>changed files have the same size and different content;</li>
+ * <li>renamed files have new names in source and the same content, so moves are detected;</li>
+ * <li>duplicated files have content of another file, so patches store it once.</li>
+ * </ul>
+ * Trees are the same for the same parameters and seed.
+ *
+ * @author Alexander Alexeev
+ */
+class TreeGenerator {
+    // DOS time of zip entries has precision of two seconds
+    private static final long OLD_TIME = 1356998400000L; // 2013-01-01
+    private static final long NEW_TIME = OLD_TIME + 24 * 3600 * 1000L;
+
+    int files = 1000;
+    int depth = 3;
+    int fanout = 4;
+    long minSize = 4 * 1024;
+    long maxSize = 1024 * 1024;
+    double changeRatio = 0.1;
+    double renameRatio = 0.02;
+    double duplicateRatio = 0.05;
+    long seed = 1;
+
+    private long sourceBytes;
+
+    /**
+     * Sets sizes of files: single size or range like <code>4k-1m</code>. Sizes within range
+     * are distributed log-uniformly, so small files prevail like in real trees.
+     * @param sizes sizes with optional suffix k, m or g.
+     */
+    void setSizes(String sizes) {
+        int i = sizes.indexOf('-');
+        minSize = parseSize(i == -1 ? sizes : sizes.substring(0, i));
+        maxSize = i == -1 ? minSize : parseSize(sizes.substring(i + 1));
+        if (maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid range of sizes: " + sizes);
+        }
+    }
+
+    /**
+     * Returns total size of source files.
+     * @return size of source tree.
+     */
+    long getSourceBytes() {
+        return sourceBytes;
+    }
+
+    /**
+     * Generates trees.
+     * @param source source directory to be created.
+     * @param destination destination directory to be created.
+     * @throws IOException
+     */
+    void generate(File source, File destination) throws IOException {
+        Random random = new Random(seed);
+        List<String> dirs = new ArrayList<>();
+        addDirs("", depth, dirs);
+
+        long[] sizes = new long[files];
+        long[] seeds = new long[files];
+        for (int i = 0; i < files; i++) {
+            sizes[i] = nextSize(random);
+            seeds[i] = random.nextLong();
+            if ((i > 0) && (random.nextDouble() < duplicateRatio)) {
+                int original = random.nextInt(i);
+                sizes[i] = sizes[original];
+                seeds[i] = seeds[original];
+            }
+        }
+
+        sourceBytes = 0;
+        for (String dir : dirs) {
+            new File(source, dir).mkdirs();
+            new File(destination, dir).mkdirs();
+        }
+        byte[] buf = new byte[64 * 1024];
+        for (int i = 0; i < files; i++) {
+            String dir = dirs.get(random.nextInt(dirs.size()));
+            String name = SyncPatch.getPath(dir, "file" + i + ".dat");
+            double r = random.nextDouble();
+            if (r < changeRatio) {
+                write(new File(destination, name), sizes[i], seeds[i], OLD_TIME, buf);
+                write(new File(source, name), sizes[i], ~seeds[i], NEW_TIME, buf);
+            } else if (r < changeRatio + renameRatio) {
+                write(new File(destination, name), sizes[i], seeds[i], OLD_TIME, buf);
+                write(new File(source, SyncPatch.getPath(dir, "renamed" + i + ".dat")), sizes[i],
+                        seeds[i], OLD_TIME, buf);
+            } else {
+                write(new File(destination, name), sizes[i], seeds[i], OLD_TIME, buf);
+                write(new File(source, name), sizes[i], seeds[i], OLD_TIME, buf);
+            }
+            sourceBytes += sizes[i];
+        }
+        for (int i = dirs.size() - 1; i >= 0; i--) { // children first, writing changes times of parents
+            new File(source, dirs.get(i)).setLastModified(NEW_TIME);
+            new File(destination, dirs.get(i)).setLastModified(OLD_TIME);
+        }
+    }
+
+    /**
+     * Creates zip archive with content of the directory keeping times of files.
+     * @param dir directory.
+     * @param zip archive to be created.
+     * @throws IOException
+     */
+    static void zip(File dir, File zip) throws IOException {
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip))) {
+            zos.setLevel(0);
+            addEntries(zos, dir, "");
+        }
+        zip.setLastModified(dir.lastModified());
+    }
+
+    /**
+     * Copies directory with times of files.
+     * @param from directory.
+     * @param to directory to be created.
+     * @throws IOException
+     */
+    static void copy(File from, File to) throws IOException {
+        if (from.isDirectory()) {
+            to.mkdirs();
+            for (File f : from.listFiles()) {
+                copy(f, new File(to, f.getName()));
+            }
+        } else {
+            try (InputStream is = new FileInputStream(from); OutputStream os = new FileOutputStream(to)) {
+                FileUtils.copy(is, os);
+            }
+        }
+        to.setLastModified(from.lastModified());
+    }
+
+    /**
+     * Deletes file or directory with its content.
+     * @param file file.
+     */
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    private void addDirs(String path, int level, List<String> dirs) {
+        dirs.add(path);
+        if (level > 0) {
+            for (int i = 0; i < fanout; i++) {
+                addDirs(SyncPatch.getPath(path, "dir" + i), level - 1, dirs);
+            }
+        }
+    }
+
+    private long nextSize(Random random) {
+        if (minSize == maxSize) {
+            return minSize;
+        }
+        double min = Math.log(Math.max(minSize, 1));
+        double max = Math.log(maxSize);
+        return (long) Math.exp(min + random.nextDouble() * (max - min));
+    }
+
+    private static void write(File file, long size, long seed, long time, byte[] buf) throws IOException {
+        Random random = new Random(seed);
+        try (OutputStream os = new FileOutputStream(file)) {
+            for (long left = size; left > 0; ) {
+                random.nextBytes(buf);
+                int n = (int) Math.min(left, buf.length);
+                os.write(buf, 0, n);
+                left -= n;
+            }
+        }
+        file.setLastModified(time);
+    }
+
+    private static void addEntries(ZipOutputStream zos, File dir, String path) throws IOException {
+        for (File f : dir.listFiles()) {
+            String name = SyncPatch.getPath(path, f.getName());
+            ZipEntry entry = new ZipEntry(f.isDirectory() ? name + "/" : name);
+            entry.setTime(f.lastModified());
+            zos.putNextEntry(entry);
+            if (f.isFile()) {
+                try (InputStream is = new FileInputStream(f)) {
+                    FileUtils.copy(is, zos);
+                }
+            }
+            zos.closeEntry();
+            if (f.isDirectory()) {
+                addEntries(zos, f, name);
+            }
+        }
+    }
+
+    private static long parseSize(String size) {
+        size = size.trim().toLowerCase();
+        long multiplier = 1;
+        if (size.endsWith("k")) {
+            multiplier = 1024;
+        } else if (size.endsWith("m")) {
+            multiplier = 1024 * 1024;
+        } else if (size.endsWith("g")) {
+            multiplier = 1024 * 1024 * 1024;
+        }
+        if (multiplier > 1) {
+            size = size.substring(0, size.length() - 1);
+        }
+        return (long) (Double.parseDouble(size) * multiplier);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Pool of I/O buffers shared by copying, comparison and hashing. Every thread keeps buffers
+ * it released, so buffers are reused by the next file without allocation and without
+ * synchronization. Buffer is taken by <code>acquire</code> and is returned by
+ * <code>release</code> when it isn't used anymore:
+ * <pre>
+ * byte[] buf = Buffers.getBuffers().acquire();
+ * try {
+ *     ...
+ * } finally {
+ *     Buffers.getBuffers().release(buf);
+ * }
+ * </pre>
+ * Buffer which isn't released is collected as garbage as usual. Heap buffers are used by streams,
+ * direct buffers are used by channels, so channels don't copy content to temporary direct
+ * buffers.
+ *
+ * @author Alexander Alexeev
+ */
+public class Buffers {
+    /** default size of buffer */
+    public static final int DEFAULT_SIZE = 256 * 1024;
+    /** number of buffers of each kind kept by a thread */
+    private static final int CACHED = 4;
+
+    private static final Buffers buffers = new Buffers();
+
+    private volatile int size = DEFAULT_SIZE;
+    private ThreadLocal<Pool> pools = new ThreadLocal<Pool>() {
+        @Override
+        protected Pool initialValue() {
+            return new Pool();
+        }
+    };
+
+    private Buffers() {
+    }
+
+    /**
+     * Returns buffers of the process.
+     * @return buffers.
+     */
+    public static Buffers getBuffers() {
+        return buffers;
+    }
+
+    /**
+     * Returns size of buffers.
+     * @return size in bytes.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Sets size of buffers used by copying, comparison and hashing. Pooled buffers of the
+     * previous size are replaced by buffers of the new size as they are released.
+     * @param size size in bytes.
+     */
+    public void setSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + size);
+        }
+        this.size = size;
+    }
+
+    /**
+     * Takes heap buffer of the configured size.
+     * @return buffer.
+     */
+    public byte[] acquire() {
+        return acquire(size);
+    }
+
+    /**
+     * Takes heap buffer of the size.
+     * @param size length of the buffer.
+     * @return buffer.
+     */
+    public byte[] acquire(int size) {
+        for (Iterator<byte[]> i = pools.get().arrays.iterator(); i.hasNext(); ) {
+            byte[] buf = i.next();
+            if (buf.length == size) {
+                i.remove();
+                return buf;
+            }
+        }
+        return new byte[size];
+    }
+
+    /**
+     * Returns heap buffer to the pool.
+     * @param buf buffer or <code>null</code>.
+     */
+    public void release(byte[] buf) {
+        if (buf != null) {
+            ArrayDeque<byte[]> arrays = pools.get().arrays;
+            if (arrays.size() == CACHED) {
+                arrays.removeLast();
+            }
+            arrays.addFirst(buf);
+        }
+    }
+
+    /**
+     * Takes cleared direct buffer of the configured size.
+     * @return buffer.
+     */
+    public ByteBuffer acquireDirect() {
+        return acquireDirect(size);
+    }
+
+    /**
+     * Takes cleared direct buffer of the size.
+     * @param size capacity of the buffer.
+     * @return buffer.
+     */
+    public ByteBuffer acquireDirect(int size) {
+        for (Iterator<ByteBuffer> i = pools.get().directs.iterator(); i.hasNext(); ) {
+            ByteBuffer buf = i.next();
+            if (buf.capacity() == size) {
+                i.remove();
+                buf.clear();
+                return buf;
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Returns direct buffer to the pool.
+     * @param buf buffer or <code>null</code>.
+     */
+    public void release(ByteBuffer buf) {
+        if ((buf != null) && buf.isDirect()) {
+            ArrayDeque<ByteBuffer> directs = pools.get().directs;
+            if (directs.size() == CACHED) {
+                directs.removeLast();
+            }
+            directs.addFirst(buf);
+        }
+    }
+
+    /**
+     * Buffers released by the thread, the most recently released first.
+     */
+    private static class Pool {
+        private final ArrayDeque<byte[]> arrays = new ArrayDeque<>(CACHED);
+        private final ArrayDeque<ByteBuffer> directs = new ArrayDeque<>(CACHED);
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of saved patches. Data are split to blocks, every block is compressed
+ * independently and is stored as is if it can't be compressed. Content of files which are
+ * compressed already (archives, images, media) isn't compressed again.
+ * <p>
+ * Block is saved as raw length, method (stored or compressed), saved length and data. Stream
+ * is finished by block of zero length.
+ *
+ * @author Alexander Alexeev
+ */
+enum Compression {
+    /** data aren't compressed */
+    NONE,
+    /** blocks are compressed by {@link Deflater} with the best compression */
+    DEFLATE,
+    /** blocks are compressed by fast {@link LZCodec} */
+    LZ;
+
+    private static final int BLOCK_SIZE = 256 * 1024;
+    private static final int STORED = 0;
+    private static final int COMPRESSED = 1;
+
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList(
+            "zip", "jar", "war", "ear", "apk", "gz", "tgz", "bz2", "xz", "lz4", "lzma", "zst", "7z",
+            "rar", "cab", "docx", "xlsx", "pptx", "odt", "ods", "png", "jpg", "jpeg", "gif", "webp",
+            "mp3", "mp4", "m4a", "ogg", "flac", "avi", "mkv", "mov", "webm"));
+
+    /**
+     * Returns compression by its name.
+     * @param name name of compression, case insensitive.
+     * @return compression.
+     * @throws IllegalArgumentException if compression is unknown.
+     */
+    static Compression forName(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns compression by its identifier saved in the patch header.
+     * @param id identifier.
+     * @return compression.
+     * @throws IOException if compression is unknown.
+     */
+    static Compression forId(int id) throws IOException {
+        if ((id < 0) || (id >= values().length)) {
+            throw new IOException("Unknown patch compression: " + id);
+        }
+        return values()[id];
+    }
+
+    /**
+     * Returns <code>true</code> if content of the file is compressed already.
+     * @param file file to be checked.
+     * @return <code>true</code> if file is an archive, an image or a media file.
+     */
+    static boolean isCompressed(MetaFile file) {
+        String name = file.getName();
+        int i = name.lastIndexOf('.');
+        return (i != -1) && COMPRESSED_TYPES.contains(name.substring(i + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Creates stream compressing data written to it.
+     * @param os underlying output stream.
+     * @return compressing output stream.
+     */
+    CompressedOutputStream newOutputStream(OutputStream os) {
+        return new CompressedOutputStream(os, this);
+    }
+
+    /**
+     * Creates stream decompressing data read from it.
+     * @param is underlying input stream.
+     * @return decompressing input stream.
+     */
+    InputStream newInputStream(InputStream is) {
+        return this == NONE ? is : new CompressedInputStream(is, this);
+    }
+
+    /**
+     * Output stream compressing blocks of data.
+     */
+    static class CompressedOutputStream extends FilterOutputStream {
+        private Compression compression;
+        private DataOutputStream dos;
+        private byte[] block;
+        private byte[] buf;
+        private int count;
+        private boolean stored;
+        private Deflater deflater;
+        private LZCodec lz;
+
+        private CompressedOutputStream(OutputStream os, Compression compression) {
+            super(os);
+            this.compression = compression;
+            if (compression != NONE) {
+                dos = new DataOutputStream(os);
+                block = Buffers.getBuffers().acquire(BLOCK_SIZE);
+                buf = Buffers.getBuffers().acquire(LZCodec.maxCompressedLength(BLOCK_SIZE));
+                if (compression == DEFLATE) {
+                    deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+                } else {
+                    lz = new LZCodec();
+                }
+            }
+        }
+
+        /**
+         * Switches compression of the following data off, so data which are compressed already
+         * are passed through.
+         * @param stored <code>true</code> if data are to be stored as is.
+         * @throws IOException
+         */
+        void setStored(boolean stored) throws IOException {
+            if ((compression != NONE) && (this.stored != stored)) {
+                flushBlock();
+                this.stored = stored;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (compression == NONE) {
+                out.write(b);
+                return;
+            }
+            if (count == block.length) {
+                flushBlock();
+            }
+            block[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (compression == NONE) {
+                out.write(b, off, len);
+                return;
+            }
+            while (len > 0) {
+                if (count == block.length) {
+                    flushBlock();
+                }
+                int n = Math.min(len, block.length - count);
+                System.arraycopy(b, off, block, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Writes remaining data and end of the stream, but doesn't close underlying stream.
+         * @throws IOException
+         */
+        void finish() throws IOException {
+            if ((compression != NONE) && (block != null)) {
+                try {
+                    flushBlock();
+                    dos.writeInt(0);
+                } finally {
+                    if (deflater != null) {
+                        deflater.end();
+                    }
+                    Buffers.getBuffers().release(block);
+                    Buffers.getBuffers().release(buf);
+                    block = null;
+                    buf = null;
+                }
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finish();
+            } finally {
+                out.close();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            int len = stored ? -1 : compress();
+            dos.writeInt(count);
+            if ((len > 0) && (len < count)) {
+                dos.writeByte(COMPRESSED);
+                dos.writeInt(len);
+                dos.write(buf, 0, len);
+            } else {
+                dos.writeByte(STORED);
+                dos.writeInt(count);
+                dos.write(block, 0, count);
+            }
+            count = 0;
+        }
+
+        private int compress() {
+            if (compression == LZ) {
+                return lz.compress(block, count, buf);
+            }
+            deflater.reset();
+            deflater.setInput(block, 0, count);
+            deflater.finish();
+            int len = 0;
+            while (!deflater.finished() && (len < count)) {
+                len += deflater.deflate(buf, len, count - len);
+            }
+            return deflater.finished() ? len : -1;
+        }
+    }
+
+    /**
+     * Input stream decompressing blocks of data.
+     */
+    private static class CompressedInputStream extends InputStream {
+        private Compression compression;
+        private DataInputStream dis;
+        private byte[] block;
+        private byte[] buf;
+        private int pos;
+        private int count;
+        private boolean finished;
+        private Inflater inflater;
+
+        CompressedInputStream(InputStream is, Compression compression) {
+            this.dis = new DataInputStream(is);
+            this.compression = compression;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if ((pos == count) && !readBlock()) {
+                return -1;
+            }
+            return block[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if ((pos == count) && !readBlock()) {
+                return -1;
+            }
+            int n = Math.min(len, count - pos);
+            System.arraycopy(block, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return count - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+            Buffers.getBuffers().release(block);
+            Buffers.getBuffers().release(buf);
+            block = null;
+            buf = null;
+            dis.close();
+        }
+
+        private boolean readBlock() throws IOException {
+            if (finished) {
+                return false;
+            }
+            int rawLength = dis.readInt();
+            if (rawLength == 0) {
+                finished = true;
+                return false;
+            }
+            int method = dis.readUnsignedByte();
+            int length = dis.readInt();
+            if ((rawLength < 0) || (rawLength > BLOCK_SIZE) || (length < 0) || (length > rawLength)) {
+                throw new IOException("Corrupted compressed block");
+            }
+            if (block == null) {
+                block = Buffers.getBuffers().acquire(BLOCK_SIZE);
+            }
+            if (method == STORED) {
+                dis.readFully(block, 0, rawLength);
+            } else if (method == COMPRESSED) {
+                if (buf == null) {
+                    buf = Buffers.getBuffers().acquire(BLOCK_SIZE);
+                }
+                dis.readFully(buf, 0, length);
+                decompress(length, rawLength);
+            } else {
+                throw new IOException("Unknown block method: " + method);
+            }
+            pos = 0;
+            count = rawLength;
+            return true;
+        }
+
+        private void decompress(int length, int rawLength) throws IOException {
+            if (compression == LZ) {
+                LZCodec.decompress(buf, length, block, rawLength);
+                return;
+            }
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            }
+            inflater.reset();
+            inflater.setInput(buf, 0, length);
+            try {
+                int n = 0;
+                while ((n < rawLength) && !inflater.finished()) {
+                    int i = inflater.inflate(block, n, rawLength - n);
+                    if ((i == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += i;
+                }
+                if (n != rawLength) {
+                    throw new IOException("Corrupted compressed block");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted compressed block", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Serializer to read/write from/to content addressed store. File content is split into chunks
+ * by content defined chunking and every chunk is stored once as a blob keyed by its SHA-1 hash sum.
+ * Directories are stored as small manifests which are content addressed too, so unchanged
+ * directories and identical files are stored and written only once.
+ * <p>
+ * Store layout:
+ * <pre>
+ *  HEAD                - reference to the root directory manifest
+ *  objects/xx/yyyy...  - chunks and directory manifests
+ * </pre>
+ * Objects are never deleted, old snapshots stay in the store.
+ *
+ * @see Serializer
+ * @author Alexander Alexeev
+ */
+public class ContentStoreSerializer implements Serializer {
+    private static final String HASH_FUNC = "SHA-1";
+    private static final int MIN_CHUNK = 16 * 1024;
+    private static final int MAX_CHUNK = 256 * 1024;
+    private static final long CHUNK_MASK = (1 << 16) - 1; // 64K average chunk size
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5eed);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private File root;
+    private File objects;
+    private StoreMetaFile rootFile;
+    private Map<String, String> moves = Collections.emptyMap();
+    private Throttle throttle = new Throttle();
+
+    public ContentStoreSerializer(String root) {
+        this.root = new File(root);
+        this.objects = new File(this.root, "objects");
+    }
+
+    /**
+     * Sets throttle limiting reading and writing of store objects.
+     * @param throttle throttle.
+     */
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    @Override
+    public MetaFile read() throws IOException {
+        File head = new File(root, "HEAD");
+        if (head.exists()) {
+            Metrics.Timer timer = Metrics.getMetrics().start(Metrics.Phase.SCAN, root.getPath());
+            try (DataInputStream dis = new DataInputStream(new FileInputStream(head))) {
+                rootFile = new StoreMetaFile(null, readEntry(dis));
+            } finally {
+                timer.stop();
+            }
+        } else {
+            rootFile = null;
+        }
+        return rootFile;
+    }
+
+    @Override
+    public void patch(SyncPatch sync) throws IOException {
+        if (sync == null) {
+            return;
+        }
+        Metrics.Timer timer = Metrics.getMetrics().start(Metrics.Phase.APPLY, root.getPath());
+        try {
+            store(sync);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private void store(SyncPatch sync) throws IOException {
+        if (rootFile == null) {
+            read();
+        }
+        moves = sync.getMoves();
+        Entry entry;
+        try {
+            entry = apply(rootFile != null ? rootFile.entry : null, sync, "");
+        } finally {
+            moves = Collections.emptyMap();
+        }
+
+        File head = new File(root, "HEAD");
+        if (entry == null) {
+            Files.deleteIfExists(head.toPath());
+        } else {
+            objects.mkdirs();
+            File temp = File.createTempFile("HEAD", ".tmp", root);
+            try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(temp))) {
+                writeEntry(entry, dos);
+            }
+            Files.move(temp.toPath(), head.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        rootFile = entry != null ? new StoreMetaFile(null, entry) : null;
+    }
+
+    private Entry apply(Entry current, SyncPatch sync, String path) throws IOException {
+        if (sync.getMaster() == null) {
+            return null;
+        } else if (sync.getDependentName() == null) {
+            if ((current != null) && (current.isFile == sync.getMaster().isFile())) {
+                return current;
+            }
+            return store(sync.getMaster(), path);
+        } else if (sync.getMaster().isFile()) {
+            return store(sync.getMaster(), path);
+        } else {
+            if (isOwnFile(sync.getMaster()) && sync.isMasterCopy()) {
+                return ((StoreMetaFile) sync.getMaster()).entry;
+            }
+            Map<String, Entry> files = new TreeMap<>();
+            if ((current != null) && !current.isFile) {
+                files.putAll(loadTree(current.treeId));
+            }
+            for (SyncPatch i : sync.getSyncs()) {
+                String name = i.getMaster() != null ? i.getMaster().getName() : i.getDependentName();
+                Entry e = apply(files.get(name), i, SyncPatch.getPath(path, name));
+                if (e != null) {
+                    files.put(name, e);
+                } else {
+                    files.remove(name);
+                }
+            }
+            return new Entry(sync.getMaster().getName(), sync.getMaster().getTime(), storeTree(files));
+        }
+    }
+
+    private Entry store(MetaFile master, String path) throws IOException {
+        if (isOwnFile(master)) {
+            return ((StoreMetaFile) master).entry;
+        }
+        Entry origin = moves.containsKey(path) ? find(moves.get(path)) : null;
+        if ((origin != null) && origin.isFile) { // moved file refers to the same chunks
+            return new Entry(master.getName(), master.getTime(), origin.size, origin.hash, origin.chunks);
+        }
+        if (master.isFile()) {
+            HashCalculator.Digest digest = HashManager.getHashManager().getCalculator(HASH_FUNC).createDigest();
+            List<byte[]> chunks = new ArrayList<>();
+            long size = 0;
+            try (InputStream is = new BufferedInputStream(master.getInputStream(), MAX_CHUNK)) {
+                byte[] buf = Buffers.getBuffers().acquire(MAX_CHUNK);
+                try {
+                    int len;
+                    while ((len = readChunk(is, buf)) > 0) {
+                        digest.update(buf, 0, len);
+                        chunks.add(storeObject(buf, len));
+                        size += len;
+                    }
+                } finally {
+                    Buffers.getBuffers().release(buf);
+                }
+            }
+            byte[] hash = digest.digest();
+            FileUtils.teeHash(master, HASH_FUNC, hash, false);
+            return new Entry(master.getName(), master.getTime(), size, hash,
+                    chunks.toArray(new byte[chunks.size()][]));
+        } else {
+            Map<String, Entry> files = new TreeMap<>();
+            for (MetaFile f : master.getFiles().values()) {
+                files.put(f.getName(), store(f, SyncPatch.getPath(path, f.getName())));
+            }
+            return new Entry(master.getName(), master.getTime(), storeTree(files));
+        }
+    }
+
+    /**
+     * Finds entry of the tree being patched.
+     */
+    private Entry find(String path) throws IOException {
+        Entry entry = rootFile != null ? rootFile.entry : null;
+        for (String name : path.split("/")) {
+            if ((entry == null) || entry.isFile) {
+                return null;
+            }
+            entry = loadTree(entry.treeId).get(name);
+        }
+        return entry;
+    }
+
+    /**
+     * Reads next chunk. Chunk boundary is found with gear rolling hash, so boundaries depend on
+     * content only and insertions shift only neighbouring chunks.
+     */
+    private static int readChunk(InputStream is, byte[] buf) throws IOException {
+        int len = 0;
+        long hash = 0;
+        int b;
+        while ((len < MAX_CHUNK) && ((b = is.read()) != -1)) {
+            buf[len++] = (byte) b;
+            hash = (hash << 1) + GEAR[b];
+            if ((len >= MIN_CHUNK) && ((hash & CHUNK_MASK) == 0)) {
+                break;
+            }
+        }
+        return len;
+    }
+
+    private byte[] storeTree(Map<String, Entry> files) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(files.size());
+        for (Entry e : files.values()) {
+            writeEntry(e, dos);
+        }
+        dos.flush();
+        return storeObject(bos.toByteArray(), bos.size());
+    }
+
+    private Map<String, Entry> loadTree(byte[] id) throws IOException {
+        try (DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(throttle.read(new FileInputStream(getObject(id)))))) {
+            int count = dis.readInt();
+            Map<String, Entry> files = new TreeMap<>();
+            for (int i = 0; i < count; i++) {
+                Entry e = readEntry(dis);
+                files.put(e.name, e);
+            }
+            return files;
+        }
+    }
+
+    private byte[] storeObject(byte[] buf, int len) throws IOException {
+        HashCalculator.Digest digest = HashManager.getHashManager().getCalculator(HASH_FUNC).createDigest();
+        digest.update(buf, 0, len);
+        byte[] id = digest.digest();
+        File file = getObject(id);
+        if (!file.exists()) {
+            file.getParentFile().mkdirs();
+            File temp = File.createTempFile("object", ".tmp", file.getParentFile());
+            try (OutputStream os = throttle.write(new FileOutputStream(temp))) {
+                os.write(buf, 0, len);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return id;
+    }
+
+    private File getObject(byte[] id) {
+        String hex = toHex(id);
+        return new File(new File(objects, hex.substring(0, 2)), hex.substring(2));
+    }
+
+    private boolean isOwnFile(MetaFile file) {
+        return (file instanceof StoreMetaFile) && (((StoreMetaFile) file).getSerializer() == this);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void writeEntry(Entry e, DataOutputStream dos) throws IOException {
+        dos.writeUTF(e.name);
+        dos.writeBoolean(e.isFile);
+        dos.writeLong(e.time);
+        if (e.isFile) {
+            dos.writeLong(e.size);
+            dos.write(e.hash);
+            dos.writeInt(e.chunks.length);
+            for (byte[] c : e.chunks) {
+                dos.write(c);
+            }
+        } else {
+            dos.write(e.treeId);
+        }
+    }
+
+    private static Entry readEntry(DataInputStream dis) throws IOException {
+        String name = dis.readUTF();
+        boolean isFile = dis.readBoolean();
+        long time = dis.readLong();
+        if (isFile) {
+            long size = dis.readLong();
+            byte[] hash = readId(dis);
+            byte[][] chunks = new byte[dis.readInt()][];
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = readId(dis);
+            }
+            return new Entry(name, time, size, hash, chunks);
+        } else {
+            return new Entry(name, time, readId(dis));
+        }
+    }
+
+    private static byte[] readId(DataInputStream dis) throws IOException {
+        byte[] id = new byte[20];
+        dis.readFully(id);
+        return id;
+    }
+
+    private static class Entry {
+        private String name;
+        private boolean isFile;
+        private long time;
+        private long size;
+        private byte[] hash;
+        private byte[][] chunks;
+        private byte[] treeId;
+
+        Entry(String name, long time, long size, byte[] hash, byte[][] chunks) {
+            this.name = name;
+            this.isFile = true;
+            this.time = time;
+            this.size = size;
+            this.hash = hash;
+            this.chunks = chunks;
+        }
+
+        Entry(String name, long time, byte[] treeId) {
+            this.name = name;
+            this.isFile = false;
+            this.time = time;
+            this.treeId = treeId;
+        }
+    }
+
+    class StoreMetaFile implements MetaFile {
+        private StoreMetaFile parent;
+        private Entry entry;
+        private Map<String, StoreMetaFile> files;
+
+        StoreMetaFile(StoreMetaFile parent, Entry entry) {
+            this.parent = parent;
+            this.entry = entry;
+        }
+
+        @Override
+        public MetaFile getParent() {
+            return parent;
+        }
+
+        @Override
+        public String getName() {
+            return parent == null ? root.getName() : entry.name;
+        }
+
+        @Override
+        public boolean isFile() {
+            return entry.isFile;
+        }
+
+        @Override
+        public Map<String, StoreMetaFile> getFiles() {
+            if (!entry.isFile && (files == null)) {
+                Map<String, StoreMetaFile> map = new HashMap<>();
+                try {
+                    for (Entry e : loadTree(entry.treeId).values()) {
+                        map.put(e.name, new StoreMetaFile(this, e));
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedStoreException(e);
+                }
+                files = Collections.unmodifiableMap(map);
+            }
+            return files;
+        }
+
+        @Override
+        public byte[] getHash(String hashFunc) {
+            if (entry.isFile && HASH_FUNC.equals(HashManager.getHashManager().getCanonicalName(hashFunc))) {
+                return Arrays.copyOf(entry.hash, entry.hash.length);
+            }
+            return null;
+        }
+
+        @Override
+        public long getSize() {
+            return entry.size;
+        }
+
+        @Override
+        public long getTime() {
+            return entry.time;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (!entry.isFile) {
+                return null;
+            }
+            return new ChunkInputStream(entry.chunks);
+        }
+
+        ContentStoreSerializer getSerializer() {
+            return ContentStoreSerializer.this;
+        }
+    }
+
+    /**
+     * Reads content of the file chunk by chunk, chunk object is opened when the previous one is
+     * read, so failure to open it is reported as {@link IOException} by the read.
+     */
+    private class ChunkInputStream extends InputStream {
+        private byte[][] chunks;
+        private int next;
+        private InputStream current;
+
+        ChunkInputStream(byte[][] chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (current == null) {
+                    if (next >= chunks.length) {
+                        return -1;
+                    }
+                    current = throttle.read(new FileInputStream(getObject(chunks[next++])));
+                }
+                int i = current.read(b, off, len);
+                if (i != -1) {
+                    return i;
+                }
+                current.close();
+                current = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            next = chunks.length;
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * Signals that store tree can't be read where {@link IOException} can't be thrown, that is
+     * by {@link MetaFile#getFiles()}. Callers walking trees rethrow the cause.
+     */
+    static class UncheckedStoreException extends RuntimeException {
+        UncheckedStoreException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
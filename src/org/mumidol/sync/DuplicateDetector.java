@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * Finds files with the same content within a patch, so content can be saved once. Only files
+ * which size is the same as size of another file are hashed.
+ *
+ * @author Alexander Alexeev
+ */
+class DuplicateDetector {
+    private static final String HASH_FUNC = "SHA-1";
+
+    private DuplicateDetector() {
+    }
+
+    /**
+     * Finds files which content is the same as content of a file saved earlier. Files are
+     * visited in the order they are saved by {@link SyncPatch#save(SyncPatch, java.io.OutputStream)}.
+     *
+     * @param patch patch to be saved.
+     * @return map from path of duplicate file to path of the first file with the same content.
+     * @throws IOException
+     */
+    static Map<String, String> detect(SyncPatch patch) throws IOException {
+        Map<Long, List<Candidate>> sizes = new LinkedHashMap<>();
+        collect(patch, "", patch.getMoves(), sizes);
+
+        Map<String, String> duplicates = new HashMap<>();
+        for (List<Candidate> candidates : sizes.values()) {
+            if (candidates.size() < 2) {
+                continue;
+            }
+            Map<BigInteger, String> firsts = new HashMap<>();
+            for (Candidate c : candidates) {
+                BigInteger hash = new BigInteger(1, getHash(c.file));
+                String first = firsts.get(hash);
+                if (first == null) {
+                    firsts.put(hash, c.path);
+                } else {
+                    duplicates.put(c.path, first);
+                }
+            }
+        }
+        return duplicates;
+    }
+
+    private static void collect(SyncPatch sync, String path, Map<String, String> moves,
+            Map<Long, List<Candidate>> sizes) {
+        if (sync.getMaster() != null) {
+            if (sync.getDependentName() == null) {
+                collectFile(sync.getMaster(), path, moves, sizes);
+            } else if (sync.getMaster().isFile()) {
+                collectFile(sync.getMaster(), path, moves, sizes);
+            }
+        }
+        if (sync.getSyncs() != null) {
+            for (SyncPatch s : sync.getSyncs()) {
+                collect(s, SyncPatch.getPath(path, s.getMaster() != null ?
+                        s.getMaster().getName() : s.getDependentName()), moves, sizes);
+            }
+        }
+    }
+
+    private static void collectFile(MetaFile file, String path, Map<String, String> moves,
+            Map<Long, List<Candidate>> sizes) {
+        if (file.isFile()) {
+            if ((file.getSize() > 0) && !moves.containsKey(path) && !FileUtils.isLink(file)) {
+                List<Candidate> candidates = sizes.get(file.getSize());
+                if (candidates == null) {
+                    candidates = new ArrayList<>();
+                    sizes.put(file.getSize(), candidates);
+                }
+                candidates.add(new Candidate(path, file));
+            }
+        } else {
+            for (MetaFile f : file.getFiles().values()) {
+                collectFile(f, SyncPatch.getPath(path, f.getName()), moves, sizes);
+            }
+        }
+    }
+
+    private static byte[] getHash(MetaFile file) throws IOException {
+        byte[] hash = file.getHash(HASH_FUNC);
+        if (hash == null) {
+            try (InputStream is = file.getInputStream()) {
+                hash = HashManager.getHashManager().getCalculator(HASH_FUNC).calculate(is);
+            }
+            if (file instanceof HashCache.Cacheable) {
+                ((HashCache.Cacheable) file).cacheHash(HASH_FUNC, hash);
+            }
+        }
+        return hash;
+    }
+
+    private static class Candidate {
+        private String path;
+        private MetaFile file;
+
+        Candidate(String path, MetaFile file) {
+            this.path = path;
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Copies one source to many destinations reading the source once. Source tree is read once,
+ * destinations are read and compared with the source by separate threads, then patches are
+ * applied to all destinations at the same time. Content of a file needed by several destinations
+ * is read from the source by the first destination and spooled, other destinations read the
+ * spooled copy; spooled copy is deleted as soon as all destinations have read it or finished
+ * without reading it, for example because they linked the file or failed. Content needed by one
+ * destination is read from the source directly.
+ * <p>
+ * Files are compared by hash sums read once as well if hash function is set, otherwise every
+ * destination compares content of files with the source. Any destinations supported by
+ * {@link SyncEngine#open(String)}, for example directories and zip archives, can be mixed.
+ * Changes are copied one way like by <code>Sync -c</code>.
+ *
+ * @author Alexander Alexeev
+ */
+public class FanOut {
+    /** content of smaller files is spooled in memory */
+    private static final int MEMORY_SPOOL = 64 * 1024;
+    /** destination patched by the thread */
+    private static final ThreadLocal<Serializer> reader = new ThreadLocal<>();
+
+    private final SyncEngine engine;
+    private final String source;
+    private final List<String> destinations;
+    private File spoolDir;
+    private PrintStream log = System.err;
+
+    /**
+     * Creates fan-out.
+     * @param engine engine which configuration is used.
+     * @param source source path, see {@link SyncEngine#open(String)}.
+     * @param destinations destination paths.
+     */
+    public FanOut(SyncEngine engine, String source, List<String> destinations) {
+        if (destinations.isEmpty()) {
+            throw new IllegalArgumentException("Destination must be provided");
+        }
+        this.engine = engine;
+        this.source = source;
+        this.destinations = new ArrayList<>(destinations);
+    }
+
+    /**
+     * Sets directory content read by several destinations is spooled to.
+     * @param spoolDir directory or <code>null</code> for the temporary directory.
+     */
+    public void setSpoolDirectory(File spoolDir) {
+        this.spoolDir = spoolDir;
+    }
+
+    /**
+     * Sets stream failures of destinations are reported to.
+     * @param log stream for messages, standard error stream by default.
+     */
+    public void setLog(PrintStream log) {
+        this.log = log;
+    }
+
+    /**
+     * Copies source to all destinations. Failure of one destination doesn't stop others,
+     * failures are reported to the log.
+     * @return changes applied to destinations in order of destinations, <code>null</code> for
+     * the destination which was the same as the source or failed.
+     * @throws IOException if source can't be read or some destinations failed.
+     * @throws SynchronizationException if source can't be read.
+     */
+    public List<SyncPatch> run() throws IOException, SynchronizationException {
+        Metrics previous = Metrics.bind(engine.getMetrics()); // threads of destinations inherit it
+        try {
+            return copy();
+        } catch (ContentStoreSerializer.UncheckedStoreException e) {
+            throw e.getCause();
+        } finally {
+            Metrics.bind(previous);
+        }
+    }
+
+    private List<SyncPatch> copy() throws IOException, SynchronizationException {
+        Serializer src = engine.open(source);
+        final List<Serializer> dsts = new ArrayList<>(destinations.size());
+        File spool = Files.createTempDirectory(spoolDir != null ? spoolDir.toPath() :
+                new File(System.getProperty("java.io.tmpdir")).toPath(), "sync-spool").toFile();
+        ExecutorService executor = Executors.newFixedThreadPool(destinations.size());
+        try {
+            final SharedMetaFile first = new SharedMetaFile(null, src.read(), spool);
+            for (String destination : destinations) {
+                Serializer dst = engine.open(destination);
+                engine.setLinks(dst);
+                dsts.add(dst);
+            }
+
+            List<Future<SyncPatch>> compared = new ArrayList<>(dsts.size());
+            for (final Serializer dst : dsts) {
+                compared.add(executor.submit(new Callable<SyncPatch>() {
+                    @Override
+                    public SyncPatch call() throws Exception {
+                        return engine.compare(first, dst.read());
+                    }
+                }));
+            }
+            List<SyncPatch> patches = new ArrayList<>(dsts.size());
+            int failed = get(compared, patches); // failed destinations aren't patched
+
+            List<Future<SyncPatch>> applied = new ArrayList<>(dsts.size());
+            for (int i = 0; i < dsts.size(); i++) {
+                final Serializer dst = dsts.get(i);
+                final SyncPatch patch = patches.get(i);
+                final List<SharedMetaFile> read = new ArrayList<>();
+                if (patch != null) {
+                    countReaders(patch, "", patch.getMoves(), dst, read);
+                }
+                applied.add(executor.submit(new Callable<SyncPatch>() {
+                    @Override
+                    public SyncPatch call() throws Exception {
+                        reader.set(dst);
+                        try {
+                            if (patch != null) {
+                                dst.patch(patch);
+                            }
+                            return patch;
+                        } catch (ContentStoreSerializer.UncheckedStoreException e) {
+                            throw e.getCause();
+                        } finally {
+                            reader.remove();
+                            for (SharedMetaFile file : read) { // files which weren't read
+                                file.release(dst);
+                            }
+                        }
+                    }
+                }));
+            }
+            List<SyncPatch> results = new ArrayList<>(dsts.size());
+            failed += get(applied, results);
+            if (failed > 0) {
+                throw new IOException(failed + " of " + dsts.size() + " destinations failed");
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+            close(src);
+            for (Serializer dst : dsts) {
+                close(dst);
+            }
+            for (File f : spool.listFiles()) {
+                f.delete();
+            }
+            spool.delete();
+        }
+    }
+
+    /**
+     * Waits for tasks of all destinations, result of failed task is <code>null</code>.
+     * @return number of failed tasks.
+     */
+    private int get(List<Future<SyncPatch>> futures, List<SyncPatch> results) throws IOException {
+        int failed = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                failed++;
+                results.add(null);
+                log.println("Destination " + destinations.get(i) + " failed: " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Copying is interrupted", e);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Adds destination to readers of every source file it may read.
+     */
+    private static void countReaders(SyncPatch sync, String path, Map<String, String> moves,
+            Serializer dst, List<SharedMetaFile> read) {
+        if (sync.getMaster() == null) {
+            // deleted
+        } else if ((sync.getDependentName() == null) || sync.getMaster().isFile()) {
+            countReaders(sync.getMaster(), path, moves, dst, read);
+        } else if (sync.getSyncs() != null) {
+            for (SyncPatch s : sync.getSyncs()) {
+                String name = s.getMaster() != null ? s.getMaster().getName() : s.getDependentName();
+                countReaders(s, SyncPatch.getPath(path, name), moves, dst, read);
+            }
+        }
+    }
+
+    private static void countReaders(MetaFile file, String path, Map<String, String> moves,
+            Serializer dst, List<SharedMetaFile> read) {
+        if (file.isFile()) {
+            if (!moves.containsKey(path)) {
+                MetaFile shared = file instanceof FileSieve.SieveMetaFile ?
+                        ((FileSieve.SieveMetaFile) file).original : file;
+                if (shared instanceof SharedMetaFile) {
+                    ((SharedMetaFile) shared).addReader(dst);
+                    read.add((SharedMetaFile) shared);
+                }
+            }
+        } else {
+            for (MetaFile f : file.getFiles().values()) {
+                countReaders(f, SyncPatch.getPath(path, f.getName()), moves, dst, read);
+            }
+        }
+    }
+
+    private static void close(Serializer serializer) throws IOException {
+        if (serializer instanceof Closeable) {
+            ((Closeable) serializer).close();
+        }
+    }
+
+    /**
+     * Source file which content is spooled for destinations. Destination is removed from readers
+     * when it opens the file or when it is patched, content isn't kept when there are no readers
+     * left. Stream opened by a thread which doesn't patch a destination doesn't remove a reader.
+     */
+    static class SharedMetaFile implements MetaFile, HashCache.Cacheable {
+        final MetaFile original;
+        private final SharedMetaFile parent;
+        private final File spoolDir;
+        private final Map<String, SharedMetaFile> files;
+        private final Set<Serializer> readers = new HashSet<>();
+        private int open;
+        private byte[] content;
+        private File spool;
+
+        SharedMetaFile(SharedMetaFile parent, MetaFile original, File spoolDir) {
+            this.parent = parent;
+            this.original = original;
+            this.spoolDir = spoolDir;
+            if (original.isFile()) {
+                this.files = null;
+            } else {
+                Map<String, SharedMetaFile> map = new HashMap<>();
+                for (MetaFile f : original.getFiles().values()) {
+                    map.put(f.getName(), new SharedMetaFile(this, f, spoolDir));
+                }
+                this.files = Collections.unmodifiableMap(map);
+            }
+        }
+
+        @Override
+        public MetaFile getParent() {
+            return parent;
+        }
+
+        @Override
+        public String getName() {
+            return original.getName();
+        }
+
+        @Override
+        public boolean isFile() {
+            return original.isFile();
+        }
+
+        @Override
+        public Map<String, SharedMetaFile> getFiles() {
+            return files;
+        }
+
+        /**
+         * Hash sum is calculated by the first destination, others wait for it.
+         */
+        @Override
+        public synchronized byte[] getHash(String hashFunc) {
+            return original.getHash(hashFunc);
+        }
+
+        @Override
+        public long getSize() {
+            return original.getSize();
+        }
+
+        @Override
+        public long getTime() {
+            return original.getTime();
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            Serializer dst = reader.get();
+            if (dst != null) {
+                readers.remove(dst);
+            }
+            if ((content == null) && (spool == null)) {
+                if (readers.isEmpty()) { // the only reader
+                    return original.getInputStream();
+                }
+                if (original.getSize() <= MEMORY_SPOOL) {
+                    ByteArrayOutputStream os = new ByteArrayOutputStream((int) original.getSize());
+                    try (InputStream is = original.getInputStream()) {
+                        FileUtils.copy(is, os);
+                    }
+                    content = os.toByteArray();
+                } else {
+                    File file = File.createTempFile("spool", null, spoolDir);
+                    try (InputStream is = original.getInputStream();
+                         OutputStream os = new FileOutputStream(file)) {
+                        FileUtils.copy(is, os);
+                    } catch (IOException e) {
+                        file.delete();
+                        throw e;
+                    }
+                    spool = file;
+                }
+            }
+            if (content != null) {
+                InputStream is = new ByteArrayInputStream(content);
+                if (readers.isEmpty()) {
+                    content = null;
+                }
+                return is;
+            }
+            open++;
+            return new FilterInputStream(new FileInputStream(spool)) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    if (!closed) {
+                        closed = true;
+                        release();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void cacheHash(String hashFunc, byte[] hash) {
+            if (original instanceof HashCache.Cacheable) {
+                ((HashCache.Cacheable) original).cacheHash(hashFunc, hash);
+            }
+        }
+
+        synchronized void addReader(Serializer dst) {
+            readers.add(dst);
+        }
+
+        /**
+         * Removes the destination from readers when it is patched, it may not have read the file.
+         */
+        synchronized void release(Serializer dst) {
+            if (readers.remove(dst) && readers.isEmpty()) {
+                content = null;
+                if ((spool != null) && (open == 0)) {
+                    spool.delete();
+                    spool = null;
+                }
+            }
+        }
+
+        /**
+         * Deletes spooled copy when all destinations have read it.
+         */
+        private synchronized void release() {
+            open--;
+            if (readers.isEmpty() && (open == 0)) {
+                spool.delete();
+                spool = null;
+            }
+        }
+    }
+}
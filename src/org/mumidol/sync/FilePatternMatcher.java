@@ -55,5 +55,13 @@ public class FilePatternMatcher extends PathBasedFileMatcher {
         }
         return false;
     }
-    
+
+    /**
+     * Checks whether path matches the pattern.
+     * @param path path separated by / beginning with root /, directory path ends with /.
+     * @return <code>true</code> if path matches.
+     */
+    boolean matches(String path) {
+        return pattern.matcher(path).matches();
+    }
 }
@@ -38,7 +38,7 @@ class FileSieve {
         return new SieveMetaFile(file);
     }
 
-    class SieveMetaFile implements MetaFile {
+    class SieveMetaFile implements MetaFile, HashCache.Cacheable {
         SieveMetaFile parent;
         MetaFile original;
         Map<String, SieveMetaFile> files;
@@ -102,5 +102,12 @@ class FileSieve {
             return original.getInputStream();
         }
 
+        @Override
+        public void cacheHash(String hashFunc, byte[] hash) {
+            if (original instanceof HashCache.Cacheable) {
+                ((HashCache.Cacheable) original).cacheHash(hashFunc, hash);
+            }
+        }
+
     }
 }
@@ -8,59 +8,277 @@
 package org.mumidol.sync;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.zip.CRC32;
 
 
 /**
  * Serializer to read/write from/to underlying file system.
+ * <p>
+ * Symbolic links are followed by default. Link pointing to its own ancestor directory isn't
+ * followed, it is read as a link. Links can be preserved or skipped instead, see
+ * {@link #setSymlinks(Symlinks)}. Written links aren't followed: link which is replaced or
+ * deleted is removed itself, files it points to are kept.
  * @see Serializer
  * @author Alexander Alexeev
  */
 public class FileSystemSerializer implements Serializer {
+    private static final long IN_PLACE_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Handling of symbolic links read by serializer.
+     */
+    public enum Symlinks {
+        /** link is read as a link, see {@link LinkMetaFile} */
+        PRESERVE,
+        /** link is ignored */
+        SKIP,
+        /** link is read as the file or directory it points to */
+        FOLLOW
+    }
+
     private File root;
+    private String hashFunc;
+    private boolean verify;
+    private HashCache hashCache = new HashCache();
+    private Set<File> moved = new HashSet<>();
+    private File linkReference;
+    private boolean linkNewFiles;
+    private boolean updateInPlace;
+    private int blockSize = 64 * 1024;
+    private Journal journal;
+    private Throttle throttle = new Throttle();
+    private Symlinks symlinks = Symlinks.FOLLOW;
 
     public FileSystemSerializer(String root) {
         this.root = new File(root);
     }
 
+    /**
+     * Sets hash function to be calculated while files are written. Calculated hash sums are
+     * put to the hash cache and are returned by {@link MetaFile#getHash(String)} until files
+     * are changed.
+     * @param hashFunc hash function or <code>null</code> to disable calculation.
+     */
+    public void setHashFunction(String hashFunc) {
+        this.hashFunc = hashFunc;
+    }
+
+    /**
+     * Sets whether hash sum of written file is to be checked against the master one.
+     * @param verify <code>true</code> to check hash sums.
+     */
+    public void setVerification(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Sets hash cache to be used by this serializer.
+     * @param hashCache hash cache.
+     */
+    public void setHashCache(HashCache hashCache) {
+        this.hashCache = hashCache;
+    }
+
+    /**
+     * Sets checkpoint journal. Written files are recorded in the journal, files recorded by
+     * interrupted run are skipped if they weren't changed since. Directories added by interrupted
+     * run are completed rather than skipped.
+     * @param journal journal or <code>null</code>.
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Sets throttle limiting reading and writing of files.
+     * @param throttle throttle.
+     */
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Sets how symbolic links are read. Root is always followed.
+     * @param symlinks handling of links, links are followed by default.
+     */
+    public void setSymlinks(Symlinks symlinks) {
+        this.symlinks = symlinks;
+    }
+
+    /**
+     * Sets reference tree for hard linking. Files to be written which are unchanged relative to
+     * the reference tree (the same relative path, size and last modification time) are created
+     * as hard links to the reference files instead of copies. Useful for snapshots where the
+     * previous snapshot is the reference.
+     * @param reference root of the reference tree or <code>null</code> to disable linking.
+     */
+    public void setLinkReference(String reference) {
+        this.linkReference = reference != null ? new File(reference) : null;
+    }
+
+    /**
+     * Sets whether files are to be created as hard links to master files located in the file system.
+     * Master files and written files share content, so master files must not be modified in place.
+     * @param linkNewFiles <code>true</code> to link files.
+     */
+    public void setLinkNewFiles(boolean linkNewFiles) {
+        this.linkNewFiles = linkNewFiles;
+    }
+
+    /**
+     * Sets whether large changed files are to be updated in place. Existing file is compared with
+     * the master block by block and only differing blocks are rewritten, then file is truncated or
+     * extended to the master size. Not used together with hard linking.
+     * @param updateInPlace <code>true</code> to update files in place.
+     */
+    public void setUpdateInPlace(boolean updateInPlace) {
+        this.updateInPlace = updateInPlace;
+    }
+
+    /**
+     * Sets size of blocks compared during in place update.
+     * @param blockSize block size in bytes.
+     * @see #setUpdateInPlace(boolean)
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Puts hash sums known by the tree to the hash cache. Tree describes this storage at some
+     * moment (for example it is a manifest), so hash sums are valid for files which size and last
+     * modification time weren't changed since.
+     * @param tree tree with hash sums.
+     * @param hashFunc hash function.
+     */
+    void cacheHashes(MetaFile tree, String hashFunc) {
+        cacheHashes(tree, root, hashFunc);
+    }
+
+    private void cacheHashes(MetaFile file, File path, String hashFunc) {
+        if (file.isFile()) {
+            byte[] hash = file.getHash(hashFunc);
+            if (hash != null) {
+                hashCache.put(path.getAbsolutePath(), hashFunc, file.getSize(), file.getTime(), hash);
+            }
+        } else {
+            for (MetaFile f : file.getFiles().values()) {
+                cacheHashes(f, new File(path, f.getName()), hashFunc);
+            }
+        }
+    }
+
     @Override
     public void patch(SyncPatch sync) throws IOException {
-        recursWrite(sync, root);
+        if (sync == null) {
+            return;
+        }
+        Metrics.Timer timer = Metrics.getMetrics().start(Metrics.Phase.APPLY, root.getPath());
+        moved.clear();
+        try {
+            move(sync);
+            recursWrite(sync, root);
+        } finally {
+            moved.clear();
+            timer.stop();
+        }
     }
 
     @Override
     public MetaFile read() throws IOException {
         if (root.exists()) {
-            return readMetaFile(null, root);
+            Metrics.Timer timer = Metrics.getMetrics().start(Metrics.Phase.SCAN, root.getPath());
+            try {
+                return readMetaFile(null, root);
+            } finally {
+                timer.stop();
+            }
         } else {
             return null;
         }
     }
 
+    /**
+     * Reads the file or directory again and replaces it in the tree read before, so the tree
+     * follows changes without reading the whole directory. If parent directory of the path isn't
+     * in the tree, the nearest ancestor missing in the tree is read instead.
+     * @param tree tree returned by {@link #read()}.
+     * @param path path relative to the root separated by /, empty path denotes the root.
+     * @return refreshed tree, it is the same tree unless the root is refreshed.
+     * @throws IOException
+     */
+    MetaFile refresh(MetaFile tree, String path) throws IOException {
+        if (path.isEmpty() || !(tree instanceof FSMetaFile) || tree.isFile()) {
+            return read();
+        }
+        FSMetaFile parent = (FSMetaFile) tree;
+        String[] names = path.split("/");
+        int i = 0;
+        while (i < names.length - 1) {
+            FSMetaFile child = parent.entries.get(names[i]);
+            if ((child == null) || child.isFile()) {
+                break;
+            }
+            parent = child;
+            i++;
+        }
+        File file = new File(parent.path, names[i]);
+        Metrics.Timer timer = Metrics.getMetrics().start(Metrics.Phase.SCAN, file.getPath());
+        try {
+            FSMetaFile child = exists(file) ? readMetaFile(parent, file) : null;
+            if (child != null) {
+                parent.entries.put(names[i], child);
+            } else {
+                parent.entries.remove(names[i]);
+            }
+            parent.time = new File(parent.path).lastModified(); // entries were added or removed
+        } finally {
+            timer.stop();
+        }
+        return tree;
+    }
+
     private void recursWrite(SyncPatch sync, File path) throws IOException {
         if (sync == null) {
             return;
         }
         if (sync.getMaster() == null) {
-            if (path.exists()) {
+            if (exists(path)) {
                 recursDelete(path);
             }
         } else if (sync.getDependentName() == null) {
-            if (path.exists() &&
-                    (path.isFile() && !sync.getMaster().isFile() ||
-                    !path.isFile() && sync.getMaster().isFile())) { // delete file with conflicted name
+            // delete file with conflicted name, link is deleted as a file
+            if (exists(path) && (isDirectory(path) == sync.getMaster().isFile())) {
                 recursDelete(path);
             }
-            if (!path.exists()) {
+            // existing path is overwritten only if it was created by interrupted run
+            boolean started = (journal != null) && journal.isStarted(path);
+            if (!exists(path) || moved.contains(path) || started) {
+                if (journal != null) {
+                    journal.started(path);
+                }
                 recursCopy(sync.getMaster(), path);
             }
         // file
         } else if (sync.getMaster().isFile()) {
             if (!isOwnFile(sync.getMaster())) {
-                copy(sync.getMaster().getInputStream(), path, sync.getMaster().getTime());
+                copy(sync.getMaster(), path);
             }
         // directory
         } else {
@@ -80,18 +298,195 @@ public class FileSystemSerializer implements Serializer {
         return ((file instanceof FSMetaFile) && (((FSMetaFile) file).getSerializer() == this));
     }
 
-    private static void copy(InputStream is, File file, long time) throws IOException {
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            FileUtils.copy(is, fos);
+    private void copy(MetaFile master, File file) throws IOException {
+        String target = FileUtils.getLinkTarget(master);
+        if (target != null) {
+            long start = System.nanoTime();
+            FileUtils.createLink(file, target, master.getTime());
+            Metrics.getMetrics().fileWritten(0, start);
+            return;
+        }
+        if ((journal != null) && journal.isWritten(file, master.getSize(), master.getTime())) {
+            return; // written by interrupted run
+        }
+        long start = System.nanoTime();
+        byte[] hash = write(master, file);
+        Metrics.getMetrics().fileWritten(master.getSize(), start);
+        if (journal != null) {
+            journal.written(file, master.getSize(), master.getTime(), hashFunc, hash);
+        }
+    }
+
+    /**
+     * Writes content of the master to the file.
+     * @return hash sum of written content or <code>null</code> if it isn't calculated.
+     */
+    private byte[] write(MetaFile master, File file) throws IOException {
+        // links and files linked with other trees are replaced rather than rewritten
+        FileUtils.detach(file);
+        if ((linkReference != null) || linkNewFiles) {
+            Files.deleteIfExists(file.toPath()); // link can't replace existing file
+            if (link(master, file)) {
+                return null;
+            }
+        }
+        HashCalculator.Digest digest = null;
+        if ((hashFunc != null) && (HashManager.getHashManager().getCalculator(hashFunc) != null)) {
+            digest = HashManager.getHashManager().getCalculator(hashFunc).createDigest();
+        }
+        if (updateInPlace && file.isFile() && (file.length() >= IN_PLACE_THRESHOLD)) {
+            update(master, file, digest);
+        } else {
+            try (InputStream is = master.getInputStream();
+                 OutputStream os = throttle.write(new FileOutputStream(file))) {
+                FileUtils.copy(is, os, digest);
+            }
+        }
+        file.setLastModified(master.getTime());
+        if (digest != null) {
+            byte[] hash = digest.digest();
+            FileUtils.teeHash(master, hashFunc, hash, verify);
+            hashCache.put(file.getAbsolutePath(), hashFunc, file.length(), file.lastModified(), hash);
+            return hash;
+        }
+        return null;
+    }
+
+    /**
+     * Rewrites only blocks of the file which differ from the master. Blocks of the file are read
+     * and written through pooled direct buffer.
+     */
+    private void update(MetaFile master, File file, HashCalculator.Digest digest) throws IOException {
+        byte[] buf = Buffers.getBuffers().acquire(blockSize);
+        ByteBuffer block = Buffers.getBuffers().acquireDirect(blockSize);
+        throttle.acquireWriteFile();
+        try (InputStream is = master.getInputStream();
+             FileChannel channel = FileChannel.open(file.toPath(),
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long pos = 0;
+            int len;
+            while ((len = FileUtils.readFully(is, buf)) > 0) {
+                if (digest != null) {
+                    digest.update(buf, 0, len);
+                }
+                throttle.acquireRead(len);
+                block.clear();
+                block.limit(len);
+                while (block.hasRemaining() && (channel.read(block, pos + block.position()) != -1)) {
+                    // reads whole block
+                }
+                block.flip();
+                Metrics.getMetrics().add(Metrics.Counter.BYTES_COMPARED, len);
+                if (!block.equals(ByteBuffer.wrap(buf, 0, len))) {
+                    throttle.acquireWrite(len);
+                    block.clear();
+                    block.put(buf, 0, len);
+                    block.flip();
+                    while (block.hasRemaining()) {
+                        channel.write(block, pos + block.position());
+                    }
+                }
+                pos += len;
+            }
+            channel.truncate(pos);
         } finally {
-            is.close();
+            Buffers.getBuffers().release(block);
+            Buffers.getBuffers().release(buf);
         }
-        file.setLastModified(time);
     }
 
-    private static void recursCopy(MetaFile master, File path) throws IOException {
-        if (master.isFile()) {
-            copy(master.getInputStream(), path, master.getTime());
+    /**
+     * Creates hard link to the reference file or to the master file.
+     * @return <code>true</code> if link is created, <code>false</code> if file is to be copied.
+     */
+    private boolean link(MetaFile master, File file) throws IOException {
+        File existing = null;
+        if (linkReference != null) {
+            File ref = new File(linkReference, root.toPath().relativize(file.toPath()).toString());
+            if (ref.isFile() && (ref.length() == master.getSize()) &&
+                    (ref.lastModified() == master.getTime())) {
+                byte[] refHash = hashCache.get(ref.getAbsolutePath(), hashFunc, ref.length(), ref.lastModified());
+                byte[] hash = refHash != null ? master.getHash(hashFunc) : null;
+                if ((hash == null) || Arrays.equals(hash, refHash)) {
+                    existing = ref;
+                }
+            }
+        }
+        if ((existing == null) && linkNewFiles) {
+            existing = getLocalFile(master);
+        }
+        if (existing != null) {
+            try {
+                Files.createLink(file.toPath(), existing.toPath());
+                return true;
+            } catch (IOException | UnsupportedOperationException e) {
+                // different file systems or links aren't supported, file is to be copied
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns file system file of the master file.
+     * @return file or <code>null</code> if master isn't located in the file system.
+     */
+    private static File getLocalFile(MetaFile master) {
+        if (master instanceof FileSieve.SieveMetaFile) {
+            return getLocalFile(((FileSieve.SieveMetaFile) master).original);
+        } else if (master instanceof FanOut.SharedMetaFile) {
+            return getLocalFile(((FanOut.SharedMetaFile) master).original);
+        } else if (master instanceof FSMetaFile) {
+            return new File(((FSMetaFile) master).path);
+        }
+        return null;
+    }
+
+    /**
+     * Moves files before patch is applied, so origins aren't deleted before they are moved.
+     * Files and created directories are remembered to be skipped by the following copying.
+     * Origin is checked against the moved file, so origin changed after the patch was made
+     * isn't moved.
+     */
+    private void move(SyncPatch sync) throws IOException {
+        for (Map.Entry<String, String> e : sync.getMoves().entrySet()) {
+            File target = new File(root, e.getKey());
+            File origin = new File(root, e.getValue());
+            if (origin.isFile() && !target.exists() && mkdirs(target.getParentFile())) {
+                MetaFile master = sync.getMasterFile(e.getKey());
+                FileUtils.checkOrigin(origin, master != null ? master.getSize() : -1, hashFunc,
+                        (master != null) && (hashFunc != null) ? master.getHash(hashFunc) : null);
+                Files.move(origin.toPath(), target.toPath());
+                moved.add(target);
+            }
+        }
+    }
+
+    private boolean mkdirs(File dir) {
+        if (dir.isDirectory()) {
+            return true;
+        }
+        if (!dir.exists() && mkdirs(dir.getParentFile()) && dir.mkdir()) {
+            moved.add(dir);
+            return true;
+        }
+        return false;
+    }
+
+    private void recursCopy(MetaFile master, File path) throws IOException {
+        if (moved.contains(path)) {
+            if (master.isFile()) {
+                path.setLastModified(master.getTime());
+                if (journal != null) {
+                    journal.written(path, master.getSize(), master.getTime(), null, null);
+                }
+                return;
+            }
+            for (MetaFile f : master.getFiles().values()) {
+                recursCopy(f, new File(path, f.getName()));
+            }
+            path.setLastModified(master.getTime());
+        } else if (master.isFile()) {
+            copy(master, path);
         } else {
             path.mkdir();
             for (MetaFile f : master.getFiles().values()) {
@@ -102,35 +497,84 @@ public class FileSystemSerializer implements Serializer {
     }
 
     private static void recursDelete(File file) {
-        File[] list = file.listFiles();
-        if ((list == null) || (list.length == 0)) {
-            file.delete();
-        } else {
+        File[] list = Files.isSymbolicLink(file.toPath()) ? null : file.listFiles();
+        if (list != null) {
             for (File f : list) {
                 recursDelete(f);
             }
         }
+        file.delete();
     }
 
+    /**
+     * Reads the file or directory.
+     * @return file or <code>null</code> if it is a skipped link.
+     */
     private FSMetaFile readMetaFile(FSMetaFile parent, File path) throws IOException {
-        if (path.isFile()) {
+        Path p = path.toPath();
+        if ((parent != null) && Files.isSymbolicLink(p) && ((symlinks != Symlinks.FOLLOW) ||
+                !path.exists() || (path.isDirectory() && isCycle(parent, p)))) {
+            if (symlinks == Symlinks.SKIP) {
+                return null;
+            }
+            Metrics.getMetrics().add(Metrics.Counter.FILES_SCANNED, 1);
+            return new FSMetaFile(parent, path.getName(), Files.readSymbolicLink(p).toString(),
+                    Files.getLastModifiedTime(p, LinkOption.NOFOLLOW_LINKS).toMillis(),
+                    path.getAbsolutePath());
+        } else if (path.isFile()) {
+            Metrics.getMetrics().add(Metrics.Counter.FILES_SCANNED, 1);
             return new FSMetaFile(parent, path.getName(), path.length(), path.lastModified(), path.getAbsolutePath());
         } else {
             Map<String, FSMetaFile> files = new HashMap<String, FSMetaFile>();
             FSMetaFile file = new FSMetaFile(parent, path.getName(), path.lastModified(),
                     path.getAbsolutePath(), files);
             for (File cf : path.listFiles()) {
-                files.put(cf.getName(), readMetaFile(file, cf));
+                FSMetaFile f = readMetaFile(file, cf);
+                if (f != null) {
+                    files.put(cf.getName(), f);
+                }
             }
             return file;
         }
     }
 
-    class FSMetaFile implements MetaFile {
+    /**
+     * Checks whether linked directory is the directory being read or its ancestor. Directories
+     * are compared by file keys, so cycles made by several links are found too.
+     */
+    private static boolean isCycle(FSMetaFile parent, Path link) throws IOException {
+        Object key = getKey(link);
+        for (FSMetaFile dir = parent; dir != null; dir = dir.parent) {
+            if (key.equals(getKey(new File(dir.path).toPath()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Object getKey(Path path) throws IOException {
+        Object key = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        return key != null ? key : path.toRealPath();
+    }
+
+    /**
+     * Checks whether file or link exists, link is checked itself rather than file it points to.
+     */
+    private static boolean exists(File file) {
+        return Files.exists(file.toPath(), LinkOption.NOFOLLOW_LINKS);
+    }
+
+    private static boolean isDirectory(File file) {
+        return Files.isDirectory(file.toPath(), LinkOption.NOFOLLOW_LINKS);
+    }
+
+    class FSMetaFile implements LinkMetaFile, HashCache.Cacheable {
         private FSMetaFile parent;
         private String name;
         private boolean isFile;
+        private String target;
         private Map<String, FSMetaFile> files;
+        private Map<String, FSMetaFile> entries;
         private long size;
         private long time;
         private String path;
@@ -144,11 +588,17 @@ public class FileSystemSerializer implements Serializer {
             this.path = path;
         }
 
+        FSMetaFile(FSMetaFile parent, String name, String target, long time, String path) {
+            this(parent, name, FileUtils.getLinkContent(target).length, time, path);
+            this.target = target;
+        }
+
         FSMetaFile(FSMetaFile parent, String name, long time, String path,
                 Map<String, FSMetaFile> files) {
             this.parent = parent;
             this.name = name;
             this.isFile = false;
+            this.entries = files;
             this.files = Collections.unmodifiableMap(files);
             this.time = time;
             this.path = path;
@@ -176,7 +626,7 @@ public class FileSystemSerializer implements Serializer {
 
         @Override
         public byte[] getHash(String hashFunc) {
-            return null;
+            return isFile ? hashCache.get(path, hashFunc, size, time) : null;
         }
 
         @Override
@@ -190,8 +640,21 @@ public class FileSystemSerializer implements Serializer {
         }
 
         @Override
-        public InputStream getInputStream() throws FileNotFoundException {
-            return new FileInputStream(path);
+        public InputStream getInputStream() throws IOException {
+            if (target != null) {
+                return new ByteArrayInputStream(FileUtils.getLinkContent(target));
+            }
+            return Metrics.getMetrics().read(throttle.read(new FileInputStream(path)));
+        }
+
+        @Override
+        public String getLinkTarget() {
+            return target;
+        }
+
+        @Override
+        public void cacheHash(String hashFunc, byte[] hash) {
+            hashCache.put(path, hashFunc, size, time, hash);
         }
 
         FileSystemSerializer getSerializer() {
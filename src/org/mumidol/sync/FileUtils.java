@@ -7,10 +7,19 @@
 
 package org.mumidol.sync;
 
-import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
 
 /**
  * Utility class with useful file's methods.
@@ -26,28 +35,204 @@ public class FileUtils {
      * @throws IOException
      */
     public static void copy(InputStream is, OutputStream os) throws IOException {
-        byte[] buf = new byte[4096];
-        int i = is.read(buf);
-        while (i != -1) {
-            os.write(buf, 0, i);
-            i = is.read(buf);
+        copy(is, os, null);
+    }
+
+    /**
+     * Copies from input to output stream without closing streams. Copied bytes are also passed
+     * to the digest so hash sum is calculated without reading content once again.
+     *
+     * @param is input stream
+     * @param os output stream
+     * @param digest digest to be updated or <code>null</code>
+     * @throws IOException
+     */
+    public static void copy(InputStream is, OutputStream os, HashCalculator.Digest digest)
+            throws IOException {
+        byte[] buf = Buffers.getBuffers().acquire();
+        try {
+            int i = is.read(buf);
+            while (i != -1) {
+                os.write(buf, 0, i);
+                if (digest != null) {
+                    digest.update(buf, 0, i);
+                }
+                i = is.read(buf);
+            }
+        } finally {
+            Buffers.getBuffers().release(buf);
         }
     }
 
+    /**
+     * Compares content of streams without closing streams.
+     *
+     * @param is1 the first stream
+     * @param is2 the second stream
+     * @return <code>true</code> if content is the same
+     * @throws IOException
+     */
     public static boolean isEqual(InputStream is1, InputStream is2) throws IOException {
-        BufferedInputStream bis1 = new BufferedInputStream(is1);
-        BufferedInputStream bis2 = new BufferedInputStream(is2);
-
-        int b1, b2;
-        do {
-            b1 = bis1.read();
-            b2 = bis2.read();
-            if (b1 != b2) {
-                return false;
+        byte[] buf1 = Buffers.getBuffers().acquire();
+        byte[] buf2 = Buffers.getBuffers().acquire();
+        long compared = 0;
+        try {
+            while (true) {
+                int len1 = readFully(is1, buf1);
+                int len2 = readFully(is2, buf2);
+                if (len1 != len2) {
+                    return false;
+                }
+                for (int i = 0; i < len1; i++) {
+                    if (buf1[i] != buf2[i]) {
+                        return false;
+                    }
+                }
+                compared += len1;
+                if (len1 < buf1.length) {
+                    return true;
+                }
             }
-        } while ((b1 != -1) && (b2 != -1));
+        } finally {
+            Buffers.getBuffers().release(buf2);
+            Buffers.getBuffers().release(buf1);
+            Metrics.getMetrics().add(Metrics.Counter.BYTES_COMPARED, compared);
+        }
+    }
+
+    /**
+     * Reads the stream until the buffer is full or the stream ends.
+     * @return number of read bytes.
+     */
+    static int readFully(InputStream is, byte[] buf) throws IOException {
+        int len = 0;
+        int i;
+        while ((len < buf.length) && ((i = is.read(buf, len, buf.length - len)) != -1)) {
+            len += i;
+        }
+        return len;
+    }
+
+    /**
+     * Returns path the link points to.
+     * @param file file, it may be wrapped by sieve or other serializers.
+     * @return target path or <code>null</code> if file isn't a link.
+     * @see LinkMetaFile
+     */
+    static String getLinkTarget(MetaFile file) {
+        if (file instanceof FileSieve.SieveMetaFile) {
+            return getLinkTarget(((FileSieve.SieveMetaFile) file).original);
+        } else if (file instanceof FanOut.SharedMetaFile) {
+            return getLinkTarget(((FanOut.SharedMetaFile) file).original);
+        } else if (file instanceof LinkMetaFile) {
+            return ((LinkMetaFile) file).getLinkTarget();
+        }
+        return null;
+    }
+
+    static boolean isLink(MetaFile file) {
+        return getLinkTarget(file) != null;
+    }
+
+    /**
+     * Returns content of the link as it is stored by serializers which don't support links.
+     * @param target path the link points to.
+     * @return content.
+     */
+    static byte[] getLinkContent(String target) {
+        return target.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates symbolic link replacing existing file or link, existing link isn't followed.
+     * @param file link to be created.
+     * @param target path the link points to.
+     * @param time last modification time of the link.
+     * @throws IOException
+     */
+    static void createLink(File file, String target, long time) throws IOException {
+        Path path = file.toPath();
+        Files.deleteIfExists(path);
+        Files.createSymbolicLink(path, Paths.get(target));
+        FileTime t = FileTime.fromMillis(time);
+        try {
+            Files.getFileAttributeView(path, BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS)
+                    .setTimes(t, null, null);
+        } catch (IOException | UnsupportedOperationException e) {
+            // time of links isn't supported, link keeps time it is created
+        }
+    }
+
+    /**
+     * Deletes the file before it is rewritten if it is a symbolic link or it has other hard
+     * links, so the file the link points to or shares content with (for example the file linked
+     * to a snapshot by earlier run) isn't modified. New file is created by rewriting then.
+     * @param file file to be rewritten.
+     * @throws IOException
+     */
+    static void detach(File file) throws IOException {
+        Path path = file.toPath();
+        if (Files.isSymbolicLink(path) || (file.isFile() && (getLinkCount(path) > 1))) {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * Returns number of hard links of the file.
+     * @return number of links, 1 if it isn't supported by the file system.
+     */
+    private static int getLinkCount(Path path) throws IOException {
+        try {
+            return (Integer) Files.getAttribute(path, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return 1;
+        }
+    }
 
-        return (b1 == -1) && (b2 == -1);
+    /**
+     * Handles hash sum calculated while master file content was copied. Hash sum is checked
+     * against the hash sum known by master file (if requested) and is put to the master file cache.
+     *
+     * @param master file which content was copied
+     * @param hashFunc hash function
+     * @param hash calculated hash sum
+     * @param verify <code>true</code> if hash sum is to be checked
+     * @throws IOException if hash sums differ
+     */
+    static void teeHash(MetaFile master, String hashFunc, byte[] hash, boolean verify)
+            throws IOException {
+        if (verify) {
+            byte[] expected = master.getHash(hashFunc);
+            if ((expected != null) && !Arrays.equals(expected, hash)) {
+                throw new IOException("Hash sum of copied file differs from master: " +
+                        master.getName());
+            }
+        }
+        if (master instanceof HashCache.Cacheable) {
+            ((HashCache.Cacheable) master).cacheHash(hashFunc, hash);
+        }
     }
 
+    /**
+     * Checks origin of moved file before it is moved, so origin changed after the patch was made
+     * doesn't replace content of the moved file.
+     * @param origin origin of moved file.
+     * @param size size of moved file or <code>-1</code> if it is unknown.
+     * @param hashFunc hash function the hash sum was calculated by.
+     * @param hash hash sum of moved file or <code>null</code> if it is unknown.
+     * @throws IOException if origin differs from moved file.
+     */
+    static void checkOrigin(File origin, long size, String hashFunc, byte[] hash) throws IOException {
+        if ((size >= 0) && (origin.length() != size)) {
+            throw new IOException("Size of moved file origin differs from patch: " + origin);
+        }
+        HashCalculator calculator = hashFunc != null ? HashManager.getHashManager().getCalculator(hashFunc) : null;
+        if ((hash != null) && (calculator != null)) {
+            try (InputStream is = new FileInputStream(origin)) {
+                if (!Arrays.equals(hash, calculator.calculate(is))) {
+                    throw new IOException("Hash sum of moved file origin differs from patch: " + origin);
+                }
+            }
+        }
+    }
 }
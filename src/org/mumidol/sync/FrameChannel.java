@@ -0,0 +1,328 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Connection of {@link SyncServer} and {@link RemoteSerializer}. Requests and responses are sent
+ * as frames: request identifier, frame type, payload length and payload. Content is split to
+ * frames of {@link #CHUNK_SIZE} at most, so transfers of several files are multiplexed within
+ * one connection and a large file doesn't delay small ones.
+ * <p>
+ * Content is received by the reading thread and consumed by other threads, so payloads of DATA
+ * frames are returned to the channel when they are consumed and reused by following frames
+ * instead of thread buffers of {@link Buffers}.
+ *
+ * @author Alexander Alexeev
+ */
+class FrameChannel implements Closeable {
+    static final int MAGIC = 0x53594E43; // SYNC
+    static final int VERSION = 1;
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /** request of manifest, payload is hash function name */
+    static final byte MANIFEST = 1;
+    /** request of file content, payload is file path */
+    static final byte READ = 2;
+    /** request to apply patch, patch follows in DATA frames */
+    static final byte PATCH = 3;
+    /** part of content */
+    static final byte DATA = 4;
+    /** end of content or successful completion of request */
+    static final byte END = 5;
+    /** failure of request, payload is error message */
+    static final byte ERROR = 6;
+
+    /** number of consumed payloads kept for reuse */
+    private static final int FREE_CHUNKS = 16;
+
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private Queue<byte[]> free = new ArrayBlockingQueue<>(FREE_CHUNKS);
+
+    FrameChannel(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), CHUNK_SIZE));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE));
+    }
+
+    /**
+     * Exchanges protocol version.
+     * @throws IOException if the other side doesn't support protocol.
+     */
+    void handshake() throws IOException {
+        synchronized (out) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.flush();
+        }
+        if ((in.readInt() != MAGIC) || (in.readUnsignedByte() != VERSION)) {
+            throw new IOException("Unsupported protocol");
+        }
+    }
+
+    /**
+     * Writes frame.
+     * @param id request identifier.
+     * @param type frame type.
+     * @param b payload.
+     * @param off offset of payload.
+     * @param len length of payload.
+     * @param flush <code>false</code> if frame is followed by other frames of the same batch.
+     * @throws IOException
+     */
+    void writeFrame(int id, byte type, byte[] b, int off, int len, boolean flush) throws IOException {
+        synchronized (out) {
+            out.writeInt(id);
+            out.writeByte(type);
+            out.writeInt(len);
+            out.write(b, off, len);
+            if (flush) {
+                out.flush();
+            }
+        }
+    }
+
+    void writeFrame(int id, byte type, String payload, boolean flush) throws IOException {
+        byte[] b = payload.getBytes("UTF-8");
+        writeFrame(id, type, b, 0, b.length, flush);
+    }
+
+    void flush() throws IOException {
+        synchronized (out) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Reads next frame. Frames are read by one thread only.
+     * @return frame or <code>null</code> if connection is closed.
+     * @throws IOException
+     */
+    Frame readFrame() throws IOException {
+        int id;
+        try {
+            id = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        byte type = in.readByte();
+        int len = in.readInt();
+        if ((len < 0) || (len > CHUNK_SIZE)) {
+            throw new IOException("Corrupted frame");
+        }
+        if (type != DATA) {
+            byte[] payload = new byte[len];
+            in.readFully(payload);
+            return new Frame(id, type, payload, len, null);
+        }
+        byte[] payload = free.poll();
+        if (payload == null) {
+            payload = new byte[CHUNK_SIZE];
+        }
+        in.readFully(payload, 0, len);
+        return new Frame(id, type, payload, len, free);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    static class Frame {
+        final int id;
+        final byte type;
+        final byte[] payload;
+        final int length;
+        private final Queue<byte[]> free;
+
+        Frame(int id, byte type, byte[] payload, int length, Queue<byte[]> free) {
+            this.id = id;
+            this.type = type;
+            this.payload = payload;
+            this.length = length;
+            this.free = free;
+        }
+
+        String getText() throws UnsupportedEncodingException {
+            return new String(payload, 0, length, "UTF-8");
+        }
+
+        /**
+         * Returns payload to the channel when it is consumed, so it is reused by the next frame.
+         */
+        void release() {
+            if (free != null) {
+                free.offer(payload);
+            }
+        }
+    }
+
+    /**
+     * Content received in DATA frames of one request. Frames are offered by the reading thread
+     * and consumed by the thread processing content.
+     */
+    static class ChunkInputStream extends InputStream {
+        private static final Frame EOF = new Frame(0, END, new byte[0], 0, null);
+
+        private BlockingQueue<Frame> queue;
+        private volatile String error;
+        private volatile boolean cancelled;
+        private Frame chunk;
+        private int pos;
+        private boolean finished;
+
+        ChunkInputStream() {
+            queue = new LinkedBlockingQueue<>();
+        }
+
+        /**
+         * Creates stream blocking the reading thread if too many chunks aren't consumed.
+         * @param capacity maximal number of received chunks.
+         */
+        ChunkInputStream(int capacity) {
+            queue = new LinkedBlockingQueue<>(capacity);
+        }
+
+        void offer(Frame frame) throws InterruptedIOException {
+            if (!cancelled && (frame.length > 0)) {
+                put(frame);
+            }
+        }
+
+        void finish() throws InterruptedIOException {
+            put(EOF);
+        }
+
+        void fail(String message) {
+            error = message;
+            queue.clear();
+            queue.add(EOF);
+        }
+
+        /**
+         * Drops received and following content.
+         */
+        void cancel() {
+            cancelled = true;
+            queue.clear();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        private void put(Frame frame) throws InterruptedIOException {
+            try {
+                queue.put(frame);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while ((chunk == null) || (pos == chunk.length)) {
+                if (finished) {
+                    return -1;
+                }
+                if (chunk != null) {
+                    chunk.release();
+                    chunk = null;
+                }
+                try {
+                    chunk = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                pos = 0;
+                if (chunk == EOF) {
+                    finished = true;
+                    if (error != null) {
+                        throw new IOException(error);
+                    }
+                    return -1;
+                }
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk.payload, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    /**
+     * Sends content written to it in DATA frames and finishes it by END frame on close.
+     */
+    static class FrameOutputStream extends OutputStream {
+        private FrameChannel channel;
+        private int id;
+        private byte[] buf = Buffers.getBuffers().acquire(CHUNK_SIZE);
+        private int count;
+        private boolean closed;
+
+        FrameOutputStream(FrameChannel channel, int id) {
+            this.channel = channel;
+            this.id = id;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length) {
+                flushFrame();
+            }
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buf.length) {
+                    flushFrame();
+                }
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                try {
+                    flushFrame();
+                    channel.writeFrame(id, END, buf, 0, 0, true);
+                } finally {
+                    Buffers.getBuffers().release(buf);
+                }
+            }
+        }
+
+        private void flushFrame() throws IOException {
+            if (count > 0) {
+                channel.writeFrame(id, DATA, buf, 0, count, true);
+                count = 0;
+            }
+        }
+    }
+}
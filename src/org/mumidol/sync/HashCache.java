@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of file hash sums. Cached hash sum stays valid while size and stamp (usually last
+ * modification time) of the file are the same as when hash sum was put to the cache.
+ * <p>
+ * Cache can be shared between serializers, so hash sum calculated while copying file from one
+ * storage can be used by the other one.
+ *
+ * @author Alexander Alexeev
+ */
+public class HashCache {
+    private Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Returns cached hash sum.
+     * @param key file key, for example absolute path.
+     * @param hashFunc hash function.
+     * @param size current file size.
+     * @param stamp current file stamp.
+     * @return hash sum or <code>null</code> if there is no valid hash sum in the cache.
+     */
+    public byte[] get(String key, String hashFunc, long size, long stamp) {
+        if (hashFunc == null) {
+            return null;
+        }
+        Entry e = entries.get(key);
+        if ((e != null) && (e.size == size) && (e.stamp == stamp) &&
+                e.hashFunc.equals(HashManager.getHashManager().getCanonicalName(hashFunc))) {
+            Metrics.getMetrics().add(Metrics.Counter.HASH_CACHE_HITS, 1);
+            return Arrays.copyOf(e.hash, e.hash.length);
+        }
+        Metrics.getMetrics().add(Metrics.Counter.HASH_CACHE_MISSES, 1);
+        return null;
+    }
+
+    /**
+     * Puts hash sum to the cache replacing previous one.
+     * @param key file key, for example absolute path.
+     * @param hashFunc hash function.
+     * @param size file size.
+     * @param stamp file stamp.
+     * @param hash hash sum.
+     */
+    public void put(String key, String hashFunc, long size, long stamp, byte[] hash) {
+        entries.put(key, new Entry(HashManager.getHashManager().getCanonicalName(hashFunc),
+                size, stamp, Arrays.copyOf(hash, hash.length)));
+    }
+
+    /**
+     * Removes hash sum from the cache.
+     * @param key file key.
+     */
+    public void remove(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * File which hash sum can be put to the cache when content was read by somebody else.
+     */
+    interface Cacheable {
+        void cacheHash(String hashFunc, byte[] hash);
+    }
+
+    private static class Entry {
+        private String hashFunc;
+        private long size;
+        private long stamp;
+        private byte[] hash;
+
+        Entry(String hashFunc, long size, long stamp, byte[] hash) {
+            this.hashFunc = hashFunc;
+            this.size = size;
+            this.stamp = stamp;
+            this.hash = hash;
+        }
+    }
+}
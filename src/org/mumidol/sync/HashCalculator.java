@@ -6,15 +6,40 @@
 
 package org.mumidol.sync;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.zip.CRC32;
 
 /**
- * Date: 11.05.13
- * Time: 16:26
+ * Calculates hash sum of file content.
+ * <p>
+ * Hash sum can be calculated either from the whole stream or incrementally using {@link Digest}
+ * while content is being copied.
  */
 public interface HashCalculator {
     public byte[] calculate(InputStream is) throws IOException;
+
+    /**
+     * Creates new digest to calculate hash sum incrementally.
+     * @return new digest.
+     */
+    public Digest createDigest();
+
+    /**
+     * Incremental hash sum calculation.
+     */
+    public interface Digest {
+        /**
+         * Updates hash sum with bytes from the buffer.
+         * @param buf buffer
+         * @param off offset in the buffer
+         * @param len number of bytes
+         */
+        void update(byte[] buf, int off, int len);
+
+        /**
+         * Completes calculation.
+         * @return hash sum.
+         */
+        byte[] digest();
+    }
 }
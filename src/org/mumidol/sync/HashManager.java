@@ -7,10 +7,10 @@
 
 package org.mumidol.sync;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.zip.CRC32;
@@ -20,17 +20,17 @@ import java.util.zip.CRC32;
  * Time: 19:41
  */
 public class HashManager {
-    private static HashManager manager;
+    private static final HashManager manager = new HashManager();
     private Map<String, HashCalculator> calculators = new HashMap<>();
 
     private HashManager() {
-        calculators.put("CRC32", new CRC32HashCalculator());
+        calculators.put("CRC-32", new CRC32HashCalculator());
+        for (String algorithm : new String[] {"MD5", "SHA-1", "SHA-256"}) {
+            calculators.put(algorithm, new MessageDigestHashCalculator(algorithm));
+        }
     }
 
     public static HashManager getHashManager() {
-        if (manager == null) {
-            manager = new HashManager();
-        }
         return manager;
     }
 
@@ -44,28 +44,97 @@ public class HashManager {
             case "CRC32":
             case "CRC-32":
                 return "CRC-32";
+            case "SHA1":
+                return "SHA-1";
+            case "SHA256":
+                return "SHA-256";
             default:
                 return name;
         }
     }
 
+    private static byte[] calculate(HashCalculator.Digest digest, InputStream is) throws IOException {
+        Metrics.Timer timer = Metrics.getMetrics().start(Metrics.Phase.HASH, null);
+        try {
+            byte[] buf = Buffers.getBuffers().acquire();
+            try {
+                int i = is.read(buf);
+                while (i != -1) {
+                    digest.update(buf, 0, i);
+                    i = is.read(buf);
+                }
+            } finally {
+                Buffers.getBuffers().release(buf);
+            }
+            return digest.digest();
+        } finally {
+            timer.stop();
+        }
+    }
+
     private static class CRC32HashCalculator implements HashCalculator {
         @Override
         public byte[] calculate(InputStream is) throws IOException {
-            CRC32 crc = new CRC32();
-            byte[] buf = new byte[4096];
-            int i = is.read(buf);
-            while (i != -1) {
-                crc.update(buf, 0, i);
-                i = is.read(buf);
-            }
-            byte[] hash = new byte[4];
-            long t = crc.getValue();
-            for (int j = 3; j >= 0; j--) {
-                hash[j] = (byte) t;
-                t >>= 8;
+            return HashManager.calculate(createDigest(), is);
+        }
+
+        @Override
+        public Digest createDigest() {
+            return new Digest() {
+                private CRC32 crc = new CRC32();
+
+                @Override
+                public void update(byte[] buf, int off, int len) {
+                    crc.update(buf, off, len);
+                    Metrics.getMetrics().add(Metrics.Counter.BYTES_HASHED, len);
+                }
+
+                @Override
+                public byte[] digest() {
+                    byte[] hash = new byte[4];
+                    long t = crc.getValue();
+                    for (int j = 3; j >= 0; j--) {
+                        hash[j] = (byte) t;
+                        t >>= 8;
+                    }
+                    return hash;
+                }
+            };
+        }
+    }
+
+    private static class MessageDigestHashCalculator implements HashCalculator {
+        private String algorithm;
+
+        MessageDigestHashCalculator(String algorithm) {
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public byte[] calculate(InputStream is) throws IOException {
+            return HashManager.calculate(createDigest(), is);
+        }
+
+        @Override
+        public Digest createDigest() {
+            final MessageDigest md;
+            try {
+                md = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
             }
-            return hash;
+            return new Digest() {
+                @Override
+                public void update(byte[] buf, int off, int len) {
+                    md.update(buf, off, len);
+                    Metrics.getMetrics().add(Metrics.Counter.BYTES_HASHED, len);
+                }
+
+                @Override
+                public byte[] digest() {
+                    return md.digest();
+                }
+            };
         }
     }
 }
@@ -0,0 +1,741 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Patch container with table of contents. Content of files is stored first, table of contents
+ * with paths, operations, offsets, sizes and SHA-1 hash sums of files follows content and is
+ * located by the trailer at the end of the file. Table of contents is memory mapped when container
+ * is opened, so container can be inspected without reading content, single files can be extracted
+ * and subset of changes can be applied in parallel. Content shared by several files is stored once.
+ * Symbolic links are stored as entries with the path they point to.
+ * <p>
+ * Container is applied to a directory the same way as {@link StreamingPatcher} applies
+ * saved {@link SyncPatch}.
+ *
+ * @author Alexander Alexeev
+ */
+public class IndexedPatch implements Closeable {
+    private static final int MAGIC = 0x53594E49; // SYNI
+    private static final int VERSION = 2;
+    private static final String HASH_FUNC = "SHA-1";
+    private static final int TRAILER_SIZE = 12;
+    private static final int THROTTLED_CHUNK = 256 * 1024;
+
+    /**
+     * Operation on a file.
+     */
+    public enum Operation {
+        /** File or directory is deleted. */
+        DELETE,
+        /** Directory is created or its time is updated. */
+        DIRECTORY,
+        /** File is created or replaced with stored content. */
+        FILE,
+        /** File is moved from origin. */
+        MOVE,
+        /** Symbolic link is created or replaced. */
+        LINK
+    }
+
+    private FileChannel channel;
+    private List<Entry> entries;
+    private Journal journal;
+    private Throttle throttle = new Throttle();
+
+    private IndexedPatch(FileChannel channel, List<Entry> entries) {
+        this.channel = channel;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Saves {@link SyncPatch} to the container file.
+     * @param patch changes to be saved.
+     * @param file container file.
+     * @throws IOException
+     */
+    public static void save(SyncPatch patch, File file) throws IOException {
+        save(patch, new FileOutputStream(file));
+    }
+
+    /**
+     * Saves {@link SyncPatch} to the OutputStream. Container is written sequentially, but has to be
+     * stored to a file to be opened.
+     * @param patch changes to be saved.
+     * @param os output stream container to be saved to.
+     * @throws IOException
+     */
+    public static void save(SyncPatch patch, OutputStream os) throws IOException {
+        Map<String, String> duplicates = DuplicateDetector.detect(patch);
+        try (CountingOutputStream cos = new CountingOutputStream(
+                new BufferedOutputStream(os, 64 * 1024))) {
+            DataOutputStream dos = new DataOutputStream(cos);
+            dos.writeInt(MAGIC);
+            dos.writeByte(VERSION);
+            ContentWriter writer = new ContentWriter(patch.getMoves(), duplicates, cos);
+            writer.writeSync(patch, "");
+            List<Entry> entries = writer.entries;
+
+            long tocOffset = cos.count;
+            dos.writeInt(entries.size());
+            for (Entry e : entries) {
+                dos.writeByte(e.operation.ordinal());
+                dos.writeBoolean(e.added);
+                dos.writeUTF(e.path);
+                dos.writeLong(e.time);
+                dos.writeLong(e.size);
+                dos.writeLong(e.offset);
+                dos.writeUTF(e.origin != null ? e.origin : "");
+                dos.writeByte(e.hash != null ? e.hash.length : 0);
+                if (e.hash != null) {
+                    dos.write(e.hash);
+                }
+            }
+            dos.writeLong(tocOffset);
+            dos.writeInt(MAGIC);
+            dos.flush();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if file is a container.
+     * @param file file to be checked.
+     * @return <code>true</code> if file is a container, <code>false</code> otherwise.
+     * @throws IOException
+     */
+    public static boolean isIndexed(File file) throws IOException {
+        if (!file.isFile() || (file.length() < TRAILER_SIZE + 5)) {
+            return false;
+        }
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(file))) {
+            return dis.readInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Opens container and reads its table of contents.
+     * @param file container file.
+     * @return opened container.
+     * @throws IOException
+     */
+    public static IndexedPatch open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(5);
+            readFully(channel, header, 0);
+            header.flip();
+            int version = header.getInt() == MAGIC ? header.get() : -1;
+            if ((version < 1) || (version > VERSION)) {
+                throw new IOException("Unknown patch container format");
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            readFully(channel, trailer, length - TRAILER_SIZE);
+            trailer.flip();
+            long tocOffset = trailer.getLong();
+            if ((trailer.getInt() != MAGIC) || (tocOffset < 5) || (tocOffset > length - TRAILER_SIZE)) {
+                throw new IOException("Unknown patch container format");
+            }
+            MappedByteBuffer toc = channel.map(FileChannel.MapMode.READ_ONLY, tocOffset,
+                    length - TRAILER_SIZE - tocOffset);
+            int count = toc.getInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Operation operation = Operation.values()[toc.get()];
+                boolean added = (version >= 2) && (toc.get() != 0);
+                String path = readUTF(toc);
+                long time = toc.getLong();
+                long size = toc.getLong();
+                long offset = toc.getLong();
+                String origin = readUTF(toc);
+                byte[] hash = null;
+                int hashLength = toc.get() & 0xFF;
+                if (hashLength > 0) {
+                    hash = new byte[hashLength];
+                    toc.get(hash);
+                }
+                entries.add(new Entry(operation, added, path, time, size, offset,
+                        origin.isEmpty() ? null : origin, hash));
+            }
+            IndexedPatch patch = new IndexedPatch(channel, entries);
+            patch.linkEntries();
+            return patch;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns table of contents in the order entries were saved (parents before children).
+     * @return entries of the container.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns stored content of the entry.
+     * @param entry entry with {@link Operation#FILE} operation.
+     * @return content input stream.
+     */
+    public InputStream getInputStream(Entry entry) {
+        if (entry.operation != Operation.FILE) {
+            throw new IllegalArgumentException("Content isn't stored for " + entry.path);
+        }
+        return new ChannelInputStream(channel, entry.offset, entry.size);
+    }
+
+    /**
+     * Sets checkpoint journal, files written by interrupted run are skipped.
+     * @param journal journal or <code>null</code>.
+     * @see FileSystemSerializer#setJournal(Journal)
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Sets throttle limiting reading of the container and writing of files.
+     * @param throttle throttle.
+     */
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Applies changes accepted by the matcher to the directory. Moves, deletions and directories are
+     * processed first, then files are written in parallel by the given number of threads.
+     *
+     * @param root directory to be patched.
+     * @param matcher matcher to select changes or <code>null</code> to apply all changes.
+     * @param threads number of threads writing files.
+     * @throws IOException
+     */
+    public void apply(File root, FileMatcher matcher, int threads) throws IOException {
+        if (threads <= 1) {
+            apply(root, matcher, (ExecutorService) null);
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            apply(root, matcher, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Applies changes accepted by the matcher to the directory, files are written by tasks of the
+     * executor. Executor isn't shut down, so the same pool can write files of many containers.
+     *
+     * @param root directory to be patched.
+     * @param matcher matcher to select changes or <code>null</code> to apply all changes.
+     * @param executor executor writing files or <code>null</code> to write them by this thread.
+     * @throws IOException
+     */
+    public void apply(File root, FileMatcher matcher, ExecutorService executor) throws IOException {
+        Metrics.Timer timer = Metrics.getMetrics().start(Metrics.Phase.APPLY, root.getPath());
+        try {
+            applyChanges(root, matcher, executor);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private void applyChanges(File root, FileMatcher matcher, ExecutorService executor) throws IOException {
+        List<Entry> selected = new ArrayList<>();
+        for (Entry e : entries) {
+            if ((matcher == null) || e.path.isEmpty() || matcher.accept(e)) {
+                selected.add(e);
+            }
+        }
+
+        for (Entry e : selected) {
+            if (e.operation == Operation.MOVE) {
+                move(root, e);
+            }
+        }
+        List<Entry> dirs = new ArrayList<>();
+        final List<Entry> files = new ArrayList<>();
+        for (Entry e : selected) {
+            File target = getFile(root, e.path);
+            switch (e.operation) {
+                case DELETE:
+                    recursDelete(target);
+                    break;
+                case DIRECTORY:
+                    if (target.isFile()) {
+                        recursDelete(target);
+                    }
+                    if (e.added && isWritable(target)) {
+                        started(target);
+                    }
+                    target.mkdirs();
+                    dirs.add(e);
+                    break;
+                case FILE:
+                case LINK:
+                    if (target.isDirectory() && !Files.isSymbolicLink(target.toPath())) {
+                        recursDelete(target);
+                    }
+                    if (e.added) {
+                        if (!isWritable(target)) {
+                            break; // added file exists already
+                        }
+                        started(target);
+                    }
+                    target.getParentFile().mkdirs(); // directory entry may be filtered out
+                    if (e.operation == Operation.LINK) {
+                        FileUtils.createLink(target, e.origin, e.time);
+                    } else {
+                        files.add(e);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        write(root, files, executor);
+
+        Collections.reverse(dirs); // children times are set before parents ones
+        for (Entry e : dirs) {
+            getFile(root, e.path).setLastModified(e.time);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if added file can be written to the path: path doesn't exist or
+     * it was created by interrupted run. Moved files have their own entries, so files written
+     * here are never moved ones.
+     * @see StreamingPatcher
+     */
+    private boolean isWritable(File file) {
+        if (!Files.exists(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+            return true;
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        return (journal != null) && (journal.isStarted(file) || (parent != null) && journal.isStarted(parent));
+    }
+
+    private void started(File file) throws IOException {
+        if (journal != null) {
+            journal.started(file);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void write(final File root, List<Entry> files, ExecutorService executor) throws IOException {
+        if (executor == null) {
+            for (Entry e : files) {
+                write(getFile(root, e.path), e);
+            }
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<>(files.size());
+        try {
+            for (final Entry e : files) {
+                futures.add(executor.submit(new java.util.concurrent.Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        write(getFile(root, e.path), e);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<Void> f : futures) { // cancels writing of the rest files if one failed
+                f.cancel(true);
+            }
+        }
+    }
+
+    private void write(File target, Entry e) throws IOException {
+        if ((journal != null) && journal.isWritten(target, e.size, e.time)) {
+            return; // written by interrupted run
+        }
+        long start = System.nanoTime();
+        FileUtils.detach(target); // file linked elsewhere is replaced, the other is kept
+        throttle.acquireWriteFile();
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long pos = 0;
+            while (pos < e.size) {
+                // throttled transfer is split, so it doesn't burst
+                long count = throttle.isLimited() ? Math.min(e.size - pos, THROTTLED_CHUNK) : e.size - pos;
+                long len = channel.transferTo(e.offset + pos, count, out);
+                if (len <= 0) {
+                    throw new EOFException("Unexpected end of patch container");
+                }
+                throttle.acquireRead(len);
+                throttle.acquireWrite(len);
+                pos += len;
+            }
+        }
+        Metrics.getMetrics().fileWritten(e.size, start);
+        target.setLastModified(e.time);
+        if (journal != null) {
+            journal.written(target, e.size, e.time, HASH_FUNC, e.hash);
+        }
+    }
+
+    private static void move(File root, Entry e) throws IOException {
+        File target = getFile(root, e.path);
+        File origin = getFile(root, e.origin);
+        if (!target.exists()) {
+            if (!origin.isFile()) {
+                throw new IOException("Origin of moved file doesn't exist: " + origin);
+            }
+            FileUtils.checkOrigin(origin, e.size, HASH_FUNC, e.hash);
+            target.getParentFile().mkdirs();
+            Files.move(origin.toPath(), target.toPath());
+        }
+        target.setLastModified(e.time);
+    }
+
+    private static File getFile(File root, String path) {
+        return path.isEmpty() ? root : new File(root, path);
+    }
+
+    private static void recursDelete(File file) {
+        File[] list = Files.isSymbolicLink(file.toPath()) ? null : file.listFiles();
+        if (list != null) {
+            for (File f : list) {
+                recursDelete(f);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Builds parent/children relations, so entries can be accepted by path based matchers.
+     */
+    private void linkEntries() {
+        Map<String, Entry> dirs = new HashMap<>();
+        for (Entry e : entries) {
+            if (e.operation == Operation.DIRECTORY) {
+                dirs.put(e.path, e);
+            }
+        }
+        for (Entry e : entries) {
+            if (e.path.isEmpty()) {
+                continue;
+            }
+            int i = e.path.lastIndexOf('/');
+            String parentPath = i == -1 ? "" : e.path.substring(0, i);
+            Entry parent = dirs.get(parentPath);
+            if (parent == null) {
+                parent = new Entry(Operation.DIRECTORY, false, parentPath, 0, 0, 0, null, null);
+                dirs.put(parentPath, parent);
+            }
+            e.parent = parent;
+            parent.children.put(e.getName(), e);
+        }
+        for (Entry d : new ArrayList<>(dirs.values())) { // links implicit parent directories
+            Entry e = d;
+            while (!e.path.isEmpty() && (e.parent == null)) {
+                int i = e.path.lastIndexOf('/');
+                String parentPath = i == -1 ? "" : e.path.substring(0, i);
+                Entry parent = dirs.get(parentPath);
+                if (parent == null) {
+                    parent = new Entry(Operation.DIRECTORY, false, parentPath, 0, 0, 0, null, null);
+                    dirs.put(parentPath, parent);
+                }
+                e.parent = parent;
+                parent.children.put(e.getName(), e);
+                e = parent;
+            }
+        }
+    }
+
+    /**
+     * Reads string written by {@link DataOutputStream#writeUTF(String)} in modified UTF-8.
+     */
+    private static String readUTF(ByteBuffer buf) throws IOException {
+        byte[] bytes = new byte[2 + (buf.getShort(buf.position()) & 0xFFFF)]; // with length
+        buf.get(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) == -1) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Entry of the table of contents. Entry is a {@link MetaFile}, so it can be accepted by
+     * {@link FileMatcher}.
+     */
+    public static class Entry implements LinkMetaFile {
+        private Operation operation;
+        private boolean added;
+        private String path;
+        private long time;
+        private long size;
+        private long offset;
+        private String origin;
+        private byte[] hash;
+        private Entry parent;
+        private Map<String, Entry> children = new HashMap<>();
+
+        private Entry(Operation operation, boolean added, String path, long time, long size, long offset,
+                String origin, byte[] hash) {
+            this.operation = operation;
+            this.added = added;
+            this.path = path;
+            this.time = time;
+            this.size = size;
+            this.offset = offset;
+            this.origin = origin;
+            this.hash = hash;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * Returns <code>true</code> if file is added, existing added file isn't replaced when
+         * container is applied.
+         * @return <code>true</code> if file doesn't exist in the patched directory.
+         */
+        public boolean isAdded() {
+            return added;
+        }
+
+        /**
+         * Returns path relative to the patch root, separated by /.
+         * @return path of the entry.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Returns path of the moved file origin.
+         * @return origin path or <code>null</code> if operation isn't {@link Operation#MOVE}.
+         * @see #getLinkTarget()
+         */
+        public String getOrigin() {
+            return operation == Operation.MOVE ? origin : null;
+        }
+
+        /**
+         * Returns offset of content in the container.
+         * @return content offset.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        @Override
+        public String getLinkTarget() {
+            return operation == Operation.LINK ? origin : null;
+        }
+
+        @Override
+        public MetaFile getParent() {
+            return parent;
+        }
+
+        @Override
+        public String getName() {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        @Override
+        public boolean isFile() {
+            return operation != Operation.DIRECTORY;
+        }
+
+        @Override
+        public Map<String, Entry> getFiles() {
+            return isFile() ? null : Collections.unmodifiableMap(children);
+        }
+
+        @Override
+        public byte[] getHash(String hashFunc) {
+            if ((hash != null) && HASH_FUNC.equals(HashManager.getHashManager().getCanonicalName(hashFunc))) {
+                return Arrays.copyOf(hash, hash.length);
+            }
+            return null;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            throw new IOException("Use IndexedPatch.getInputStream(Entry) to read content");
+        }
+    }
+
+    /**
+     * Writes content of files and collects entries. Content of files with the same content
+     * is written once, entries of duplicates refer to it.
+     */
+    private static class ContentWriter {
+        private Map<String, String> moves;
+        private Map<String, String> duplicates;
+        private CountingOutputStream os;
+        private List<Entry> entries = new ArrayList<>();
+        private Map<String, Entry> stored = new HashMap<>();
+
+        ContentWriter(Map<String, String> moves, Map<String, String> duplicates, CountingOutputStream os) {
+            this.moves = moves;
+            this.duplicates = duplicates;
+            this.os = os;
+        }
+
+        void writeSync(SyncPatch sync, String path) throws IOException {
+            if (sync.getMaster() == null) {
+                entries.add(new Entry(Operation.DELETE, false, path, 0, 0, 0, null, null));
+            } else if (sync.getDependentName() == null) {
+                writeFile(sync.getMaster(), path, true);
+            } else if (sync.getMaster().isFile()) {
+                writeFile(sync.getMaster(), path, false);
+            } else {
+                entries.add(new Entry(Operation.DIRECTORY, false, path, sync.getMaster().getTime(), 0, 0,
+                        null, null));
+                for (SyncPatch s : sync.getSyncs()) {
+                    writeSync(s, SyncPatch.getPath(path, s.getMaster() != null ?
+                            s.getMaster().getName() : s.getDependentName()));
+                }
+            }
+        }
+
+        private void writeFile(MetaFile file, String path, boolean added) throws IOException {
+            String link = FileUtils.getLinkTarget(file);
+            if (link != null) {
+                entries.add(new Entry(Operation.LINK, added, path, file.getTime(), file.getSize(), 0,
+                        link, null));
+            } else if (file.isFile()) {
+                Entry reference = duplicates.containsKey(path) ? stored.get(duplicates.get(path)) : null;
+                if (moves.containsKey(path)) {
+                    entries.add(new Entry(Operation.MOVE, added, path, file.getTime(), file.getSize(), 0,
+                            moves.get(path), file.getHash(HASH_FUNC)));
+                } else if (reference != null) {
+                    entries.add(new Entry(Operation.FILE, added, path, file.getTime(), reference.size,
+                            reference.offset, null, reference.hash));
+                } else {
+                    HashCalculator.Digest digest = HashManager.getHashManager().getCalculator(HASH_FUNC).createDigest();
+                    long offset = os.count;
+                    try (InputStream is = file.getInputStream()) {
+                        FileUtils.copy(is, os, digest);
+                    }
+                    Entry e = new Entry(Operation.FILE, added, path, file.getTime(), os.count - offset, offset,
+                            null, digest.digest());
+                    entries.add(e);
+                    stored.put(path, e);
+                }
+            } else {
+                entries.add(new Entry(Operation.DIRECTORY, added, path, file.getTime(), 0, 0, null, null));
+                for (MetaFile f : file.getFiles().values()) {
+                    writeFile(f, SyncPatch.getPath(path, f.getName()), added);
+                }
+            }
+        }
+    }
+
+    /**
+     * Output stream counting written bytes, so offsets of written data are known.
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Reads region of the channel with positional reads, so several streams can read
+     * the same channel concurrently.
+     */
+    private static class ChannelInputStream extends InputStream {
+        private FileChannel channel;
+        private long pos;
+        private long end;
+
+        ChannelInputStream(FileChannel channel, long offset, long size) {
+            this.channel = channel;
+            this.pos = offset;
+            this.end = offset + size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos >= end) {
+                return -1;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(b, off, (int) Math.min(len, end - pos));
+            int i = channel.read(buf, pos);
+            if (i > 0) {
+                pos += i;
+            }
+            return i;
+        }
+    }
+}
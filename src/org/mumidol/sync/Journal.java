@@ -0,0 +1,429 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checkpoint journal of interrupted synchronization. Serializers record every file as soon as
+ * it is written completely, so synchronization started again with the same journal skips
+ * files which were written already. Recorded file is skipped only if its size and last
+ * modification time are the same as when it was written and its master is the same, otherwise
+ * it is written again.
+ * <p>
+ * Path added by the patch is recorded before it is written, so the resumed run overwrites files
+ * and directories created partially by the interrupted run, while paths which existed before
+ * the first run are still not overwritten.
+ * <p>
+ * Journal also keeps the patch computed by the first run. Trees which are synchronized partially
+ * can't be compared again: times of directories written partially are newer than times of their
+ * masters. So resumed run reads both trees and restores the patch by paths of master files
+ * instead of comparing them.
+ * <p>
+ * Records are appended and flushed one by one, a record written partially when the process was
+ * killed is dropped on load.
+ *
+ * @author Alexander Alexeev
+ */
+public class Journal implements Closeable {
+    private static final int MAGIC = 0x53594E4A; // SYNJ
+    private static final int VERSION = 2;
+
+    private static final int PATCH = 1;
+    private static final int FILE = 2;
+    private static final int STARTED = 3;
+
+    private static final int NO_MASTER = -1;
+    private static final int FIRST = 0;
+    private static final int SECOND = 1;
+
+    private File file;
+    private DataOutputStream out;
+    private Map<String, Entry> entries = new HashMap<>();
+    private Set<String> started = new HashSet<>();
+    private byte[] patch;
+
+    /**
+     * Opens journal, records of the interrupted run are loaded if the journal exists.
+     * @param file journal file.
+     * @throws IOException
+     */
+    public Journal(File file) throws IOException {
+        this.file = file;
+        long length = 0;
+        if (file.exists()) {
+            length = load();
+        }
+        FileOutputStream fos = new FileOutputStream(file, true);
+        fos.getChannel().truncate(length); // drops record written partially
+        out = new DataOutputStream(new BufferedOutputStream(fos));
+        if (length == 0) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.flush();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the journal keeps the patch of interrupted run.
+     * @return <code>true</code> if patch was saved by {@link #setPatch}.
+     */
+    public boolean hasPatch() {
+        return patch != null;
+    }
+
+    /**
+     * Restores the patch of interrupted run. Master files are found by their paths in the trees.
+     * @param first the first synchronized tree.
+     * @param second the second synchronized tree.
+     * @return patch or <code>null</code> if there were no differences.
+     * @throws IOException if master file doesn't exist anymore.
+     */
+    public SyncPatch getPatch(MetaFile first, MetaFile second) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(patch));
+        if (!dis.readBoolean()) {
+            return null;
+        }
+        Map<String, String> moves = new HashMap<>();
+        for (int i = dis.readInt(); i > 0; i--) {
+            moves.put(dis.readUTF(), dis.readUTF());
+        }
+        SyncPatch sync = readSync(dis, first, second);
+        if (!moves.isEmpty()) {
+            sync.setMoves(moves);
+        }
+        return sync;
+    }
+
+    /**
+     * Saves the patch, so it is restored by resumed run instead of comparing trees again.
+     * @param sync patch or <code>null</code> if there are no differences.
+     * @param first the first synchronized tree.
+     * @param second the second synchronized tree.
+     * @throws IOException
+     */
+    public void setPatch(SyncPatch sync, MetaFile first, MetaFile second) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        dos.writeBoolean(sync != null);
+        if (sync != null) {
+            dos.writeInt(sync.getMoves().size());
+            for (Map.Entry<String, String> e : sync.getMoves().entrySet()) {
+                dos.writeUTF(e.getKey());
+                dos.writeUTF(e.getValue());
+            }
+            writeSync(sync, first, second, dos);
+        }
+        dos.flush();
+        patch = bytes.toByteArray();
+        synchronized (this) {
+            out.writeByte(PATCH);
+            out.writeInt(patch.length);
+            out.write(patch);
+            out.flush();
+        }
+    }
+
+    /**
+     * Puts hash sums of recorded files to the cache.
+     * @param hashCache hash cache.
+     */
+    public synchronized void cacheHashes(HashCache hashCache) {
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.hash != null) {
+                hashCache.put(e.getKey(), entry.hashFunc, entry.size, entry.stamp, entry.hash);
+            }
+        }
+    }
+
+    /**
+     * Closes the journal and deletes it, it is called when synchronization is completed.
+     * @throws IOException
+     */
+    public void delete() throws IOException {
+        close();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Couldn't delete journal: " + file);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the file was written completely from the master of the same
+     * size and time and wasn't changed since.
+     * @param file written file.
+     * @param size size of master file.
+     * @param time time of master file.
+     * @return <code>true</code> if writing of the file can be skipped.
+     */
+    boolean isWritten(File file, long size, long time) {
+        Entry e = get(file.getAbsolutePath(), size, time);
+        return (e != null) && (file.length() == size) && (file.lastModified() == e.stamp);
+    }
+
+    /**
+     * Records the file written completely. File time must be set already.
+     * @param file written file.
+     * @param size size of master file.
+     * @param time time of master file.
+     * @param hashFunc hash function or <code>null</code>.
+     * @param hash hash sum of the file or <code>null</code>.
+     * @throws IOException
+     */
+    void written(File file, long size, long time, String hashFunc, byte[] hash) throws IOException {
+        record(file.getAbsolutePath(), size, time, file.lastModified(), hashFunc, hash);
+    }
+
+    /**
+     * Returns <code>true</code> if writing of the added path was started by this or interrupted
+     * run, so the existing path was created by the synchronization and can be overwritten.
+     * @param file added file or directory.
+     * @return <code>true</code> if the path was recorded by {@link #started}.
+     */
+    synchronized boolean isStarted(File file) {
+        return started.contains(file.getAbsolutePath());
+    }
+
+    /**
+     * Records the added path before it is written.
+     * @param file added file or directory.
+     * @throws IOException
+     */
+    synchronized void started(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        if (started.add(key)) {
+            out.writeByte(STARTED);
+            out.writeUTF(key);
+            out.flush();
+        }
+    }
+
+    /**
+     * Returns record of the file written from the master of the same size and time.
+     * @param key file key, for example absolute path.
+     * @param size size of master file.
+     * @param time time of master file.
+     * @return record or <code>null</code>.
+     */
+    synchronized Entry get(String key, long size, long time) {
+        Entry e = entries.get(key);
+        return (e != null) && (e.size == size) && (e.time == time) ? e : null;
+    }
+
+    /**
+     * Appends record of the file written completely.
+     * @param key file key, for example absolute path.
+     * @param size size of master file.
+     * @param time time of master file.
+     * @param stamp stamp of written file, for example its last modification time.
+     * @param hashFunc hash function or <code>null</code>.
+     * @param hash hash sum of the file or <code>null</code>.
+     * @throws IOException
+     */
+    synchronized void record(String key, long size, long time, long stamp, String hashFunc, byte[] hash)
+            throws IOException {
+        if ((hashFunc == null) || (hash == null)) {
+            hashFunc = null;
+            hash = null;
+        }
+        out.writeByte(FILE);
+        out.writeUTF(key);
+        out.writeLong(size);
+        out.writeLong(time);
+        out.writeLong(stamp);
+        out.writeUTF(hashFunc != null ? hashFunc : "");
+        out.writeShort(hash != null ? hash.length : 0);
+        if (hash != null) {
+            out.write(hash);
+        }
+        out.flush();
+        entries.put(key, new Entry(size, time, stamp, hashFunc, hash));
+    }
+
+    /**
+     * Loads records.
+     * @return length of complete records.
+     */
+    private long load() throws IOException {
+        try (CountingInputStream cis = new CountingInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            DataInputStream dis = new DataInputStream(cis);
+            long length = 0;
+            try {
+                if (dis.readInt() != MAGIC) {
+                    throw new IOException("Not a journal: " + file);
+                }
+                if (dis.readUnsignedByte() > VERSION) {
+                    throw new IOException("Unsupported journal version: " + file);
+                }
+                length = cis.count;
+                for (int type = dis.read(); type != -1; type = dis.read()) {
+                    if (type == PATCH) {
+                        byte[] b = new byte[dis.readInt()];
+                        dis.readFully(b);
+                        patch = b;
+                    } else if (type == FILE) {
+                        String key = dis.readUTF();
+                        long size = dis.readLong();
+                        long time = dis.readLong();
+                        long stamp = dis.readLong();
+                        String hashFunc = dis.readUTF();
+                        byte[] hash = new byte[dis.readUnsignedShort()];
+                        dis.readFully(hash);
+                        entries.put(key, new Entry(size, time, stamp,
+                                hashFunc.isEmpty() ? null : hashFunc, hash.length > 0 ? hash : null));
+                    } else if (type == STARTED) {
+                        started.add(dis.readUTF());
+                    } else {
+                        throw new IOException("Corrupted journal: " + file);
+                    }
+                    length = cis.count;
+                }
+            } catch (EOFException e) {
+                // the last record is written partially
+            }
+            return length;
+        }
+    }
+
+    private void writeSync(SyncPatch sync, MetaFile first, MetaFile second, DataOutputStream dos)
+            throws IOException {
+        MetaFile master = sync.getMaster();
+        if (master == null) {
+            dos.writeByte(NO_MASTER);
+        } else {
+            MetaFile root = master;
+            while (root.getParent() != null) {
+                root = root.getParent();
+            }
+            if (root == first) {
+                dos.writeByte(FIRST);
+            } else if (root == second) {
+                dos.writeByte(SECOND);
+            } else {
+                throw new IllegalArgumentException("Master file is out of synchronized trees");
+            }
+            dos.writeUTF(getPath(master));
+        }
+        dos.writeBoolean(sync.getDependentName() != null);
+        if (sync.getDependentName() != null) {
+            dos.writeUTF(sync.getDependentName());
+        }
+        if (sync.getSyncs() == null) {
+            dos.writeInt(-1);
+        } else {
+            dos.writeInt(sync.getSyncs().size());
+            for (SyncPatch s : sync.getSyncs()) {
+                writeSync(s, first, second, dos);
+            }
+        }
+    }
+
+    private SyncPatch readSync(DataInputStream dis, MetaFile first, MetaFile second) throws IOException {
+        MetaFile master = null;
+        int side = dis.readByte();
+        if (side != NO_MASTER) {
+            String path = dis.readUTF();
+            master = find(side == FIRST ? first : second, path);
+            if (master == null) {
+                throw new IOException("File was changed since synchronization was interrupted: " + path);
+            }
+        }
+        String depName = dis.readBoolean() ? dis.readUTF() : null;
+        int count = dis.readInt();
+        if (count == -1) {
+            return new SyncPatch(master, depName);
+        }
+        Set<SyncPatch> syncs = new LinkedHashSet<>();
+        for (int i = 0; i < count; i++) {
+            syncs.add(readSync(dis, first, second));
+        }
+        return new SyncPatch(master, depName, syncs);
+    }
+
+    private static String getPath(MetaFile file) {
+        if (file.getParent() == null) {
+            return "";
+        }
+        return SyncPatch.getPath(getPath(file.getParent()), file.getName());
+    }
+
+    private static MetaFile find(MetaFile root, String path) {
+        MetaFile file = root;
+        if ((file != null) && !path.isEmpty()) {
+            for (String name : path.split("/")) {
+                if (file.isFile()) {
+                    return null;
+                }
+                file = file.getFiles().get(name);
+                if (file == null) {
+                    return null;
+                }
+            }
+        }
+        return file;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Record of written file.
+     */
+    static class Entry {
+        final long size;
+        final long time;
+        final long stamp;
+        final String hashFunc;
+        final byte[] hash;
+
+        Entry(long size, long time, long stamp, String hashFunc, byte[] hash) {
+            this.size = size;
+            this.time = time;
+            this.stamp = stamp;
+            this.hashFunc = hashFunc;
+            this.hash = hash;
+        }
+    }
+}
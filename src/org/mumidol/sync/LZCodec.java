@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fast LZ77 block compressor. Block is a sequence of literal runs followed by back references
+ * within the block, encoded the same way as LZ4 blocks: token with lengths of literals and match,
+ * literals, 2-byte offset of the match. The last sequence has literals only. Compression trades
+ * ratio for speed: only the latest position of every 4-byte sequence is remembered.
+ *
+ * @author Alexander Alexeev
+ */
+class LZCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    private static final int LAST_LITERALS = 5;
+    private static final int MIN_LENGTH = 13;
+    private static final int HASH_BITS = 14;
+
+    private int[] table = new int[1 << HASH_BITS];
+
+    /**
+     * Returns maximal size of compressed block.
+     * @param len size of data.
+     * @return maximal compressed size.
+     */
+    static int maxCompressedLength(int len) {
+        return len + len / 255 + 16;
+    }
+
+    /**
+     * Compresses block.
+     * @param src data to be compressed.
+     * @param len length of data.
+     * @param dst buffer for compressed data of {@link #maxCompressedLength(int)} size at least.
+     * @return length of compressed data.
+     */
+    int compress(byte[] src, int len, byte[] dst) {
+        int anchor = 0;
+        int op = 0;
+        if (len >= MIN_LENGTH) {
+            Arrays.fill(table, -1);
+            int limit = len - MIN_LENGTH + 1;
+            int ip = 0;
+            while (ip < limit) {
+                int seq = readInt(src, ip);
+                int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+                int ref = table[h];
+                table[h] = ip;
+                if ((ref >= 0) && (ip - ref <= MAX_OFFSET) && (readInt(src, ref) == seq)) {
+                    int matchLimit = len - LAST_LITERALS;
+                    int mlen = MIN_MATCH;
+                    while ((ip + mlen < matchLimit) && (src[ref + mlen] == src[ip + mlen])) {
+                        mlen++;
+                    }
+                    op = writeSequence(src, anchor, ip - anchor, ip - ref, mlen, dst, op);
+                    ip += mlen;
+                    anchor = ip;
+                } else {
+                    ip++;
+                }
+            }
+        }
+        return writeSequence(src, anchor, len - anchor, 0, 0, dst, op);
+    }
+
+    /**
+     * Decompresses block.
+     * @param src compressed data.
+     * @param srcLen length of compressed data.
+     * @param dst buffer for decompressed data.
+     * @param dstLen length of decompressed data.
+     * @throws IOException if data are corrupted.
+     */
+    static void decompress(byte[] src, int srcLen, byte[] dst, int dstLen) throws IOException {
+        int ip = 0;
+        int op = 0;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xFF;
+                int lit = token >>> 4;
+                if (lit == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        lit += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, lit);
+                ip += lit;
+                op += lit;
+                if (ip >= srcLen) {
+                    break;
+                }
+                int offset = (src[ip++] & 0xFF) | ((src[ip++] & 0xFF) << 8);
+                int mlen = token & 15;
+                if (mlen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        mlen += b;
+                    } while (b == 255);
+                }
+                mlen += MIN_MATCH;
+                if ((offset == 0) || (offset > op) || (op + mlen > dstLen)) {
+                    throw new IOException("Corrupted compressed block");
+                }
+                for (int i = 0; i < mlen; i++) { // match may overlap copied bytes
+                    dst[op + i] = dst[op - offset + i];
+                }
+                op += mlen;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupted compressed block", e);
+        }
+        if ((ip != srcLen) || (op != dstLen)) {
+            throw new IOException("Corrupted compressed block");
+        }
+    }
+
+    private static int writeSequence(byte[] src, int anchor, int lit, int offset, int mlen,
+            byte[] dst, int op) {
+        int token = op++;
+        int m = mlen > 0 ? mlen - MIN_MATCH : 0;
+        dst[token] = (byte) ((Math.min(lit, 15) << 4) | Math.min(m, 15));
+        if (lit >= 15) {
+            op = writeLength(lit - 15, dst, op);
+        }
+        System.arraycopy(src, anchor, dst, op, lit);
+        op += lit;
+        if (mlen > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            if (m >= 15) {
+                op = writeLength(m - 15, dst, op);
+            }
+        }
+        return op;
+    }
+
+    private static int writeLength(int len, byte[] dst, int op) {
+        while (len >= 255) {
+            dst[op++] = (byte) 255;
+            len -= 255;
+        }
+        dst[op++] = (byte) len;
+        return op;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) | ((b[i + 2] & 0xFF) << 16) | (b[i + 3] << 24);
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+/**
+ * File which can be a symbolic link. Link is an ordinary file which content is the path it
+ * points to, so serializers which don't support links store it as a small file like version
+ * control systems do. Serializers supporting links create link instead of copying the content.
+ *
+ * @author Alexander Alexeev
+ */
+public interface LinkMetaFile extends MetaFile {
+    /**
+     * Returns path the link points to as it is stored in the link, relative path isn't resolved.
+     * @return target path or <code>null</code> if file isn't a link.
+     */
+    String getLinkTarget();
+}
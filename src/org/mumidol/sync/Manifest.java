@@ -0,0 +1,232 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact snapshot of a file tree: names, sizes, last modification times and hash sums of files
+ * without content. Manifest can be synchronized with a real tree to find changes, but can't be
+ * used as a master copy.
+ *
+ * @author Alexander Alexeev
+ */
+class Manifest {
+    private static final int MAGIC = 0x53594E4D; // SYNM
+    private static final int VERSION = 1;
+
+    private Manifest() {
+    }
+
+    /**
+     * Saves snapshot of the tree to the OutputStream. Hash sums which aren't known by files are
+     * calculated.
+     *
+     * @param tree tree to be saved.
+     * @param hashFunc hash function.
+     * @param os output stream manifest to be saved to.
+     * @throws IOException
+     */
+    static void save(MetaFile tree, String hashFunc, OutputStream os) throws IOException {
+        HashCalculator calculator = HashManager.getHashManager().getCalculator(hashFunc);
+        if (calculator == null) {
+            throw new IllegalArgumentException("Unsupported hash function: " + hashFunc);
+        }
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os))) {
+            dos.writeInt(MAGIC);
+            dos.writeByte(VERSION);
+            dos.writeUTF(HashManager.getHashManager().getCanonicalName(hashFunc));
+            writeFile(tree, hashFunc, calculator, dos);
+        }
+    }
+
+    /**
+     * Saves snapshot of the tree to the file. Manifest is written to a temporary file in the same
+     * directory first and replaces the file then, so interrupted saving keeps previous manifest.
+     *
+     * @param tree tree to be saved.
+     * @param hashFunc hash function.
+     * @param file manifest file.
+     * @throws IOException
+     */
+    static void save(MetaFile tree, String hashFunc, File file) throws IOException {
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            save(tree, hashFunc, new FileOutputStream(temp));
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Loads snapshot from the InputStream.
+     * @param is input stream manifest to be loaded from.
+     * @return root of the loaded tree.
+     * @throws IOException
+     */
+    static ManifestMetaFile load(InputStream is) throws IOException {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(is))) {
+            if (dis.readInt() != MAGIC) {
+                throw new IOException("Unknown manifest format");
+            }
+            int version = dis.readUnsignedByte();
+            if (version > VERSION) {
+                throw new IOException("Unsupported manifest version: " + version);
+            }
+            String hashFunc = dis.readUTF();
+            return readFile(null, hashFunc, dis);
+        }
+    }
+
+    private static void writeFile(MetaFile file, String hashFunc, HashCalculator calculator,
+            DataOutputStream dos) throws IOException {
+        dos.writeUTF(file.getName());
+        dos.writeBoolean(file.isFile());
+        dos.writeLong(file.getTime());
+        if (file.isFile()) {
+            dos.writeLong(file.getSize());
+            byte[] hash = file.getHash(hashFunc);
+            if (hash == null) {
+                try (InputStream is = file.getInputStream()) {
+                    hash = calculator.calculate(is);
+                }
+                if (file instanceof HashCache.Cacheable) {
+                    ((HashCache.Cacheable) file).cacheHash(hashFunc, hash);
+                }
+            }
+            dos.writeShort(hash.length);
+            dos.write(hash);
+        } else {
+            dos.writeInt(file.getFiles().size());
+            for (MetaFile f : file.getFiles().values()) {
+                writeFile(f, hashFunc, calculator, dos);
+            }
+        }
+    }
+
+    private static ManifestMetaFile readFile(ManifestMetaFile parent, String hashFunc,
+            DataInputStream dis) throws IOException {
+        String name = dis.readUTF();
+        boolean isFile = dis.readBoolean();
+        long time = dis.readLong();
+        if (isFile) {
+            long size = dis.readLong();
+            byte[] hash = new byte[dis.readUnsignedShort()];
+            dis.readFully(hash);
+            return new ManifestMetaFile(parent, name, time, size, hashFunc, hash);
+        } else {
+            int count = dis.readInt();
+            Map<String, ManifestMetaFile> files = new HashMap<>(count);
+            ManifestMetaFile dir = new ManifestMetaFile(parent, name, time, hashFunc, files);
+            for (int i = 0; i < count; i++) {
+                ManifestMetaFile f = readFile(dir, hashFunc, dis);
+                files.put(f.getName(), f);
+            }
+            return dir;
+        }
+    }
+
+    static class ManifestMetaFile implements MetaFile {
+        private ManifestMetaFile parent;
+        private String name;
+        private boolean isFile;
+        private Map<String, ManifestMetaFile> files;
+        private long size;
+        private long time;
+        private String hashFunc;
+        private byte[] hash;
+
+        private ManifestMetaFile(ManifestMetaFile parent, String name, long time, long size,
+                String hashFunc, byte[] hash) {
+            this.parent = parent;
+            this.name = name;
+            this.isFile = true;
+            this.time = time;
+            this.size = size;
+            this.hashFunc = hashFunc;
+            this.hash = hash;
+        }
+
+        private ManifestMetaFile(ManifestMetaFile parent, String name, long time, String hashFunc,
+                Map<String, ManifestMetaFile> files) {
+            this.parent = parent;
+            this.name = name;
+            this.isFile = false;
+            this.time = time;
+            this.hashFunc = hashFunc;
+            this.files = Collections.unmodifiableMap(files);
+        }
+
+        /**
+         * Returns hash function used to calculate hash sums of the manifest.
+         * @return hash function canonical name.
+         */
+        String getHashFunction() {
+            return hashFunc;
+        }
+
+        @Override
+        public MetaFile getParent() {
+            return parent;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isFile() {
+            return isFile;
+        }
+
+        @Override
+        public Map<String, ManifestMetaFile> getFiles() {
+            return files;
+        }
+
+        @Override
+        public byte[] getHash(String hashFunc) {
+            if (isFile && this.hashFunc.equals(HashManager.getHashManager().getCanonicalName(hashFunc))) {
+                return Arrays.copyOf(hash, hash.length);
+            }
+            return null;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (!isFile) {
+                return null;
+            }
+            throw new IOException("Content isn't stored in manifest: " + name);
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of synchronization: counters of files and bytes, time of phases and latency of
+ * hashing and writing of single files. Metrics are populated by serializers,
+ * {@link Synchronizer} and hash calculators of {@link HashManager} as they work.
+ * <p>
+ * Every {@link SyncEngine} has its own metrics: while the engine runs, metrics of the engine are
+ * bound to the calling thread and threads started by it, so engines running at the same time
+ * report separately. Work which isn't run by an engine is reported to metrics of the process.
+ * <p>
+ * Time of a phase is summed over all its calls, so phases called by several threads or nested
+ * in other phases (hashing is a part of comparison) may take more time than the whole run.
+ * CPU time is measured for the calling thread, if the JVM supports it.
+ * <p>
+ * Listeners are notified when a phase starts and finishes, so phases can be traced by
+ * profilers or event recorders.
+ *
+ * @author Alexander Alexeev
+ */
+public class Metrics {
+    /**
+     * Phases of synchronization.
+     */
+    public enum Phase {
+        /** tree is read by {@link Serializer#read()} */
+        SCAN,
+        /** tree is sifted by matcher */
+        SIEVE,
+        /** trees are compared by {@link Synchronizer#sync} */
+        COMPARE,
+        /** hash sum of a file is calculated by {@link HashCalculator#calculate} */
+        HASH,
+        /** patch is applied by {@link Serializer#patch(SyncPatch)} */
+        APPLY
+    }
+
+    /**
+     * Counters of files and bytes.
+     */
+    public enum Counter {
+        FILES_SCANNED,
+        FILES_WRITTEN,
+        BYTES_READ,
+        BYTES_COMPARED,
+        BYTES_HASHED,
+        BYTES_WRITTEN,
+        HASH_CACHE_HITS,
+        HASH_CACHE_MISSES
+    }
+
+    /**
+     * Listener of phases.
+     */
+    public interface Listener {
+        /**
+         * Phase is started.
+         * @param phase phase.
+         * @param subject processed file or tree, may be <code>null</code>.
+         */
+        void phaseStarted(Phase phase, String subject);
+
+        /**
+         * Phase is finished.
+         * @param phase phase.
+         * @param subject processed file or tree, may be <code>null</code>.
+         * @param wallTime wall time in nanoseconds.
+         * @param cpuTime CPU time in nanoseconds or -1 if it isn't measured.
+         */
+        void phaseFinished(Phase phase, String subject, long wallTime, long cpuTime);
+    }
+
+    private static final Metrics metrics = new Metrics();
+    private static final InheritableThreadLocal<Metrics> bound = new InheritableThreadLocal<>();
+
+    private ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+    private AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+    private AtomicLongArray calls = new AtomicLongArray(Phase.values().length);
+    private AtomicLongArray wallTimes = new AtomicLongArray(Phase.values().length);
+    private AtomicLongArray cpuTimes = new AtomicLongArray(Phase.values().length);
+    private Histogram hashLatency = new Histogram();
+    private Histogram writeLatency = new Histogram();
+    private List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates empty metrics, for example metrics shared by several engines.
+     */
+    public Metrics() {
+    }
+
+    /**
+     * Returns metrics the calling thread reports to: metrics of the engine running on the thread
+     * or metrics of the process.
+     * @return metrics.
+     */
+    public static Metrics getMetrics() {
+        Metrics m = bound.get();
+        return m != null ? m : metrics;
+    }
+
+    /**
+     * Binds metrics to the calling thread and threads it starts.
+     * @param m metrics or <code>null</code> to report to metrics of the process.
+     * @return metrics bound before, they are restored when the bound work is finished.
+     */
+    static Metrics bind(Metrics m) {
+        Metrics previous = bound.get();
+        if (m != null) {
+            bound.set(m);
+        } else {
+            bound.remove();
+        }
+        return previous;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns value of the counter.
+     * @param counter counter.
+     * @return value.
+     */
+    public long get(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    /**
+     * Returns number of calls of the phase.
+     * @param phase phase.
+     * @return number of calls.
+     */
+    public long getCalls(Phase phase) {
+        return calls.get(phase.ordinal());
+    }
+
+    /**
+     * Returns wall time of the phase summed over its calls.
+     * @param phase phase.
+     * @return time in nanoseconds.
+     */
+    public long getWallTime(Phase phase) {
+        return wallTimes.get(phase.ordinal());
+    }
+
+    /**
+     * Returns CPU time of the phase summed over its calls.
+     * @param phase phase.
+     * @return time in nanoseconds.
+     */
+    public long getCpuTime(Phase phase) {
+        return cpuTimes.get(phase.ordinal());
+    }
+
+    /**
+     * Returns ratio of hash sums found in hash caches.
+     * @return hit rate from 0 to 1 or 0 if hash caches weren't used.
+     */
+    public double getHashCacheHitRate() {
+        long hits = get(Counter.HASH_CACHE_HITS);
+        long total = hits + get(Counter.HASH_CACHE_MISSES);
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    /**
+     * Returns latency of hash sum calculation of single files.
+     * @return histogram.
+     */
+    public Histogram getHashLatency() {
+        return hashLatency;
+    }
+
+    /**
+     * Returns latency of writing of single files.
+     * @return histogram.
+     */
+    public Histogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    /**
+     * Clears all metrics.
+     */
+    public void reset() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        for (int i = 0; i < calls.length(); i++) {
+            calls.set(i, 0);
+            wallTimes.set(i, 0);
+            cpuTimes.set(i, 0);
+        }
+        hashLatency.reset();
+        writeLatency.reset();
+    }
+
+    /**
+     * Prints human readable summary.
+     * @param out stream to print to.
+     */
+    public void printSummary(PrintStream out) {
+        out.println("Phase          calls     wall ms      cpu ms");
+        for (Phase phase : Phase.values()) {
+            out.println(String.format(Locale.ROOT, "%-9s %10d %11.1f %11.1f", phase.name().toLowerCase(Locale.ROOT),
+                    getCalls(phase), getWallTime(phase) / 1e6, getCpuTime(phase) / 1e6));
+        }
+        for (Counter counter : Counter.values()) {
+            out.println(String.format(Locale.ROOT, "%-18s %14d", counter.name().toLowerCase(Locale.ROOT),
+                    get(counter)));
+        }
+        out.println(String.format(Locale.ROOT, "%-18s %13.1f%%", "hash_cache_hit_rate",
+                getHashCacheHitRate() * 100));
+        out.println(String.format(Locale.ROOT, "hash latency us:  p50 %d, p90 %d, p99 %d, max %d",
+                hashLatency.getPercentile(50), hashLatency.getPercentile(90),
+                hashLatency.getPercentile(99), hashLatency.getPercentile(100)));
+        out.println(String.format(Locale.ROOT, "write latency us: p50 %d, p90 %d, p99 %d, max %d",
+                writeLatency.getPercentile(50), writeLatency.getPercentile(90),
+                writeLatency.getPercentile(99), writeLatency.getPercentile(100)));
+    }
+
+    /**
+     * Writes metrics as JSON object.
+     * @param writer writer.
+     * @throws IOException
+     */
+    public void writeJson(Writer writer) throws IOException {
+        StringBuilder sb = new StringBuilder("{\n  \"counters\": {");
+        String separator = "\n";
+        for (Counter counter : Counter.values()) {
+            sb.append(separator).append("    \"").append(counter.name().toLowerCase(Locale.ROOT))
+                    .append("\": ").append(get(counter));
+            separator = ",\n";
+        }
+        sb.append(",\n    \"hash_cache_hit_rate\": ")
+                .append(String.format(Locale.ROOT, "%.4f", getHashCacheHitRate()));
+        sb.append("\n  },\n  \"phases\": {");
+        separator = "\n";
+        for (Phase phase : Phase.values()) {
+            sb.append(separator).append("    \"").append(phase.name().toLowerCase(Locale.ROOT))
+                    .append("\": {\"calls\": ").append(getCalls(phase))
+                    .append(", \"wall_ns\": ").append(getWallTime(phase))
+                    .append(", \"cpu_ns\": ").append(getCpuTime(phase)).append("}");
+            separator = ",\n";
+        }
+        sb.append("\n  },\n  \"latency_us\": {\n    \"hash\": ");
+        hashLatency.appendJson(sb);
+        sb.append(",\n    \"write\": ");
+        writeLatency.appendJson(sb);
+        sb.append("\n  }\n}\n");
+        writer.write(sb.toString());
+        writer.flush();
+    }
+
+    /**
+     * Starts timing of the phase.
+     * @param phase phase.
+     * @param subject processed file or tree, may be <code>null</code>.
+     * @return timer to be stopped when the phase is finished.
+     */
+    Timer start(Phase phase, String subject) {
+        for (Listener listener : listeners) {
+            listener.phaseStarted(phase, subject);
+        }
+        return new Timer(phase, subject);
+    }
+
+    void add(Counter counter, long n) {
+        counters.addAndGet(counter.ordinal(), n);
+    }
+
+    /**
+     * Counts written file.
+     * @param bytes number of written bytes.
+     * @param start {@link System#nanoTime()} when writing was started.
+     */
+    void fileWritten(long bytes, long start) {
+        add(Counter.FILES_WRITTEN, 1);
+        add(Counter.BYTES_WRITTEN, bytes);
+        writeLatency.add(System.nanoTime() - start);
+    }
+
+    /**
+     * Returns stream counting bytes read from the underlying stream.
+     * @param is input stream of a file.
+     * @return counting stream.
+     */
+    InputStream read(InputStream is) {
+        return new FilterInputStream(is) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b != -1) {
+                    add(Counter.BYTES_READ, 1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0) {
+                    add(Counter.BYTES_READ, n);
+                }
+                return n;
+            }
+        };
+    }
+
+    private long getThreadCpuTime() {
+        return cpuTime ? threads.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * Timer of a phase call.
+     */
+    class Timer {
+        private Phase phase;
+        private String subject;
+        private long start = System.nanoTime();
+        private long cpuStart = getThreadCpuTime();
+
+        private Timer(Phase phase, String subject) {
+            this.phase = phase;
+            this.subject = subject;
+        }
+
+        /**
+         * Stops timing and notifies listeners.
+         */
+        void stop() {
+            long wall = System.nanoTime() - start;
+            long cpu = cpuStart != -1 ? getThreadCpuTime() - cpuStart : -1;
+            calls.incrementAndGet(phase.ordinal());
+            wallTimes.addAndGet(phase.ordinal(), wall);
+            if (cpu != -1) {
+                cpuTimes.addAndGet(phase.ordinal(), cpu);
+            }
+            if (phase == Phase.HASH) {
+                hashLatency.add(wall);
+            }
+            for (Listener listener : listeners) {
+                listener.phaseFinished(phase, subject, wall, cpu);
+            }
+        }
+    }
+
+    /**
+     * Histogram of latency with buckets of powers of two microseconds.
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 40;
+
+        private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        /**
+         * Returns number of recorded values.
+         * @return number of values.
+         */
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * Returns upper bound of the bucket containing the percentile.
+         * @param percentile percentile from 0 to 100.
+         * @return latency in microseconds or 0 if there are no values.
+         */
+        public long getPercentile(double percentile) {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if ((seen >= rank) && (buckets.get(i) > 0)) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKETS - 1);
+        }
+
+        void add(long nanos) {
+            long micros = nanos / 1000;
+            int i = 64 - Long.numberOfLeadingZeros(micros); // micros < 2^i
+            buckets.incrementAndGet(Math.min(i, BUCKETS - 1));
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+        }
+
+        private void appendJson(StringBuilder sb) {
+            sb.append("{\"count\": ").append(getCount())
+                    .append(", \"p50\": ").append(getPercentile(50))
+                    .append(", \"p90\": ").append(getPercentile(90))
+                    .append(", \"p99\": ").append(getPercentile(99))
+                    .append(", \"max\": ").append(getPercentile(100))
+                    .append(", \"buckets\": [");
+            int last = BUCKETS - 1;
+            while ((last > 0) && (buckets.get(last) == 0)) {
+                last--;
+            }
+            for (int i = 0; i <= last; i++) {
+                sb.append(i > 0 ? ", " : "").append(buckets.get(i));
+            }
+            sb.append("]}");
+        }
+    }
+}
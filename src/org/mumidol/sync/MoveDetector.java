@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Detects files moved within synchronized tree. File is considered to be moved if patch deletes
+ * one file and adds another one with the same size and content to the same tree, so in patch of
+ * two-way synchronization file deleted from one tree isn't paired with file added to another one.
+ * Content is compared by hash sums if cryptographic hash function is provided, otherwise by
+ * checksum (CRC-32 if hash function isn't provided) confirmed by byte comparison.
+ *
+ * @author Alexander Alexeev
+ */
+class MoveDetector {
+    private static final Set<String> DIGESTS = new HashSet<>(Arrays.asList("MD5", "SHA-1", "SHA-256"));
+
+    private String hashFunc;
+    private boolean trusted;
+    private Map<MetaFile, byte[]> hashes = new IdentityHashMap<>();
+
+    private MoveDetector(String hashFunc) {
+        HashManager manager = HashManager.getHashManager();
+        boolean known = (hashFunc != null) && (manager.getCalculator(hashFunc) != null);
+        this.hashFunc = known ? hashFunc : "CRC-32";
+        // checksums like CRC-32 collide, so files with equal checksums are compared byte by byte
+        trusted = known && DIGESTS.contains(manager.getCanonicalName(hashFunc));
+    }
+
+    /**
+     * Finds moved files and stores them in the patch.
+     * @param patch patch to be processed.
+     * @param hashFunc hash function to be used to compare files or <code>null</code>.
+     * @throws IOException
+     * @see SyncPatch#getMoves()
+     */
+    static void detect(SyncPatch patch, String hashFunc) throws IOException {
+        if ((patch.getMaster() == null) || patch.getMaster().isFile() || (patch.getSyncs() == null)) {
+            return;
+        }
+        Map<String, MetaFile> added = new LinkedHashMap<>();
+        Map<Long, List<Origin>> removed = new HashMap<>();
+        for (SyncPatch s : patch.getSyncs()) {
+            collect(s, "", added, removed);
+        }
+        if (added.isEmpty() || removed.isEmpty()) {
+            return;
+        }
+
+        MoveDetector detector = new MoveDetector(hashFunc);
+        Map<String, String> moves = new HashMap<>();
+        for (Map.Entry<String, MetaFile> e : added.entrySet()) {
+            List<Origin> origins = removed.get(e.getValue().getSize());
+            if (origins != null) {
+                Origin origin = detector.find(e.getValue(), getRoot(e.getValue()), origins);
+                if (origin != null) {
+                    origins.remove(origin);
+                    moves.put(e.getKey(), origin.path);
+                }
+            }
+        }
+        if (!moves.isEmpty()) {
+            patch.setMoves(moves);
+        }
+    }
+
+    private static void collect(SyncPatch sync, String path, Map<String, MetaFile> added,
+            Map<Long, List<Origin>> removed) {
+        String name = sync.getMaster() != null ? sync.getMaster().getName() : sync.getDependentName();
+        String p = SyncPatch.getPath(path, name);
+        if (sync.getMaster() == null) {
+            if (sync.getDependent() != null) {
+                collectRemoved(sync.getDependent(), p, removed);
+            }
+        } else if (sync.getDependentName() == null) {
+            collectAdded(sync.getMaster(), p, added);
+        } else if (sync.getSyncs() != null) {
+            for (SyncPatch s : sync.getSyncs()) {
+                collect(s, p, added, removed);
+            }
+        }
+    }
+
+    private static void collectAdded(MetaFile file, String path, Map<String, MetaFile> added) {
+        if (file.isFile()) {
+            if ((file.getSize() > 0) && !FileUtils.isLink(file)) {
+                added.put(path, file);
+            }
+        } else {
+            for (MetaFile f : file.getFiles().values()) {
+                collectAdded(f, SyncPatch.getPath(path, f.getName()), added);
+            }
+        }
+    }
+
+    private static void collectRemoved(MetaFile file, String path, Map<Long, List<Origin>> removed) {
+        if (file.isFile()) {
+            if ((file.getSize() > 0) && !FileUtils.isLink(file)) {
+                List<Origin> origins = removed.get(file.getSize());
+                if (origins == null) {
+                    origins = new ArrayList<>();
+                    removed.put(file.getSize(), origins);
+                }
+                origins.add(new Origin(path, file));
+            }
+        } else {
+            for (MetaFile f : file.getFiles().values()) {
+                collectRemoved(f, SyncPatch.getPath(path, f.getName()), removed);
+            }
+        }
+    }
+
+    /**
+     * Finds origin deleted from the tree the file is added to, that is the tree master file
+     * doesn't belong to.
+     */
+    private Origin find(MetaFile file, MetaFile root, List<Origin> origins) throws IOException {
+        // files with the same name are checked first
+        List<Origin> sorted = new ArrayList<>(origins.size());
+        for (Origin o : origins) {
+            if (o.root != root) {
+                if (o.file.getName().equals(file.getName())) {
+                    sorted.add(0, o);
+                } else {
+                    sorted.add(o);
+                }
+            }
+        }
+        byte[] hash = getHash(file);
+        for (Origin o : sorted) {
+            if (Arrays.equals(hash, getHash(o.file)) && (trusted || isEqual(file, o.file))) {
+                return o;
+            }
+        }
+        return null;
+    }
+
+    private byte[] getHash(MetaFile file) throws IOException {
+        byte[] hash = hashes.get(file);
+        if (hash == null) {
+            hash = file.getHash(hashFunc);
+            if (hash == null) {
+                try (InputStream is = file.getInputStream()) {
+                    hash = HashManager.getHashManager().getCalculator(hashFunc).calculate(is);
+                }
+            }
+            hashes.put(file, hash);
+        }
+        return hash;
+    }
+
+    private static MetaFile getRoot(MetaFile file) {
+        while (file.getParent() != null) {
+            file = file.getParent();
+        }
+        return file;
+    }
+
+    private static boolean isEqual(MetaFile first, MetaFile second) throws IOException {
+        try (InputStream fis = first.getInputStream(); InputStream sis = second.getInputStream()) {
+            return FileUtils.isEqual(fis, sis);
+        }
+    }
+
+    private static class Origin {
+        private String path;
+        private MetaFile file;
+        private MetaFile root;
+
+        Origin(String path, MetaFile file) {
+            this.path = path;
+            this.file = file;
+            this.root = getRoot(file);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Composes ordered chain of patches into one patch which changes a tree the same way as the chain
+ * applied in sequence. Every patch of the chain is overlaid on the state left by the previous ones,
+ * so only the latest content of a file is kept and files deleted within the chain are dropped.
+ * Content is copied out of the patch, so the patch isn't referenced once it is added.
+ * <p>
+ * Files moved by a patch refer either to content stored by the previous patches or to the file
+ * the tree had before the first patch, so moves are kept in the composed patch when it is possible.
+ *
+ * @author Alexander Alexeev
+ */
+class PatchComposer {
+    private Node root;
+
+    /**
+     * Overlays the next patch of the chain.
+     * @param patch patch to be added.
+     * @throws IOException if patch can't be applied to the state left by the previous patches.
+     */
+    void add(SyncPatch patch) throws IOException {
+        Map<String, Node> sources = new HashMap<>();
+        for (Map.Entry<String, String> e : patch.getMoves().entrySet()) {
+            sources.put(e.getKey(), find(e.getValue()));
+        }
+        if (root == null) {
+            root = new Node(null, name(patch));
+            root.depName = patch.getDependentName();
+        }
+        apply(root, patch, "", sources);
+    }
+
+    /**
+     * Returns composed patch.
+     * @return composed patch or <code>null</code> if the chain has no effect.
+     * @throws IOException if the composition can't be expressed by a single patch.
+     */
+    SyncPatch getPatch() throws IOException {
+        if (root == null) {
+            return null;
+        }
+        Map<String, String> moves = new HashMap<>();
+        Set<String> origins = new HashSet<>();
+        collectMoves(root, "", false, moves, origins);
+
+        Set<SyncPatch> syncs = new LinkedHashSet<>();
+        emit(root, root.depName != null ? root.depName : root.name, syncs);
+        if (syncs.size() > 1) { // root is deleted and created again
+            throw new IOException("Patches can't be squashed: root directory is replaced");
+        }
+        SyncPatch patch = syncs.isEmpty() ? null : syncs.iterator().next();
+        if ((patch != null) && !moves.isEmpty()) {
+            patch.setMoves(moves);
+        }
+        return patch;
+    }
+
+    private void apply(Node node, SyncPatch sync, String path, Map<String, Node> sources)
+            throws IOException {
+        if (!node.touched) {
+            node.touched = true;
+            node.existed = sync.getDependentName() != null ? Boolean.TRUE : null;
+            if (sync.getMaster() == null) {
+                node.baseFile = null;
+            } else {
+                // added file may replace file of the other type
+                node.baseFile = sync.getDependentName() != null ?
+                        sync.getMaster().isFile() : !sync.getMaster().isFile();
+            }
+        }
+        if (sync.getMaster() == null) {
+            node.present = false;
+            node.complete = false;
+            node.children.clear();
+            node.content = null;
+            node.origin = null;
+        } else if (sync.getDependentName() == null) {
+            if (node.present && (node.isFile == sync.getMaster().isFile())) {
+                return; // existing files aren't replaced by added ones
+            }
+            node.children.clear();
+            setTree(node, sync.getMaster(), path, sources);
+        } else if (sync.getMaster().isFile()) {
+            setTree(node, sync.getMaster(), path, sources);
+        } else {
+            node.present = true;
+            node.isFile = false;
+            node.name = sync.getMaster().getName();
+            node.time = sync.getMaster().getTime();
+            for (SyncPatch s : sync.getSyncs()) {
+                String name = name(s);
+                Node child = node.children.get(name);
+                if (child == null) {
+                    child = new Node(node, name);
+                    if (node.complete) { // directory was created by the chain
+                        child.touched = true;
+                        child.existed = Boolean.FALSE;
+                    }
+                    node.children.put(name, child);
+                }
+                apply(child, s, SyncPatch.getPath(path, name), sources);
+            }
+        }
+    }
+
+    private void setTree(Node node, MetaFile master, String path, Map<String, Node> sources)
+            throws IOException {
+        node.present = true;
+        node.isFile = master.isFile();
+        node.name = master.getName();
+        node.time = master.getTime();
+        node.content = null;
+        node.origin = null;
+        node.target = null;
+        if (master.isFile()) {
+            node.size = master.getSize();
+            Node source = sources.get(path);
+            if (source == null) {
+                node.target = FileUtils.getLinkTarget(master);
+                node.content = node.target == null ? read(master) : null;
+            } else if (source.content != null) { // moved file was stored by the previous patch
+                node.content = source.content;
+            } else {
+                node.origin = source.origin;
+            }
+        } else {
+            node.complete = true;
+            for (MetaFile f : master.getFiles().values()) {
+                Node child = new Node(node, f.getName());
+                child.touched = true;
+                child.existed = Boolean.FALSE;
+                node.children.put(f.getName(), child);
+                setTree(child, f, SyncPatch.getPath(path, f.getName()), sources);
+            }
+        }
+    }
+
+    /**
+     * Finds origin of moved file in the current state.
+     */
+    private Node find(String path) throws IOException {
+        Node node = root;
+        for (String name : path.split("/")) {
+            if (node == null) { // file is untouched by the chain
+                Node origin = new Node(null, name);
+                origin.origin = path;
+                return origin;
+            }
+            if (!node.present) {
+                throw new IOException("Patches can't be squashed: origin of moved file is absent: " + path);
+            }
+            Node child = node.children.get(name);
+            if ((child == null) && node.complete) {
+                throw new IOException("Patches can't be squashed: origin of moved file is absent: " + path);
+            }
+            node = child;
+        }
+        if (node == null) {
+            Node origin = new Node(null, path.substring(path.lastIndexOf('/') + 1));
+            origin.origin = path;
+            return origin;
+        }
+        if (!node.present || !node.isFile) {
+            throw new IOException("Patches can't be squashed: origin of moved file is absent: " + path);
+        }
+        Node origin = new Node(null, node.name); // origin itself is changed by the patch
+        origin.content = node.content;
+        origin.origin = node.origin;
+        return origin;
+    }
+
+    private void collectMoves(Node node, String path, boolean replaced, Map<String, String> moves,
+            Set<String> origins) throws IOException {
+        if (!node.present) {
+            return;
+        }
+        if (node.isFile) {
+            if (node.origin != null) {
+                // file is moved before patch is applied, so the target path must be free
+                if (replaced || Boolean.TRUE.equals(node.existed) || !origins.add(node.origin)) {
+                    throw new IOException("Patches can't be squashed: moved file replaces other file: " + path);
+                }
+                moves.put(path, node.origin);
+            }
+        } else {
+            boolean r = replaced || (node.complete && !Boolean.FALSE.equals(node.existed));
+            for (Node child : node.children.values()) {
+                collectMoves(child, SyncPatch.getPath(path, child.name), r, moves, origins);
+            }
+        }
+    }
+
+    private static void emit(Node node, String depName, Set<SyncPatch> syncs) {
+        if (!node.present) {
+            if (!Boolean.FALSE.equals(node.existed)) {
+                syncs.add(new SyncPatch(null, depName));
+            }
+        } else if (!node.isFile && !node.complete) { // directory is changed in place
+            Set<SyncPatch> children = new LinkedHashSet<>();
+            for (Node child : node.children.values()) {
+                emit(child, child.name, children);
+            }
+            if (!children.isEmpty()) {
+                syncs.add(new SyncPatch(node, depName, children));
+            }
+        } else if (Boolean.FALSE.equals(node.existed) ||
+                (node.baseFile != null) && (node.baseFile != node.isFile)) {
+            syncs.add(new SyncPatch(node, null)); // added file replaces file of the other type
+        } else if (Boolean.TRUE.equals(node.existed) && Boolean.TRUE.equals(node.baseFile) && node.isFile) {
+            syncs.add(new SyncPatch(node, depName));
+        } else {
+            syncs.add(new SyncPatch(null, depName));
+            syncs.add(new SyncPatch(node, null));
+        }
+    }
+
+    private static byte[] read(MetaFile file) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream((int) file.getSize());
+        try (InputStream is = file.getInputStream()) {
+            FileUtils.copy(is, os);
+        }
+        return os.toByteArray();
+    }
+
+    private static String name(SyncPatch sync) {
+        return sync.getMaster() != null ? sync.getMaster().getName() : sync.getDependentName();
+    }
+
+    /**
+     * State of a file after the patches composed so far.
+     */
+    private static class Node implements LinkMetaFile {
+        private Node parent;
+        private String name;
+        private boolean touched;
+        private String depName;
+        /** if file existed before the first patch, <code>null</code> if unknown */
+        private Boolean existed;
+        /** if file was a file before the first patch, <code>null</code> if unknown */
+        private Boolean baseFile;
+        private boolean present;
+        private boolean isFile;
+        /** if directory was created by the chain, so all its files are known */
+        private boolean complete;
+        private long time;
+        private long size;
+        private byte[] content;
+        private String origin;
+        private String target;
+        private Map<String, Node> children = new TreeMap<>();
+
+        Node(Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        @Override
+        public MetaFile getParent() {
+            return parent;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isFile() {
+            return isFile;
+        }
+
+        @Override
+        public Map<String, MetaFile> getFiles() {
+            if (isFile) {
+                return null;
+            }
+            Map<String, MetaFile> files = new TreeMap<>();
+            for (Node child : children.values()) {
+                if (child.present) {
+                    files.put(child.name, child);
+                }
+            }
+            return files;
+        }
+
+        @Override
+        public byte[] getHash(String hashFunc) {
+            return null;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (!isFile) {
+                return null;
+            }
+            if (content == null) {
+                throw new IOException("Content of moved file isn't stored in the patch: " + name);
+            }
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public String getLinkTarget() {
+            return target;
+        }
+    }
+}
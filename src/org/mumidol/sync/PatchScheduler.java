@@ -0,0 +1,360 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Orders changes of the patch before it is applied. Serializers apply changes of every directory
+ * in order of the patch, so scheduler sorts changes of every directory by criteria of the policy,
+ * the first criterion is the most significant:
+ * <ul>
+ *     <li><code>priority</code> - changes of files matching priority patterns first, directory
+ *     goes first if it contains such changes;</li>
+ *     <li><code>deletes</code> - deleted files first, so space is freed before files are
+ *     written;</li>
+ *     <li><code>small</code> - changes writing fewer bytes first, so many files are written
+ *     quickly;</li>
+ *     <li><code>large</code> - changes writing more bytes first;</li>
+ *     <li><code>path</code> - changes in order of names, so files are written in order they are
+ *     located in directories.</li>
+ * </ul>
+ * Default policy is <code>priority,deletes,small,path</code>. Content of added directories is
+ * written in order it is read.
+ * <p>
+ * Scheduler estimates the patch as well, see {@link Plan}. Serializer applies only changes which
+ * master files aren't its own, so the patch is estimated for the tree it is applied to.
+ *
+ * @author Alexander Alexeev
+ */
+public class PatchScheduler {
+    public static final String DEFAULT_POLICY = "priority,deletes,small,path";
+
+    private List<Criterion> criteria;
+    private List<FilePatternMatcher> priorities = new ArrayList<>();
+    private PrintStream log;
+
+    private enum Criterion {
+        PRIORITY, DELETES, SMALL, LARGE, PATH
+    }
+
+    public PatchScheduler() {
+        setPolicy(DEFAULT_POLICY);
+    }
+
+    /**
+     * Sets policy of the scheduler.
+     * @param policy comma separated criteria, for example <code>deletes,small</code>.
+     * @throws IllegalArgumentException if criterion is unknown.
+     */
+    public void setPolicy(String policy) {
+        List<Criterion> list = new ArrayList<>();
+        for (String name : policy.split(",")) {
+            name = name.trim();
+            try {
+                list.add(Criterion.valueOf(name.toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown scheduling criterion: " + name);
+            }
+        }
+        this.criteria = list;
+    }
+
+    /**
+     * Sets patterns of files written first by the <code>priority</code> criterion, see
+     * {@link FilePatternMatcher}.
+     * @param patterns patterns or <code>null</code>.
+     */
+    public void setPriorities(List<String> patterns) {
+        List<FilePatternMatcher> list = new ArrayList<>();
+        if (patterns != null) {
+            for (String pattern : patterns) {
+                list.add(new FilePatternMatcher(pattern, true));
+            }
+        }
+        this.priorities = list;
+    }
+
+    /**
+     * Sets stream plans of scheduled patches are printed to.
+     * @param log stream or <code>null</code> not to print plans.
+     */
+    public void setLog(PrintStream log) {
+        this.log = log;
+    }
+
+    /**
+     * Orders changes of the patch and prints estimation of changes applied to the target.
+     * @param patch patch or <code>null</code>.
+     * @param target tree the patch is applied to or <code>null</code> to estimate all changes.
+     * @return estimation of changes applied to the target.
+     */
+    public Plan schedule(SyncPatch patch, MetaFile target) {
+        Plan plan = new Plan(target);
+        if (patch != null) {
+            schedule(patch, "", patch.getMoves(), plan);
+        }
+        print(plan);
+        return plan;
+    }
+
+    /**
+     * Prints the plan to the log if it is set.
+     * @param plan estimation of a patch.
+     */
+    public void print(Plan plan) {
+        if (log != null) {
+            log.println(plan);
+        }
+    }
+
+    /**
+     * Estimates the patch without ordering it.
+     * @param patch patch or <code>null</code>.
+     * @return estimation of all changes of the patch.
+     */
+    public static Plan estimate(SyncPatch patch) {
+        return estimate(patch, null);
+    }
+
+    /**
+     * Estimates changes of the patch applied to the target without ordering them.
+     * @param patch patch or <code>null</code>.
+     * @param target tree the patch is applied to or <code>null</code> to estimate all changes.
+     * @return estimation of changes applied to the target.
+     */
+    public static Plan estimate(SyncPatch patch, MetaFile target) {
+        Plan plan = new Plan(target);
+        if (patch != null) {
+            PatchScheduler scheduler = new PatchScheduler();
+            scheduler.criteria = Collections.emptyList();
+            scheduler.schedule(patch, "", patch.getMoves(), plan);
+        }
+        return plan;
+    }
+
+    //  private stuff
+//  ==========================================================================================
+    /**
+     * Orders changes of the directory and adds change of the path to the plan if it is applied
+     * to the target of the plan. Cost of the change doesn't depend on the target.
+     * @return cost of the change.
+     */
+    private Cost schedule(SyncPatch sync, String path, Map<String, String> moves, Plan plan) {
+        Cost cost = new Cost();
+        if (sync.getMaster() == null) {
+            long deleted = sync.getDependent() != null ? count(sync.getDependent()) : 1;
+            if ((sync.getDependent() == null) || plan.isTarget(sync.getDependent())) {
+                plan.deletes += deleted;
+            }
+            cost.delete = true;
+            cost.priority = isPriority(path, sync.getDependent() == null || sync.getDependent().isFile());
+        } else if (sync.getDependentName() == null) {
+            add(sync.getMaster(), path, moves, plan.isTarget(sync.getMaster()) ? null : plan, cost);
+        } else if (sync.getMaster().isFile()) {
+            if (!plan.isTarget(sync.getMaster())) {
+                plan.copies++;
+                plan.bytes += sync.getMaster().getSize();
+            }
+            cost.bytes = sync.getMaster().getSize();
+            cost.priority = isPriority(path, true);
+        } else if (sync.getSyncs() != null) {
+            final Map<SyncPatch, Cost> costs = new IdentityHashMap<>();
+            List<SyncPatch> syncs = new ArrayList<>(sync.getSyncs());
+            for (SyncPatch s : syncs) {
+                Cost c = schedule(s, SyncPatch.getPath(path, getName(s)), moves, plan);
+                costs.put(s, c);
+                cost.bytes += c.bytes;
+                cost.priority |= c.priority;
+            }
+            if (!criteria.isEmpty()) {
+                Collections.sort(syncs, new Comparator<SyncPatch>() {
+                    @Override
+                    public int compare(SyncPatch s1, SyncPatch s2) {
+                        return PatchScheduler.this.compare(s1, costs.get(s1), s2, costs.get(s2));
+                    }
+                });
+                sync.setSyncs(new LinkedHashSet<>(syncs));
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Adds cost of the added file, file is added to the plan unless plan is <code>null</code>.
+     */
+    private void add(MetaFile file, String path, Map<String, String> moves, Plan plan, Cost cost) {
+        if (file.isFile()) {
+            if (moves.containsKey(path)) {
+                if (plan != null) {
+                    plan.moves++;
+                }
+            } else {
+                if (plan != null) {
+                    plan.copies++;
+                    plan.bytes += file.getSize();
+                }
+                cost.bytes += file.getSize();
+            }
+            cost.priority |= isPriority(path, true);
+        } else {
+            cost.priority |= isPriority(path, false);
+            for (MetaFile f : file.getFiles().values()) {
+                add(f, SyncPatch.getPath(path, f.getName()), moves, plan, cost);
+            }
+        }
+    }
+
+    private int compare(SyncPatch s1, Cost c1, SyncPatch s2, Cost c2) {
+        for (Criterion criterion : criteria) {
+            int result;
+            switch (criterion) {
+                case PRIORITY:
+                    result = Boolean.compare(c2.priority, c1.priority);
+                    break;
+                case DELETES:
+                    result = Boolean.compare(c2.delete, c1.delete);
+                    break;
+                case SMALL:
+                    result = Long.compare(c1.bytes, c2.bytes);
+                    break;
+                case LARGE:
+                    result = Long.compare(c2.bytes, c1.bytes);
+                    break;
+                default:
+                    result = getName(s1).compareTo(getName(s2));
+            }
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    private boolean isPriority(String path, boolean isFile) {
+        if (!priorities.isEmpty()) {
+            path = isFile ? "/" + path : "/" + path + "/";
+            for (FilePatternMatcher matcher : priorities) {
+                if (matcher.matches(path)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String getName(SyncPatch sync) {
+        return sync.getMaster() != null ? sync.getMaster().getName() : sync.getDependentName();
+    }
+
+    private static long count(MetaFile file) {
+        if (file.isFile()) {
+            return 1;
+        }
+        long count = 1;
+        for (MetaFile f : file.getFiles().values()) {
+            count += count(f);
+        }
+        return count;
+    }
+
+    /**
+     * Cost of the change.
+     */
+    private static class Cost {
+        long bytes;
+        boolean delete;
+        boolean priority;
+    }
+
+    /**
+     * Estimation of the patch: number of files copied, moved and deleted and bytes written.
+     */
+    public static class Plan {
+        private final MetaFile target;
+        private long copies;
+        private long moves;
+        private long deletes;
+        private long bytes;
+
+        private Plan(MetaFile target) {
+            this.target = target;
+        }
+
+        /**
+         * Returns number of files written.
+         * @return number of files.
+         */
+        public long getCopies() {
+            return copies;
+        }
+
+        /**
+         * Returns number of files moved within the tree instead of being written.
+         * @return number of files.
+         */
+        public long getMoves() {
+            return moves;
+        }
+
+        /**
+         * Returns number of deleted files and directories.
+         * @return number of files.
+         */
+        public long getDeletes() {
+            return deletes;
+        }
+
+        /**
+         * Returns number of bytes written.
+         * @return bytes.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns number of operations.
+         * @return number of copied, moved and deleted files.
+         */
+        public long getOperations() {
+            return copies + moves + deletes;
+        }
+
+        /**
+         * Returns <code>true</code> if the file belongs to the target tree, so it isn't written
+         * to the target.
+         */
+        private boolean isTarget(MetaFile file) {
+            if (target == null) {
+                return false;
+            }
+            while (file.getParent() != null) {
+                file = file.getParent();
+            }
+            while (file instanceof FileSieve.SieveMetaFile) { // trees are sifted by comparison
+                file = ((FileSieve.SieveMetaFile) file).original;
+            }
+            return file == target;
+        }
+
+        @Override
+        public String toString() {
+            return "Plan" + (target != null ? " of " + target.getName() : "") + ": " + getOperations() +
+                    " operations, " + copies + " files (" + bytes + " bytes) to be written, " + moves +
+                    " moved, " + deletes + " deleted";
+        }
+    }
+}
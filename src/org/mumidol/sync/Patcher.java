@@ -7,59 +7,187 @@
 
 package org.mumidol.sync;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * Program allows to create and apply patches to the directory.
+ * Accepts following parameters:
+ *  -c - creates patch with changes made since the previous patch
+ *  -a - applies patch
+ *  -b - followed by backup directory (manifest file in manifest mode)
+ *  -p - followed by patch file, - reads patch from stdin or writes it to stdout; patch read
+ *       from stdin is applied in a single pass (see -s)
+ *  -t - saves patch as indexed container with table of contents; containers are detected
+ *       on apply automatically and applied straight to the directory and backup directory
+ *       (if exists), files accepted by -i/-x only
+ *  -l - lists content of indexed container
+ *  -z - followed by compression of created patch: none, deflate or lz (fast)
+ *  -j - followed by number of threads writing files of indexed container
+ *  -q - followed by list of patches to be squashed in order they are applied; the last
+ *       parameter is the squashed patch
+ *  -s - applies patch in a single pass while it is read; directory is patched directly and
+ *       backup directory (if exists) is updated at the same time
+ *  -m - manifest mode: the state of the previous patch is kept as a manifest with file sizes,
+ *       times and hash sums instead of a full backup copy. Manifest is updated after the patch
+ *       is created or applied.
+ *  -i - followed by list of files to be included
+ *  -x - followed by list of files to be excluded
+ *  -h - followed by hash function to be used to compare files
+ *  -v - verifies copied files against hash sums of master files
+ *  -u - updates only changed blocks of large files
+ *  -k - followed by handling of symbolic links: preserve, skip or follow (default), links are
+ *       saved to patches and restored by applying, see {@link FileSystemSerializer.Symlinks}
+ *  -T - followed by limits of disk bandwidth and file rate, for example r=20m,w=10m,rf=500,wf=200,
+ *       see {@link Throttle#setLimits(String)}
+ *  -r - followed by checkpoint journal of applying; interrupted applying started again with
+ *       the same journal skips files written already
+ *  -S - prints time spent by phases, processed bytes and hash cache hit rate, see {@link Metrics}
+ *  -J - followed by file the same metrics are written to in JSON
  * 
  * @author Alexander Alexeev
  */
 public class Patcher {
+    private static final String STDIO = "-";
+
     private static boolean create;
     private static boolean apply;
+    private static boolean list;
+    private static List<String> squashed;
+    private static boolean indexed;
+    private static int threads = 1;
+    private static String compression = "none";
     private static Serializer src;
     private static Serializer backup;
+    private static String srcPath;
+    private static String backupPath;
+    private static boolean stream;
+    private static boolean manifest;
+    private static File manifestFile;
     private static File patch;
+    private static boolean stdio;
     private static List<String> includes;
     private static List<String> excludes;
     private static String hash;
+    private static boolean verify;
+    private static boolean updateInPlace;
+    private static FileSystemSerializer.Symlinks symlinks = FileSystemSerializer.Symlinks.FOLLOW;
+    private static File journalFile;
+    private static Journal journal;
+    private static boolean summary;
+    private static File metricsFile;
+    private static SyncEngine engine;
+    private static Throttle throttle = new Throttle();
 
     private Patcher() {}
 
     public static void main(String[] args) throws IOException, SynchronizationException {
         parseArgs(args);
 
-        FileMatcher matcher = null;
-        if (includes != null) {
-            List<FileMatcher> matchers = new ArrayList<>(includes.size());
-            for (String include : includes) {
-                matchers.add(new FilePatternMatcher(include, true));
+        engine = new SyncEngine.Builder()
+                .include(includes)
+                .exclude(excludes)
+                .hashFunction(hash)
+                .verify(verify)
+                .updateInPlace(updateInPlace)
+                .symlinks(symlinks)
+                .throttle(throttle)
+                .threads(threads)
+                .metrics(Metrics.getMetrics()) // serializers are used outside of the engine too
+                .build();
+        if (srcPath != null) {
+            src = engine.open(srcPath, isZip(srcPath));
+            if (!manifest) {
+                backup = engine.open(backupPath, isZip(backupPath));
             }
-            matcher = new ComposedFileMatcher(matchers);
         }
-        if (excludes != null) {
-            List<FileMatcher> matchers = new ArrayList<>(excludes.size());
-            for (String exclude : excludes) {
-                matchers.add(new FilePatternMatcher(exclude, false));
+
+        if (journalFile != null) {
+            journal = new Journal(journalFile);
+            journal.cacheHashes(engine.getHashCache());
+            SyncEngine.setJournal(src, journal);
+            SyncEngine.setJournal(backup, journal);
+        }
+        try {
+            run(engine.getMatcher());
+            if (journal != null) {
+                journal.delete();
             }
-            if (matcher != null) {
-                matcher = new ComposedFileMatcher(
-                        Arrays.asList(matcher, new ComposedFileMatcher(matchers)));
-            } else {
-                matcher = new ComposedFileMatcher(matchers);
+            report(getConsole());
+        } catch (ContentStoreSerializer.UncheckedStoreException e) {
+            throw e.getCause();
+        } finally {
+            if (journal != null) {
+                journal.close();
+            }
+            engine.close();
+        }
+    }
+
+    /**
+     * Only existing zip archive is read as archive, other files are patched as they are.
+     */
+    private static boolean isZip(String path) {
+        return path.endsWith(".zip") && new File(path).isFile();
+    }
+
+    private static void report(PrintStream console) throws IOException {
+        if (summary) {
+            Metrics.getMetrics().printSummary(console);
+        }
+        if (metricsFile != null) {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(metricsFile), "UTF-8")) {
+                Metrics.getMetrics().writeJson(writer);
             }
         }
+    }
 
-        if (create) {
-            createPatch(src, backup, patch, matcher);
+    private static void run(FileMatcher matcher) throws IOException, SynchronizationException {
+        if (squashed != null) {
+            squashPatches(squashed, patch);
+        } else if (list) {
+            listPatch(patch);
+        } else if (apply && !stdio && IndexedPatch.isIndexed(patch)) {
+            File backupDir = manifest ? null : new File(backupPath);
+            if ((backupDir != null) && backupDir.isDirectory()) {
+                applyIndexedPatch(patch, new File(srcPath), backupDir);
+            } else {
+                applyIndexedPatch(patch, new File(srcPath));
+            }
+            if (manifest) {
+                updateManifest(src, manifestFile);
+            }
+        } else if (manifest) {
+            if (create) {
+                createManifestPatch(src, manifestFile, patch, matcher);
+            } else if (apply) {
+                applyManifestPatch(src, manifestFile, patch);
+            }
+        } else if (create) {
+            createPatch(src, backup, patch);
         } else if (apply) {
-            applyPatch(src, backup, patch, matcher);
+            if (stream) {
+                File backupDir = new File(backupPath);
+                if (backupDir.isDirectory()) {
+                    streamPatch(patch, hash, new File(srcPath), backupDir);
+                } else {
+                    streamPatch(patch, hash, new File(srcPath));
+                }
+            } else {
+                applyPatch(src, backup, patch);
+            }
         }
     }
 
@@ -74,8 +202,37 @@ public class Patcher {
                     apply = true;
                     i += 1;
                     break;
+                case "-m":
+                    manifest = true;
+                    i += 1;
+                    break;
+                case "-s":
+                    stream = true;
+                    i += 1;
+                    break;
+                case "-t":
+                    indexed = true;
+                    i += 1;
+                    break;
+                case "-l":
+                    list = true;
+                    i += 1;
+                    break;
+                case "-q":
+                    squashed = new ArrayList<>();
+                    i = fillList(args, i + 1, squashed);
+                    break;
+                case "-z":
+                    compression = args[i + 1];
+                    Compression.forName(compression); // fails fast on unknown compression
+                    i += 2;
+                    break;
+                case "-j":
+                    threads = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
                 case "-b":
-                    backup = createSerializer(args[i + 1]);
+                    backupPath = args[i + 1];
                     i += 2;
                     break;
                 case "-p":
@@ -94,23 +251,70 @@ public class Patcher {
                     hash = args[i + 1];
                     i += 2;
                     break;
+                case "-v":
+                    verify = true;
+                    i += 1;
+                    break;
+                case "-u":
+                    updateInPlace = true;
+                    i += 1;
+                    break;
+                case "-k":
+                    symlinks = FileSystemSerializer.Symlinks.valueOf(args[i + 1].toUpperCase());
+                    i += 2;
+                    break;
+                case "-T":
+                    throttle.setLimits(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-r":
+                    journalFile = new File(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-S":
+                    summary = true;
+                    i += 1;
+                    break;
+                case "-J":
+                    metricsFile = new File(args[i + 1]);
+                    i += 2;
+                    break;
                 default:
                     throw new IllegalArgumentException("Unknown parameter: " + args[i]);
             }
         }
+        if (indexed && !"none".equalsIgnoreCase(compression)) {
+            throw new IllegalArgumentException("Indexed container can't be compressed: -t and -z");
+        }
+        if (squashed != null) {
+            patch = new File(args[args.length - 1]);
+            stdio = STDIO.equals(patch.getPath());
+            return;
+        }
         if (create && apply) {
             throw new IllegalArgumentException("Contradicted parameters: -c and -a");
         }
-        if (!create && !apply) {
-            throw new IllegalArgumentException("Provide -a or -c parameter");
+        if (!create && !apply && !list) {
+            throw new IllegalArgumentException("Provide -a, -c or -l parameter");
         }
-        src = createSerializer(args[args.length - 1]);
-        if (backup == null) {
-            backup = createSerializer(args[args.length - 1] + ".backup");
+        srcPath = args[args.length - 1];
+        if (manifest) {
+            manifestFile = new File(backupPath != null ? backupPath : args[args.length - 1] + ".manifest");
+        } else {
+            if (backupPath == null) {
+                backupPath = args[args.length - 1] + ".backup";
+            }
         }
         if (patch == null) {
             patch = new File(args[args.length - 1] + ".patch");
         }
+        stdio = STDIO.equals(patch.getPath());
+        if (stdio && list) {
+            throw new IllegalArgumentException("Indexed container can't be read from stdin");
+        }
+        if (stdio && apply) {
+            stream = true; // patch from a pipe is applied while it is read
+        }
     }
 
     private static int fillList(String[] args, int i, List<String> list) {
@@ -120,28 +324,204 @@ public class Patcher {
         return i;
     }
 
-    private static Serializer createSerializer(String path) {
-        if (path.endsWith(".zip") && new File(path).isFile()) {
-            return new ZipSerializer(path);
+    private static void createPatch(Serializer src, Serializer backup, File patch)
+            throws IOException, SynchronizationException {
+        SyncPatch sync = engine.compare(src.read(), backup.read());
+        if (sync != null) {
+            savePatch(sync, patch);
         } else {
-            return new FileSystemSerializer(path);
+            getConsole().println("There are no differences");
         }
     }
 
-    private static void createPatch(Serializer src, Serializer backup, File patch, FileMatcher matcher)
-            throws IOException, SynchronizationException {
-        SyncPatch sync = Synchronizer.sync(src.read(), backup.read(), matcher, hash);
+    private static void createManifestPatch(Serializer src, File manifestFile, File patch,
+            FileMatcher matcher) throws IOException, SynchronizationException {
+        Manifest.ManifestMetaFile snapshot = null;
+        if (manifestFile.exists()) {
+            snapshot = Manifest.load(new FileInputStream(manifestFile));
+        }
+        String hashFunc = getManifestHash(snapshot);
+        if (src instanceof FileSystemSerializer) {
+            ((FileSystemSerializer) src).setHashFunction(hashFunc);
+            if (snapshot != null) { // unchanged files aren't read
+                ((FileSystemSerializer) src).cacheHashes(snapshot, hashFunc);
+            }
+        }
+
+        MetaFile tree = src.read();
+        // tree is the master whatever times are, so it is compared even with newer snapshot
+        SyncPatch sync = Synchronizer.diff(tree, snapshot, matcher, hashFunc);
+        if (sync != null) {
+            savePatch(sync, patch);
+        } else {
+            getConsole().println("There are no differences");
+        }
+        if (tree != null) {
+            Manifest.save(tree, hashFunc, manifestFile);
+        }
+    }
+
+    private static void applyManifestPatch(Serializer src, File manifestFile, File patch)
+            throws IOException {
+        Manifest.ManifestMetaFile snapshot = null;
+        if (manifestFile.exists()) {
+            snapshot = Manifest.load(new FileInputStream(manifestFile));
+        }
+        String hashFunc = getManifestHash(snapshot);
+        if (src instanceof FileSystemSerializer) {
+            ((FileSystemSerializer) src).setHashFunction(hashFunc);
+            if (snapshot != null) {
+                ((FileSystemSerializer) src).cacheHashes(snapshot, hashFunc);
+            }
+        }
+
+        if (stream) {
+            streamPatch(patch, hashFunc, new File(srcPath));
+        } else {
+            src.patch(SyncPatch.load(openPatch(patch)));
+        }
+        MetaFile tree = src.read();
+        if (tree != null) {
+            Manifest.save(tree, hashFunc, manifestFile);
+        }
+    }
+
+    private static void streamPatch(File patch, String hashFunc, File... roots) throws IOException {
+        for (File root : roots) {
+            if (root.isFile()) {
+                throw new IllegalArgumentException("Patch can be applied in a single pass to directories only");
+            }
+        }
+        StreamingPatcher patcher = new StreamingPatcher(roots);
+        patcher.setHashFunction(hashFunc, engine.getHashCache());
+        patcher.setJournal(journal);
+        patcher.setThrottle(throttle);
+        patcher.apply(openPatch(patch));
+    }
+
+    private static void savePatch(SyncPatch sync, File patch) throws IOException {
+        if (indexed) {
+            IndexedPatch.save(sync, createPatch(patch));
+        } else {
+            SyncPatch.save(sync, createPatch(patch), compression);
+        }
+    }
+
+    private static InputStream openPatch(File patch) throws IOException {
+        return STDIO.equals(patch.getPath()) ? new FileInputStream(FileDescriptor.in) :
+                throttle.read(new FileInputStream(patch));
+    }
+
+    private static OutputStream createPatch(File patch) throws IOException {
+        return stdio ? new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024) :
+                throttle.write(new FileOutputStream(patch));
+    }
+
+    /**
+     * Returns stream for messages, so they aren't mixed with patch written to stdout.
+     */
+    private static PrintStream getConsole() {
+        return stdio ? System.err : System.out;
+    }
+
+    private static void applyIndexedPatch(File patch, File... roots) throws IOException {
+        for (File root : roots) {
+            if (root.isFile()) {
+                throw new IllegalArgumentException("Indexed patch can be applied to directories only");
+            }
+        }
+        try (IndexedPatch container = IndexedPatch.open(patch)) {
+            container.setJournal(journal);
+            for (File root : roots) {
+                engine.apply(container, root);
+            }
+        }
+    }
+
+    private static void squashPatches(List<String> patches, File patch) throws IOException {
+        PatchComposer composer = new PatchComposer();
+        // patches are loaded one by one, composer keeps only the latest content of every file
+        for (String path : patches) {
+            composer.add(SyncPatch.load(openPatch(new File(path))));
+        }
+        SyncPatch sync = composer.getPatch();
         if (sync != null) {
-            SyncPatch.save(sync, new FileOutputStream(patch));
+            savePatch(sync, patch);
         } else {
-            System.out.println("There are no differences");
+            getConsole().println("There are no differences");
+        }
+    }
+
+    private static void listPatch(File patch) throws IOException {
+        try (IndexedPatch container = IndexedPatch.open(patch)) {
+            for (IndexedPatch.Entry e : container.getEntries()) {
+                StringBuilder sb = new StringBuilder(String.format(Locale.ROOT, "%-9s %12d  %s",
+                        e.getOperation(), e.getSize(), e.getPath().isEmpty() ? "." : e.getPath()));
+                if (e.getLinkTarget() != null) {
+                    sb.append(" -> ").append(e.getLinkTarget());
+                } else if (e.getOrigin() != null) {
+                    sb.append(" <- ").append(e.getOrigin());
+                }
+                byte[] sha1 = e.getHash("SHA-1");
+                if (sha1 != null) {
+                    sb.append("  ");
+                    for (byte b : sha1) {
+                        sb.append(String.format("%02x", b));
+                    }
+                }
+                System.out.println(sb);
+            }
         }
     }
 
-    private static void applyPatch(Serializer src, Serializer backup, File patch, FileMatcher matcher)
+    private static void updateManifest(Serializer src, File manifestFile) throws IOException {
+        Manifest.ManifestMetaFile snapshot = null;
+        if (manifestFile.exists()) {
+            snapshot = Manifest.load(new FileInputStream(manifestFile));
+        }
+        String hashFunc = getManifestHash(snapshot);
+        if (src instanceof FileSystemSerializer) {
+            ((FileSystemSerializer) src).setHashFunction(hashFunc);
+            if (snapshot != null) {
+                ((FileSystemSerializer) src).cacheHashes(snapshot, hashFunc);
+            }
+        }
+        MetaFile tree = src.read();
+        if (tree != null) {
+            Manifest.save(tree, hashFunc, manifestFile);
+        }
+    }
+
+    private static String getManifestHash(Manifest.ManifestMetaFile snapshot) {
+        if (hash == null) {
+            return snapshot != null ? snapshot.getHashFunction() : "SHA-1";
+        }
+        if ((snapshot != null) &&
+                !snapshot.getHashFunction().equals(HashManager.getHashManager().getCanonicalName(hash))) {
+            throw new IllegalArgumentException("Manifest is created with hash function " +
+                    snapshot.getHashFunction());
+        }
+        return hash;
+    }
+
+    private static void applyPatch(Serializer src, Serializer backup, File patch)
             throws IOException, SynchronizationException {
-        backup.patch(SyncPatch.load(new FileInputStream(patch)));
+        // saved patch of the directory means that backup directory is patched already
+        if ((journal == null) || !journal.hasPatch()) {
+            backup.patch(SyncPatch.load(openPatch(patch)));
+        }
 
-        src.patch(Synchronizer.sync(src.read(), backup.read(), matcher, hash));
+        MetaFile first = src.read();
+        MetaFile second = backup.read();
+        SyncPatch sync;
+        if ((journal != null) && journal.hasPatch()) {
+            sync = journal.getPatch(first, second);
+        } else {
+            sync = engine.compare(first, second);
+            if (journal != null) {
+                journal.setPatch(sync, first, second);
+            }
+        }
+        src.patch(sync);
     }
 }
\ No newline at end of file
@@ -0,0 +1,365 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serializer of a directory exported by {@link SyncServer}. Tree is read from manifest with
+ * sizes, times and hash sums sent by server, so files are compared without transferring content.
+ * Content is requested only for files which are copied. Requests are pipelined: files to be copied
+ * by a patch can be requested ahead in batches (see {@link #prefetch(SyncPatch)}) and their content
+ * is transferred multiplexed within one connection.
+ * <p>
+ * Patch is sent to server compressed and is applied by server while it is received.
+ *
+ * @author Alexander Alexeev
+ */
+public class RemoteSerializer implements Serializer, Closeable {
+    private static final int MAX_REQUESTS = 16;
+    private static final long MAX_PREFETCH = 16 * 1024 * 1024;
+
+    private String host;
+    private int port;
+    private String hashFunc = "SHA-1";
+    private FrameChannel channel;
+    private AtomicInteger ids = new AtomicInteger();
+    private Map<Integer, FrameChannel.ChunkInputStream> pending = new ConcurrentHashMap<>();
+    private RemoteMetaFile rootFile;
+
+    private Deque<RemoteMetaFile> planned = new ArrayDeque<>();
+    private LinkedHashMap<RemoteMetaFile, FrameChannel.ChunkInputStream> prefetched = new LinkedHashMap<>();
+    private long prefetchedSize;
+
+    /**
+     * Creates serializer of directory exported by server.
+     * @param host server host.
+     * @param port server port.
+     */
+    public RemoteSerializer(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Sets hash function server calculates hash sums of files with.
+     * @param hashFunc hash function, SHA-1 by default.
+     */
+    public void setHashFunction(String hashFunc) {
+        if (hashFunc != null) {
+            this.hashFunc = HashManager.getHashManager().getCanonicalName(hashFunc);
+        }
+    }
+
+    @Override
+    public MetaFile read() throws IOException {
+        if (rootFile == null) {
+            Manifest.ManifestMetaFile manifest;
+            Metrics.Timer timer = Metrics.getMetrics().start(Metrics.Phase.SCAN, host + ":" + port);
+            try (InputStream is = request(FrameChannel.MANIFEST, hashFunc)) {
+                manifest = Manifest.load(is);
+            } finally {
+                timer.stop();
+            }
+            rootFile = new RemoteMetaFile(null, "", manifest);
+        }
+        return rootFile;
+    }
+
+    @Override
+    public void patch(SyncPatch patch) throws IOException {
+        SyncPatch sync = patch != null ? filter(patch) : null;
+        if (sync == null) {
+            return;
+        }
+        Metrics.Timer timer = Metrics.getMetrics().start(Metrics.Phase.APPLY, host + ":" + port);
+        try {
+            int id = ids.incrementAndGet();
+            FrameChannel.ChunkInputStream response = new FrameChannel.ChunkInputStream();
+            pending.put(id, response);
+            FrameChannel channel = connect();
+            channel.writeFrame(id, FrameChannel.PATCH, new byte[0], 0, 0, true);
+            SyncPatch.save(sync, new FrameChannel.FrameOutputStream(channel, id), Compression.LZ.name());
+            while (response.read() != -1) { // waits for completion
+            }
+        } finally {
+            timer.stop();
+        }
+        rootFile = null;
+    }
+
+    /**
+     * Requests content of files to be copied by the patch ahead. Content is received in background
+     * while previous files are written, at most {@value #MAX_REQUESTS} files and
+     * {@value #MAX_PREFETCH} bytes ahead. Files are expected to be read in the patch order, files
+     * which are skipped are dropped.
+     *
+     * @param patch patch to be applied to other serializer.
+     * @throws IOException
+     */
+    public synchronized void prefetch(SyncPatch patch) throws IOException {
+        cancelPrefetch();
+        if (patch != null) {
+            plan(patch, "", patch.getMoves());
+            requestAhead();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        cancelPrefetch();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void plan(SyncPatch sync, String path, Map<String, String> moves) {
+        if (sync.getMaster() != null) {
+            if ((sync.getDependentName() == null) || sync.getMaster().isFile()) {
+                planFile(sync.getMaster(), path, moves);
+            }
+        }
+        if (sync.getSyncs() != null) {
+            for (SyncPatch s : sync.getSyncs()) {
+                plan(s, SyncPatch.getPath(path, s.getMaster() != null ?
+                        s.getMaster().getName() : s.getDependentName()), moves);
+            }
+        }
+    }
+
+    private void planFile(MetaFile file, String path, Map<String, String> moves) {
+        if (file.isFile()) {
+            if (isOwnFile(file) && !moves.containsKey(path)) {
+                planned.add((RemoteMetaFile) file);
+            }
+        } else {
+            for (MetaFile f : file.getFiles().values()) {
+                planFile(f, SyncPatch.getPath(path, f.getName()), moves);
+            }
+        }
+    }
+
+    /**
+     * Sends requests of planned files in one batch.
+     */
+    private void requestAhead() throws IOException {
+        boolean sent = false;
+        while (!planned.isEmpty() && (prefetched.size() < MAX_REQUESTS) &&
+                (prefetched.isEmpty() || (prefetchedSize + planned.peek().getSize() <= MAX_PREFETCH))) {
+            RemoteMetaFile file = planned.poll();
+            prefetched.put(file, send(FrameChannel.READ, file.path, false));
+            prefetchedSize += file.getSize();
+            sent = true;
+        }
+        if (sent) {
+            connect().flush();
+        }
+    }
+
+    private void cancelPrefetch() {
+        for (FrameChannel.ChunkInputStream s : prefetched.values()) {
+            s.cancel();
+        }
+        prefetched.clear();
+        planned.clear();
+        prefetchedSize = 0;
+    }
+
+    private synchronized InputStream open(RemoteMetaFile file) throws IOException {
+        if (prefetched.containsKey(file)) {
+            // files requested before this one are skipped by the reader
+            for (Iterator<Map.Entry<RemoteMetaFile, FrameChannel.ChunkInputStream>> i =
+                    prefetched.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry<RemoteMetaFile, FrameChannel.ChunkInputStream> e = i.next();
+                i.remove();
+                prefetchedSize -= e.getKey().getSize();
+                if (e.getKey() == file) {
+                    requestAhead();
+                    return e.getValue();
+                }
+                e.getValue().cancel();
+            }
+        }
+        planned.remove(file);
+        return request(FrameChannel.READ, file.path);
+    }
+
+    private InputStream request(byte type, String payload) throws IOException {
+        return send(type, payload, true);
+    }
+
+    private FrameChannel.ChunkInputStream send(byte type, String payload, boolean flush) throws IOException {
+        FrameChannel channel = connect();
+        int id = ids.incrementAndGet();
+        FrameChannel.ChunkInputStream response = new FrameChannel.ChunkInputStream();
+        pending.put(id, response);
+        channel.writeFrame(id, type, payload, flush);
+        return response;
+    }
+
+    private synchronized FrameChannel connect() throws IOException {
+        if (channel == null) {
+            final FrameChannel c = new FrameChannel(new Socket(host, port));
+            c.handshake();
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(c);
+                }
+            }, "RemoteSerializer " + host + ":" + port);
+            reader.setDaemon(true);
+            reader.start();
+            channel = c;
+        }
+        return channel;
+    }
+
+    /**
+     * Dispatches received frames to streams of requests.
+     */
+    private void dispatch(FrameChannel c) {
+        try {
+            FrameChannel.Frame frame;
+            while ((frame = c.readFrame()) != null) {
+                FrameChannel.ChunkInputStream response = pending.get(frame.id);
+                if (response == null) {
+                    continue;
+                }
+                switch (frame.type) {
+                    case FrameChannel.DATA:
+                        response.offer(frame);
+                        break;
+                    case FrameChannel.END:
+                        pending.remove(frame.id);
+                        response.finish();
+                        break;
+                    case FrameChannel.ERROR:
+                        pending.remove(frame.id);
+                        response.fail(frame.getText());
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // connection is broken
+        } finally {
+            synchronized (this) {
+                if (channel == c) {
+                    channel = null;
+                }
+            }
+            for (FrameChannel.ChunkInputStream response : pending.values()) {
+                response.fail("Connection is closed");
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * Removes changes which master files are own files, they are on server already.
+     */
+    private SyncPatch filter(SyncPatch sync) {
+        if ((sync.getMaster() != null) && isOwnFile(sync.getMaster())) {
+            if (sync.getMaster().isFile() || (sync.getDependentName() == null) || sync.isMasterCopy()) {
+                return null;
+            }
+        }
+        SyncPatch filtered = sync;
+        if (sync.getSyncs() != null) {
+            Set<SyncPatch> syncs = new LinkedHashSet<>();
+            for (SyncPatch s : sync.getSyncs()) {
+                SyncPatch f = filter(s);
+                if (f != null) {
+                    syncs.add(f);
+                }
+            }
+            if (syncs.isEmpty() && (sync.getMaster() != null) && isOwnFile(sync.getMaster())) {
+                return null;
+            }
+            filtered = new SyncPatch(sync.getMaster(), sync.getDependentName(), syncs);
+        }
+        if (!sync.getMoves().isEmpty()) {
+            filtered.setMoves(sync.getMoves());
+        }
+        return filtered;
+    }
+
+    private boolean isOwnFile(MetaFile file) {
+        return (file instanceof RemoteMetaFile) && (((RemoteMetaFile) file).getSerializer() == this);
+    }
+
+    class RemoteMetaFile implements MetaFile {
+        private RemoteMetaFile parent;
+        private String path;
+        private Manifest.ManifestMetaFile file;
+        private Map<String, RemoteMetaFile> files;
+
+        private RemoteMetaFile(RemoteMetaFile parent, String path, Manifest.ManifestMetaFile file) {
+            this.parent = parent;
+            this.path = path;
+            this.file = file;
+            if (!file.isFile()) {
+                Map<String, RemoteMetaFile> children = new HashMap<>(file.getFiles().size());
+                for (Manifest.ManifestMetaFile f : file.getFiles().values()) {
+                    children.put(f.getName(), new RemoteMetaFile(this, SyncPatch.getPath(path, f.getName()), f));
+                }
+                files = Collections.unmodifiableMap(children);
+            }
+        }
+
+        private RemoteSerializer getSerializer() {
+            return RemoteSerializer.this;
+        }
+
+        @Override
+        public MetaFile getParent() {
+            return parent;
+        }
+
+        @Override
+        public String getName() {
+            return file.getName();
+        }
+
+        @Override
+        public boolean isFile() {
+            return file.isFile();
+        }
+
+        @Override
+        public Map<String, RemoteMetaFile> getFiles() {
+            return files;
+        }
+
+        @Override
+        public byte[] getHash(String hashFunc) {
+            return file.getHash(hashFunc);
+        }
+
+        @Override
+        public long getSize() {
+            return file.getSize();
+        }
+
+        @Override
+        public long getTime() {
+            return file.getTime();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return isFile() ? open(this) : null;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Applies saved {@link SyncPatch} to directories while the patch is being read. Patch is read once
+ * and sequentially, file content is written straight to all target directories without loading
+ * the patch to memory, so I/O is proportional to the patch size rather than to the tree size.
+ * <p>
+ * Changes are applied the same way as {@link FileSystemSerializer} applies loaded patch.
+ *
+ * @author Alexander Alexeev
+ */
+class StreamingPatcher {
+    private List<File> roots;
+    private Set<File> moved = new HashSet<>();
+    /** files content of partially written files is copied from by references */
+    private Map<String, File> sources = new HashMap<>();
+    private List<File> spools = new ArrayList<>();
+    private String hashFunc;
+    private HashCache hashCache;
+    private Journal journal;
+    private Throttle throttle = new Throttle();
+    private List<File> confinedRoots;
+
+    /**
+     * Creates patcher for target directories.
+     * @param roots target directories.
+     */
+    StreamingPatcher(File... roots) {
+        this.roots = Arrays.asList(roots);
+    }
+
+    /**
+     * Sets hash function to be calculated while files are written and hash cache to put hash
+     * sums to.
+     * @param hashFunc hash function or <code>null</code>.
+     * @param hashCache hash cache.
+     */
+    void setHashFunction(String hashFunc, HashCache hashCache) {
+        this.hashFunc = hashFunc;
+        this.hashCache = hashCache;
+    }
+
+    /**
+     * Sets checkpoint journal, files written by interrupted run are skipped.
+     * @param journal journal or <code>null</code>.
+     * @see FileSystemSerializer#setJournal(Journal)
+     */
+    void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Sets throttle limiting writing of files.
+     * @param throttle throttle.
+     */
+    void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Sets whether paths of the patch are checked, so patch received from untrusted side can't
+     * change files outside of target directories. Names containing separators, names
+     * <code>.</code> and <code>..</code> are rejected, every path (including moved files and
+     * references) must be located within target directories after links are resolved.
+     * @param confined <code>true</code> if paths are checked.
+     * @throws IOException if target directories can't be resolved.
+     */
+    void setConfined(boolean confined) throws IOException {
+        if (confined) {
+            confinedRoots = new ArrayList<>(roots.size());
+            for (File root : roots) {
+                confinedRoots.add(root.getCanonicalFile());
+            }
+        } else {
+            confinedRoots = null;
+        }
+    }
+
+    /**
+     * Reads patch from the stream and applies it.
+     * @param is input stream with saved patch.
+     * @throws IOException
+     */
+    void apply(InputStream is) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(is, 64 * 1024));
+        Metrics.Timer timer = Metrics.getMetrics().start(Metrics.Phase.APPLY, roots.get(0).getPath());
+        try {
+            int version = SyncPatch.readHeader(dis);
+            if (version > 1) {
+                dis = SyncPatch.decompress(dis, version);
+                Map<String, String> moves = new HashMap<>();
+                Map<String, Long> sizes = new HashMap<>();
+                for (int i = dis.readInt(); i > 0; i--) {
+                    String path = dis.readUTF();
+                    moves.put(path, dis.readUTF());
+                    sizes.put(path, version >= 6 ? dis.readLong() : -1);
+                }
+                for (File root : roots) {
+                    move(root, moves, sizes);
+                }
+            }
+            readSync(dis, version, null, "");
+        } finally {
+            moved.clear();
+            sources.clear();
+            for (File spool : spools) {
+                spool.delete();
+            }
+            spools.clear();
+            dis.close();
+            timer.stop();
+        }
+    }
+
+    /**
+     * Reads change of the path and applies it.
+     * @param path path relative to the patch root.
+     */
+    private void readSync(DataInputStream dis, int version, List<File> parents, String path)
+            throws IOException {
+        String depName = dis.readBoolean() ? dis.readUTF() : null;
+        List<File> paths;
+        boolean updatedDir = false;
+        long time = 0;
+        if (!dis.readBoolean()) { // master is absent, file is deleted
+            paths = resolve(parents, depName);
+            path = parents == null ? path : SyncPatch.getPath(path, depName);
+            for (File file : paths) {
+                if (file.exists()) {
+                    recursDelete(file);
+                }
+            }
+        } else {
+            String name = dis.readUTF();
+            paths = resolve(parents, name);
+            path = parents == null ? path : SyncPatch.getPath(path, name);
+            boolean isFile = dis.readBoolean();
+            time = dis.readLong();
+            if (depName == null) {
+                List<File> copies = new ArrayList<>(paths.size());
+                for (File file : paths) {
+                    if (file.exists() && (file.isFile() != isFile)) { // delete file with conflicted name
+                        recursDelete(file);
+                    }
+                    if (isWritable(file)) {
+                        if (journal != null) {
+                            journal.started(file);
+                        }
+                        copies.add(file);
+                    }
+                }
+                readAdded(dis, version, isFile, time, copies, copies.size() < paths.size(), path);
+            } else if (isFile) {
+                readContent(dis, version, time, paths, false, path);
+            } else {
+                updatedDir = true;
+            }
+        }
+
+        for (int i = dis.readInt(); i > 0; i--) {
+            readSync(dis, version, paths, path);
+        }
+        if (updatedDir) {
+            for (File file : paths) {
+                file.setLastModified(time);
+            }
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if added file can be written to the path: path doesn't exist, it
+     * is moved or it was created by interrupted run.
+     */
+    private boolean isWritable(File file) {
+        if (!file.exists() || moved.contains(file)) {
+            return true;
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        return (journal != null) && (journal.isStarted(file) || (parent != null) && journal.isStarted(parent));
+    }
+
+    /**
+     * Reads added file or directory and writes it to the paths.
+     * @param partial <code>true</code> if file isn't written to some directories, because it
+     * exists there already.
+     */
+    private void readAdded(DataInputStream dis, int version, boolean isFile, long time,
+            List<File> paths, boolean partial, String path) throws IOException {
+        if (isFile) {
+            readContent(dis, version, time, paths, partial, path);
+        } else {
+            for (File file : paths) {
+                if (journal != null) {
+                    journal.started(file);
+                }
+                file.mkdir();
+            }
+            for (int i = dis.readInt(); i > 0; i--) {
+                dis.readBoolean(); // files of the tree are always present
+                String name = dis.readUTF();
+                List<File> children = new ArrayList<>(paths.size());
+                for (File file : resolve(paths, name)) {
+                    if (isWritable(file)) {
+                        children.add(file);
+                    }
+                }
+                boolean childIsFile = dis.readBoolean();
+                long childTime = dis.readLong();
+                readAdded(dis, version, childIsFile, childTime, children,
+                        partial || (children.size() < paths.size()), SyncPatch.getPath(path, name));
+            }
+            for (File file : paths) {
+                file.setLastModified(time);
+            }
+        }
+    }
+
+    /**
+     * Reads content of the file and writes it to the paths. If the file isn't written to some
+     * directories, file content was written to (or spooled copy if it isn't written at all) is
+     * remembered, so files referring to its content don't copy other content kept there.
+     */
+    private void readContent(DataInputStream dis, int version, long time, List<File> paths,
+            boolean partial, String path) throws IOException {
+        long size = dis.readLong();
+        int kind = version < 2 ? SyncPatch.CONTENT : dis.readUnsignedByte();
+        List<File> writes = new ArrayList<>(paths.size());
+        for (File file : paths) {
+            if (moved.contains(file)) {
+                file.setLastModified(time);
+                if (journal != null) {
+                    journal.written(file, size, time, null, null);
+                }
+            } else if ((journal == null) || !journal.isWritten(file, size, time)) {
+                writes.add(file);
+            }
+        }
+        if (kind == SyncPatch.CONTENT) {
+            File spool = null;
+            if (partial && paths.isEmpty()) {
+                spool = File.createTempFile("spool", null);
+                spools.add(spool);
+                sources.put(path, spool);
+            } else if (partial) {
+                sources.put(path, paths.get(0));
+            }
+            write(dis, size, time, writes, spool);
+        } else if (kind == SyncPatch.REFERENCE) {
+            copy(dis.readUTF(), time, writes);
+        } else if (kind == SyncPatch.LINK) {
+            String target = dis.readUTF();
+            for (File file : writes) {
+                FileUtils.createLink(file, target, time);
+            }
+        } else if (!writes.isEmpty()) {
+            throw new IOException("Content of moved file isn't stored in the patch: " + writes.get(0));
+        }
+    }
+
+    /**
+     * Copies content from the patch to all files and to the spool file (if it isn't
+     * <code>null</code>) at once. Content is written to temporary files next to the files, they
+     * replace the files only when all of them are written, so a directory which can't be written
+     * doesn't leave files of other directories truncated.
+     */
+    private void write(DataInputStream dis, long size, long time, List<File> paths, File spool)
+            throws IOException {
+        HashCalculator.Digest digest = null;
+        if ((hashFunc != null) && (HashManager.getHashManager().getCalculator(hashFunc) != null)) {
+            digest = HashManager.getHashManager().getCalculator(hashFunc).createDigest();
+        }
+        List<OutputStream> outs = new ArrayList<>(paths.size());
+        List<File> temps = new ArrayList<>(paths.size());
+        long start = System.nanoTime();
+        try {
+            for (File path : paths) {
+                File temp = File.createTempFile("sync", ".tmp", path.getAbsoluteFile().getParentFile());
+                temps.add(temp);
+                outs.add(throttle.write(new FileOutputStream(temp)));
+            }
+            if (spool != null) {
+                outs.add(new FileOutputStream(spool));
+            }
+            byte[] buf = Buffers.getBuffers().acquire();
+            try {
+                long remained = size;
+                while (remained > 0) {
+                    int len = dis.read(buf, 0, (int) Math.min(buf.length, remained));
+                    if (len == -1) {
+                        throw new EOFException("Unexpected end of patch");
+                    }
+                    for (OutputStream os : outs) {
+                        os.write(buf, 0, len);
+                    }
+                    if (digest != null) {
+                        digest.update(buf, 0, len);
+                    }
+                    remained -= len;
+                }
+            } finally {
+                Buffers.getBuffers().release(buf);
+            }
+            for (OutputStream os : outs) {
+                os.close();
+            }
+            outs.clear();
+            for (int i = 0; i < paths.size(); i++) { // file linked elsewhere is replaced, the other is kept
+                replace(temps.get(i), paths.get(i));
+            }
+        } finally {
+            for (OutputStream os : outs) {
+                os.close();
+            }
+            for (File temp : temps) {
+                Files.deleteIfExists(temp.toPath());
+            }
+        }
+        byte[] hash = digest != null ? digest.digest() : null;
+        for (File path : paths) {
+            path.setLastModified(time);
+            if (hash != null) {
+                hashCache.put(path.getAbsolutePath(), hashFunc, path.length(), path.lastModified(), hash);
+            }
+            Metrics.getMetrics().fileWritten(size, start);
+            if (journal != null) {
+                journal.written(path, size, time, hashFunc, hash);
+            }
+        }
+    }
+
+    private static void replace(File temp, File file) throws IOException {
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Copies content of the file written earlier, so content stored once is written to all files
+     * having it.
+     */
+    private void copy(String reference, long time, List<File> paths) throws IOException {
+        for (File path : paths) {
+            File source = sources.get(reference);
+            if (source == null) { // written to all directories
+                source = resolve(getRoot(path), reference);
+            }
+            if (!source.isFile() || ((confinedRoots != null) && Files.isSymbolicLink(source.toPath()))) {
+                throw new IOException("Referenced file doesn't exist: " + source);
+            }
+            long start = System.nanoTime();
+            throttle.acquireWriteFile();
+            throttle.acquireRead(source.length());
+            throttle.acquireWrite(source.length());
+            Files.copy(source.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Metrics.getMetrics().fileWritten(path.length(), start);
+            path.setLastModified(time);
+            byte[] hash = hashFunc != null ? hashCache.get(source.getAbsolutePath(), hashFunc,
+                    source.length(), source.lastModified()) : null;
+            if (hash != null) {
+                hashCache.put(path.getAbsolutePath(), hashFunc, path.length(), path.lastModified(), hash);
+            }
+            if (journal != null) {
+                journal.written(path, path.length(), time, hashFunc, hash);
+            }
+        }
+    }
+
+    private File getRoot(File path) {
+        for (File root : roots) {
+            if (path.getPath().startsWith(root.getPath() + File.separator)) {
+                return root;
+            }
+        }
+        throw new IllegalArgumentException(path + " is outside of patched directories");
+    }
+
+    private List<File> resolve(List<File> parents, String name) throws IOException {
+        if (parents == null) {
+            return roots;
+        }
+        List<File> paths = new ArrayList<>(parents.size());
+        for (File parent : parents) {
+            paths.add(resolve(parent, name));
+        }
+        return paths;
+    }
+
+    /**
+     * Resolves path of the patch separated by / against the directory.
+     */
+    private File resolve(File dir, String path) throws IOException {
+        File file = dir;
+        for (String name : path.split("/", -1)) {
+            if ((confinedRoots != null) && (name.isEmpty() || name.equals(".") || name.equals("..") ||
+                    (name.indexOf('\\') != -1) || (name.indexOf(File.separatorChar) != -1) ||
+                    (name.indexOf('\0') != -1))) {
+                throw new IOException("Invalid path in patch: " + path);
+            }
+            file = new File(file, name);
+        }
+        if (confinedRoots != null) {
+            // links of existing parent directories are resolved, the file itself may be a link
+            String parent = file.getParentFile().getCanonicalPath();
+            boolean inside = false;
+            for (File root : confinedRoots) {
+                inside |= parent.equals(root.getPath()) || parent.startsWith(root.getPath() + File.separator);
+            }
+            if (!inside) {
+                throw new IOException("Path is outside of patched directories: " + path);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Moves files before patch is applied, so origins aren't deleted before they are moved.
+     * Origin which size differs from the moved file isn't moved, patch is rejected then.
+     * @param sizes sizes of moved files, <code>-1</code> if patch doesn't store size.
+     * @see FileSystemSerializer
+     */
+    private void move(File root, Map<String, String> moves, Map<String, Long> sizes) throws IOException {
+        for (Map.Entry<String, String> e : moves.entrySet()) {
+            File target = resolve(root, e.getKey());
+            File origin = resolve(root, e.getValue());
+            if (origin.isFile() && !target.exists() && mkdirs(target.getParentFile())) {
+                FileUtils.checkOrigin(origin, sizes.get(e.getKey()), null, null);
+                Files.move(origin.toPath(), target.toPath());
+                moved.add(target);
+            }
+        }
+    }
+
+    private boolean mkdirs(File dir) {
+        if (dir.isDirectory()) {
+            return true;
+        }
+        if (!dir.exists() && mkdirs(dir.getParentFile()) && dir.mkdir()) {
+            moved.add(dir);
+            return true;
+        }
+        return false;
+    }
+
+    private static void recursDelete(File file) {
+        File[] list = Files.isSymbolicLink(file.toPath()) ? null : file.listFiles();
+        if (list != null) {
+            for (File f : list) {
+                recursDelete(f);
+            }
+        }
+        file.delete();
+    }
+}
@@ -8,7 +8,11 @@
 package org.mumidol.sync;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -20,51 +24,147 @@ import java.util.List;
  *  -s - synchronizes source and destination directories
  *  -i - followed by list of files to be included to synchronization
  *  -e - followed by list of files to be excluded from synchronization
+ *  -h - followed by hash function to be used to compare and copy files
+ *  -v - verifies copied files against hash sums of master files
+ *  -l - creates new files in destination directory as hard links to source files
+ *  -L - followed by reference directory, unchanged files are hard linked to reference files
+ *  -u - updates only changed blocks of large files
+ *  -T - followed by limits of disk bandwidth and file rate, for example r=20m,w=10m,rf=500,wf=200,
+ *       see {@link Throttle#setLimits(String)}
+ *  -k - followed by handling of symbolic links: preserve (links are copied as links), skip
+ *       or follow (default, link pointing to its own ancestor is copied as link)
+ *  -B - followed by size of I/O buffers used by copying, comparison and hashing, for example
+ *       1m, see {@link Buffers}
+ *  -r - followed by checkpoint journal; interrupted synchronization started again with the
+ *       same journal skips files written already and doesn't compare trees again
+ *  -o - followed by scheduling policy, changes of every directory are ordered by criteria
+ *       of the policy, for example priority,deletes,small,path; plan of changes is printed
+ *       before they are applied, see {@link PatchScheduler}
+ *  -p - followed by list of files written first by the priority criterion
+ *  -S - prints time spent by phases, processed bytes and hash cache hit rate, see {@link Metrics}
+ *  -J - followed by file the same metrics are written to in JSON
+ *  -d - followed by delay in milliseconds; daemon mode: after the first synchronization source
+ *       directory is watched and changes are copied when there are no changes for the delay
+ *       or a minute after the first change at the latest, see {@link SyncDaemon}
+ *  -t - followed by list of further destinations; source is copied to destination and all of
+ *       them at the same time, content of changed files is read from source once, see
+ *       {@link FanOut}
+ *  -f - followed by job file; many synchronizations listed in the file are run in one process
+ *       instead of source and destination, see {@link SyncJobs}; job file mode accepts only
+ *       -f, -j, -T, -B, -S and -J, limits of -T are shared by all jobs, so of=,fl= limit
+ *       number of open files and bytes in flight of the whole process
+ *  -j - followed by number of jobs run at the same time, number of processors by default
+ * Path ending with .store denotes content addressed store, see {@link ContentStoreSerializer}.
+ * Path sync://host:port denotes directory exported by {@link SyncServer}.
+ * Synchronization is run by {@link SyncEngine}.
  *
  * @author Alexander Alexeev
  */
 public class Sync {
     private static boolean syncSource;
-    private static Serializer src;
-    private static Serializer dst;
+    private static String src;
+    private static String dst;
     private static List<String> includes;
     private static List<String> excludes;
     private static String hash;
+    private static boolean verify;
+    private static boolean updateInPlace;
+    private static boolean linkNewFiles;
+    private static String linkReference;
+    private static File journalFile;
+    private static boolean summary;
+    private static File metricsFile;
+    private static long daemonDelay = -1;
+    private static String policy;
+    private static List<String> priorities;
+    private static List<String> destinations;
+    private static FileSystemSerializer.Symlinks symlinks = FileSystemSerializer.Symlinks.FOLLOW;
+    private static File jobFile;
+    private static int jobThreads = Runtime.getRuntime().availableProcessors();
+    private static Throttle throttle = new Throttle();
 
     private Sync() {
     }
 
     public static void main(String[] args) throws IOException, SynchronizationException {
+        if (Arrays.asList(args).contains("-f")) {
+            runJobs(args);
+            return;
+        }
         parseArgs(args);
 
-        FileMatcher matcher = null;
-        if (includes != null) {
-            List<FileMatcher> matchers = new ArrayList<>(includes.size());
-            for (String include : includes) {
-                matchers.add(new FilePatternMatcher(include, true));
-            }
-            matcher = new ComposedFileMatcher(matchers);
-        }
-        if (excludes != null) {
-            List<FileMatcher> matchers = new ArrayList<>(excludes.size());
-            for (String exclude : excludes) {
-                matchers.add(new FilePatternMatcher(exclude, false));
-            }
-            if (matcher != null) {
-                matcher = new ComposedFileMatcher(
-                        Arrays.asList(matcher, new ComposedFileMatcher(matchers)));
+        SyncEngine engine = new SyncEngine.Builder()
+                .include(includes)
+                .exclude(excludes)
+                .hashFunction(hash)
+                .verify(verify)
+                .updateInPlace(updateInPlace)
+                .linkNewFiles(linkNewFiles)
+                .linkReference(linkReference)
+                .throttle(throttle)
+                .scheduler(createScheduler())
+                .symlinks(symlinks)
+                .build();
+        try {
+            if (destinations != null) {
+                List<String> list = new ArrayList<>();
+                list.add(dst);
+                list.addAll(destinations);
+                new FanOut(engine, src, list).run();
+            } else if (daemonDelay >= 0) {
+                SyncDaemon daemon = new SyncDaemon(engine, src, dst);
+                daemon.setDebounce(daemonDelay);
+                daemon.run();
             } else {
-                matcher = new ComposedFileMatcher(matchers);
+                engine.run(src, dst, syncSource, journalFile);
             }
+        } finally {
+            engine.close();
         }
+        report(engine.getMetrics(), System.out);
+    }
 
-        SyncPatch sync = Synchronizer.sync(src.read(), dst.read(), matcher, hash);
+    private static PatchScheduler createScheduler() {
+        if ((policy == null) && (priorities == null)) {
+            return null;
+        }
+        PatchScheduler scheduler = new PatchScheduler();
+        if (policy != null) {
+            scheduler.setPolicy(policy);
+        }
+        scheduler.setPriorities(priorities);
+        scheduler.setLog(System.out);
+        return scheduler;
+    }
 
-        if (syncSource) {
-            src.patch(sync);
+    private static void runJobs(String[] args) throws IOException {
+        parseJobArgs(args);
+
+        SyncJobs jobs = new SyncJobs();
+        jobs.setThreads(jobThreads);
+        jobs.setThrottle(throttle);
+        jobs.load(jobFile);
+        int failed;
+        try {
+            failed = jobs.run();
+        } catch (InterruptedException e) {
+            throw new IOException("Jobs are interrupted", e);
+        }
+        report(jobs.getMetrics(), System.out);
+        if (failed > 0) {
+            throw new IOException(failed + " of " + jobs.size() + " jobs failed");
         }
+    }
 
-        dst.patch(sync);
+    private static void report(Metrics metrics, PrintStream console) throws IOException {
+        if (summary) {
+            metrics.printSummary(console);
+        }
+        if (metricsFile != null) {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(metricsFile), "UTF-8")) {
+                metrics.writeJson(writer);
+            }
+        }
     }
 
     private static void parseArgs(String[] args) {
@@ -93,19 +193,107 @@ public class Sync {
                     hash = args[i + 1];
                     i += 2;
                     break;
+                case "-v":
+                    verify = true;
+                    i += 1;
+                    break;
+                case "-u":
+                    updateInPlace = true;
+                    i += 1;
+                    break;
+                case "-l":
+                    linkNewFiles = true;
+                    i += 1;
+                    break;
+                case "-L":
+                    linkReference = args[i + 1];
+                    i += 2;
+                    break;
+                case "-T":
+                    throttle.setLimits(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-B":
+                    Buffers.getBuffers().setSize((int) Throttle.parseSize(args[i + 1]));
+                    i += 2;
+                    break;
+                case "-k":
+                    symlinks = FileSystemSerializer.Symlinks.valueOf(args[i + 1].toUpperCase());
+                    i += 2;
+                    break;
+                case "-r":
+                    journalFile = new File(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-S":
+                    summary = true;
+                    i += 1;
+                    break;
+                case "-J":
+                    metricsFile = new File(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-o":
+                    policy = args[i + 1];
+                    i += 2;
+                    break;
+                case "-p":
+                    priorities = new ArrayList<>();
+                    i = fillList(args, i + 1, priorities);
+                    break;
+                case "-t":
+                    destinations = new ArrayList<>();
+                    i = fillList(args, i + 1, destinations);
+                    break;
+                case "-d":
+                    daemonDelay = Long.parseLong(args[i + 1]);
+                    i += 2;
+                    break;
                 default:
                     throw new IllegalArgumentException("Unknown parameter: " + args[i]);
             }
         }
-        src = createSerializer(args[args.length - 2]);
-        dst = createSerializer(args[args.length - 1]);
+        src = args[args.length - 2];
+        dst = args[args.length - 1];
+        if ((daemonDelay >= 0) && (syncSource || (journalFile != null))) {
+            throw new IllegalArgumentException("Daemon copies changes one way without journal: -d and -s or -r");
+        }
+        if ((destinations != null) && (syncSource || (journalFile != null) || (daemonDelay >= 0))) {
+            throw new IllegalArgumentException(
+                    "Source is copied to many destinations one way without journal: -t and -s, -r or -d");
+        }
     }
 
-    private static Serializer createSerializer(String path) {
-        if (path.endsWith(".zip") && !new File(path).exists() || new File(path).isFile()) {
-            return new ZipSerializer(path);
-        } else {
-            return new FileSystemSerializer(path);
+    private static void parseJobArgs(String[] args) {
+        for (int i = 0; i < args.length; ) {
+            switch (args[i]) {
+                case "-f":
+                    jobFile = new File(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-j":
+                    jobThreads = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-T":
+                    throttle.setLimits(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-B":
+                    Buffers.getBuffers().setSize((int) Throttle.parseSize(args[i + 1]));
+                    i += 2;
+                    break;
+                case "-S":
+                    summary = true;
+                    i += 1;
+                    break;
+                case "-J":
+                    metricsFile = new File(args[i + 1]);
+                    i += 2;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Parameter isn't accepted with job file: " + args[i]);
+            }
         }
     }
 
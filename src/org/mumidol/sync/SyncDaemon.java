@@ -0,0 +1,361 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Daemon copying changes of the source directory to the destination continuously. Source is
+ * watched by {@link WatchService}, paths of changed files are collected until there are no
+ * changes for the debounce delay, then only changed paths are compared and copied in one batch.
+ * Changes are copied after the maximum delay at the latest, even if the source keeps changing.
+ * Matcher of the engine is applied to changed paths and their subtrees only. Trees read by the
+ * first synchronization are kept in memory and changed paths are read again, so neither tree is
+ * read in full after the start. Lost events (overflow) make the daemon read
+ * the whole watched directory again.
+ * <p>
+ * Changes are copied one way like by <code>Sync -c</code>. Changes made to the destination
+ * aren't watched: destination directory is updated in memory by changed paths only, other
+ * serializers are read again after every batch.
+ *
+ * @author Alexander Alexeev
+ */
+public class SyncDaemon implements Closeable {
+    private final SyncEngine engine;
+    private final File sourceRoot;
+    private final FileSystemSerializer source;
+    private final Serializer destination;
+    private long debounce = 1000;
+    private long maxDelay = 60 * 1000;
+    private PrintStream log = System.err;
+
+    private WatchService watcher;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private MetaFile first;
+    private MetaFile second;
+
+    /**
+     * Creates daemon.
+     * @param engine engine which configuration is used.
+     * @param source source directory.
+     * @param destination destination path, see {@link SyncEngine#open(String)}.
+     */
+    public SyncDaemon(SyncEngine engine, String source, String destination) {
+        Serializer src = engine.open(source);
+        if (!(src instanceof FileSystemSerializer)) {
+            throw new IllegalArgumentException("Only directory can be watched: " + source);
+        }
+        this.engine = engine;
+        this.sourceRoot = new File(source).getAbsoluteFile();
+        this.source = (FileSystemSerializer) src;
+        this.destination = engine.open(destination);
+    }
+
+    /**
+     * Sets delay without changes after which collected changes are copied.
+     * @param millis delay in milliseconds, 1 second by default.
+     */
+    public void setDebounce(long millis) {
+        this.debounce = millis;
+    }
+
+    /**
+     * Sets maximum delay between the first collected change and copying of changes, so changes
+     * are copied even if the source changes continuously.
+     * @param millis delay in milliseconds, 1 minute by default.
+     */
+    public void setMaxDelay(long millis) {
+        this.maxDelay = millis;
+    }
+
+    /**
+     * Sets stream errors of batches are reported to, batch failed is repeated with the next one.
+     * @param log stream for messages, standard error stream by default.
+     */
+    public void setLog(PrintStream log) {
+        this.log = log;
+    }
+
+    /**
+     * Synchronizes trees and copies changes until the daemon is closed.
+     * @throws IOException if the first synchronization fails.
+     * @throws SynchronizationException if the first synchronization fails.
+     */
+    public void run() throws IOException, SynchronizationException {
+        synchronized (this) {
+            if (watcher != null) {
+                throw new IllegalStateException("Daemon is running already");
+            }
+            watcher = FileSystems.getDefault().newWatchService();
+        }
+        Metrics previous = Metrics.bind(engine.getMetrics());
+        try {
+            register(sourceRoot.toPath()); // before reading, so changes made while reading aren't lost
+            first = source.read();
+            second = destination.read();
+            destination.patch(engine.compare(first, second));
+            second = destination.read();
+
+            Set<String> dirty = new TreeSet<>();
+            while (true) {
+                WatchKey key = watcher.take();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelay);
+                while (key != null) { // collects events until there are no events for the delay
+                    collect(key, dirty);
+                    long left = deadline - System.nanoTime();
+                    key = left > 0 ? watcher.poll(Math.min(TimeUnit.MILLISECONDS.toNanos(debounce), left),
+                            TimeUnit.NANOSECONDS) : null; // events left are collected by the next batch
+                }
+                try {
+                    copy(dirty);
+                    dirty.clear();
+                } catch (IOException | SynchronizationException e) {
+                    log.println("Changes aren't copied, they are retried with next changes: " + e);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Metrics.bind(previous);
+            close();
+        }
+    }
+
+    /**
+     * Stops the daemon.
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+        }
+        if (destination instanceof Closeable) {
+            ((Closeable) destination).close();
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                keys.put(d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), d);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE; // deleted while walked
+            }
+        });
+    }
+
+    private void collect(WatchKey key, Set<String> dirty) throws IOException {
+        Path dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir == null) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                dirty.add(getPath(dir)); // events are lost, the whole directory is read again
+                continue;
+            }
+            Path child = dir.resolve((Path) event.context());
+            if ((event.kind() == StandardWatchEventKinds.ENTRY_CREATE) && Files.isDirectory(child)) {
+                register(child);
+            }
+            dirty.add(getPath(child));
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * Compares and copies changed paths.
+     */
+    private void copy(Set<String> dirty) throws IOException, SynchronizationException {
+        List<String> paths = new ArrayList<>();
+        for (String path : dirty) { // sorted, so ancestors precede descendants
+            if (paths.isEmpty() || !isAncestor(paths.get(paths.size() - 1), path)) {
+                paths.add(path);
+            }
+        }
+        for (String path : paths) {
+            first = source.refresh(first, path);
+        }
+
+        if (second == null) {
+            destination.patch(engine.compare(first, null));
+        } else {
+            Batch batch = new Batch(first, second);
+            for (String path : paths) {
+                batch.add(path);
+            }
+            destination.patch(batch.getPatch());
+        }
+
+        if ((destination instanceof FileSystemSerializer) && (second != null)) {
+            for (String path : paths) {
+                second = ((FileSystemSerializer) destination).refresh(second, path);
+            }
+        } else {
+            second = destination.read();
+        }
+    }
+
+    private String getPath(Path path) {
+        return sourceRoot.toPath().relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    private static boolean isAncestor(String ancestor, String path) {
+        return ancestor.isEmpty() || path.startsWith(ancestor + "/");
+    }
+
+    /**
+     * Patch of the batch, it contains changes of changed paths and their ancestor directories.
+     * Trees aren't sifted, matcher is applied to ancestors of changed paths and changed subtrees
+     * are sifted, so matcher sees full paths.
+     */
+    private class Batch {
+        private final MetaFile sourceTree;
+        private final MetaFile destinationTree;
+        private final FileMatcher matcher = engine.getMatcher();
+        private final FileSieve sieve = matcher != null ? new FileSieve(matcher) : null;
+        private final Map<String, SyncPatch> dirs = new HashMap<>();
+        private final Map<String, String> moves = new HashMap<>();
+        private SyncPatch root;
+
+        Batch(MetaFile sourceTree, MetaFile destinationTree) {
+            this.sourceTree = sourceTree;
+            this.destinationTree = destinationTree;
+        }
+
+        /**
+         * Compares files of the path. Files are compared at the level of the first path segment
+         * missing in one of trees, so the whole missing directory is copied or deleted.
+         */
+        void add(String path) throws IOException, SynchronizationException {
+            MetaFile s = sourceTree;
+            MetaFile d = destinationTree;
+            String prefix = "";
+            if (!path.isEmpty()) {
+                for (String name : path.split("/")) {
+                    if (s.isFile() || d.isFile()) {
+                        break;
+                    }
+                    MetaFile sc = accept(s.getFiles().get(name));
+                    MetaFile dc = accept(d.getFiles().get(name));
+                    if ((sc == null) && (dc == null)) {
+                        return; // created and deleted or not accepted by matcher
+                    }
+                    prefix = SyncPatch.getPath(prefix, name);
+                    s = sc;
+                    d = dc;
+                    if ((s == null) || (d == null)) {
+                        break;
+                    }
+                }
+            }
+
+            s = sift(s);
+            d = sift(d);
+            SyncPatch sync;
+            if (s == null) {
+                sync = new SyncPatch(null, d.getName());
+                sync.setDependent(d);
+            } else if (d == null) {
+                sync = new SyncPatch(s, null);
+            } else if (s.isFile() != d.isFile()) {
+                sync = new SyncPatch(s, null); // conflicted file is replaced
+            } else {
+                sync = Synchronizer.sync(s, d, null, engine.getHashFunction());
+                if (sync == null) {
+                    return;
+                }
+                for (Map.Entry<String, String> e : sync.getMoves().entrySet()) {
+                    moves.put(SyncPatch.getPath(prefix, e.getKey()), SyncPatch.getPath(prefix, e.getValue()));
+                }
+            }
+            if (prefix.isEmpty()) {
+                root = sync;
+            } else {
+                getDir(prefix.substring(0, Math.max(prefix.lastIndexOf('/'), 0))).getSyncs().add(sync);
+            }
+        }
+
+        SyncPatch getPatch() {
+            if ((root != null) && !moves.isEmpty()) {
+                root.setMoves(moves);
+            }
+            return root;
+        }
+
+        /**
+         * Returns patch of the directory existing in both trees, patches of ancestors are created
+         * if they don't exist yet.
+         */
+        private SyncPatch getDir(String path) {
+            SyncPatch dir = dirs.get(path);
+            if (dir == null) {
+                MetaFile s = find(sourceTree, path);
+                MetaFile d = find(destinationTree, path);
+                dir = new SyncPatch(s, d.getName(), new LinkedHashSet<SyncPatch>());
+                dirs.put(path, dir);
+                if (path.isEmpty()) {
+                    root = dir;
+                } else {
+                    getDir(path.substring(0, Math.max(path.lastIndexOf('/'), 0))).getSyncs().add(dir);
+                }
+            }
+            return dir;
+        }
+
+        private MetaFile accept(MetaFile file) {
+            return (file != null) && (matcher != null) && !matcher.accept(file) ? null : file;
+        }
+
+        private MetaFile sift(MetaFile file) {
+            return (file != null) && (sieve != null) ? sieve.sift(file) : file;
+        }
+
+        private MetaFile find(MetaFile file, String path) {
+            if (!path.isEmpty()) {
+                for (String name : path.split("/")) {
+                    file = file.getFiles().get(name);
+                }
+            }
+            return file;
+        }
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Synchronization engine which can be embedded into applications. Engine keeps configuration,
+ * hash cache, throttle and pool of threads writing files, so it is built once and runs many
+ * synchronizations keeping hash sums calculated by previous runs. Configuration can't be changed
+ * after the engine is built, and every run uses its own serializers, so engine can be used by
+ * several threads at the same time.
+ * <p>
+ * Engine reports to its own {@link Metrics}, so engines running at the same time don't mix their
+ * reports; engines sharing metrics set by {@link Builder#metrics} report together.
+ * <p>
+ * Engine is created by {@link Builder}:
+ * <pre>
+ * SyncEngine engine = new SyncEngine.Builder().hashFunction("SHA-1").exclude("**&#47;*.tmp").build();
+ * engine.copy("/data", "/backup");
+ * </pre>
+ * {@link Sync} and {@link Patcher} programs delegate to the engine.
+ *
+ * @author Alexander Alexeev
+ */
+public class SyncEngine implements Closeable {
+    private static final String REMOTE_PREFIX = "sync://";
+
+    private final FileMatcher matcher;
+    private final String hashFunc;
+    private final boolean verify;
+    private final boolean updateInPlace;
+    private final boolean linkNewFiles;
+    private final String linkReference;
+    private final HashCache hashCache;
+    private final Throttle throttle;
+    private final Metrics metrics;
+    private final PatchScheduler scheduler;
+    private final FileSystemSerializer.Symlinks symlinks;
+    private final ExecutorService executor;
+
+    private SyncEngine(Builder builder) {
+        this.matcher = builder.buildMatcher();
+        this.hashFunc = builder.hashFunc;
+        this.verify = builder.verify;
+        this.updateInPlace = builder.updateInPlace;
+        this.linkNewFiles = builder.linkNewFiles;
+        this.linkReference = builder.linkReference;
+        this.hashCache = builder.hashCache != null ? builder.hashCache : new HashCache();
+        this.throttle = builder.throttle != null ? builder.throttle : new Throttle();
+        this.metrics = builder.metrics != null ? builder.metrics : new Metrics();
+        this.scheduler = builder.scheduler;
+        this.symlinks = builder.symlinks;
+        this.executor = builder.threads > 1 ? Executors.newFixedThreadPool(builder.threads) : null;
+    }
+
+    /**
+     * Returns matcher selecting synchronized files.
+     * @return matcher or <code>null</code> if all files are synchronized.
+     */
+    public FileMatcher getMatcher() {
+        return matcher;
+    }
+
+    /**
+     * Returns hash function used to compare and copy files.
+     * @return hash function or <code>null</code>.
+     */
+    public String getHashFunction() {
+        return hashFunc;
+    }
+
+    /**
+     * Returns hash cache shared by all serializers of the engine.
+     * @return hash cache.
+     */
+    public HashCache getHashCache() {
+        return hashCache;
+    }
+
+    /**
+     * Returns scheduler ordering changes.
+     * @return scheduler or <code>null</code>.
+     */
+    public PatchScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Returns throttle shared by all serializers of the engine.
+     * @return throttle.
+     */
+    public Throttle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Returns metrics runs of the engine report to.
+     * @return metrics.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Creates serializer of the path configured by the engine. Path ending with .store denotes
+     * content addressed store, path sync://host:port denotes directory exported by
+     * {@link SyncServer}, path of existing file or not existing path ending with .zip denotes zip
+     * archive, any other path denotes directory.
+     * @param path path.
+     * @return serializer.
+     */
+    public Serializer open(String path) {
+        return open(path, path.endsWith(".zip") && !new File(path).exists() || new File(path).isFile());
+    }
+
+    /**
+     * Creates serializer of the path configured by the engine like {@link #open(String)}, but
+     * caller decides whether local path denotes zip archive. {@link Patcher} treats only existing
+     * files ending with .zip as archives, so other files are read as they are.
+     * @param path path.
+     * @param zip <code>true</code> if path which isn't a store or remote directory denotes zip
+     * archive, otherwise it denotes directory or file.
+     * @return serializer.
+     */
+    public Serializer open(String path, boolean zip) {
+        if (path.startsWith(REMOTE_PREFIX)) {
+            String address = path.substring(REMOTE_PREFIX.length());
+            int i = address.lastIndexOf(':');
+            if (i == -1) {
+                throw new IllegalArgumentException("Port of remote directory must be provided: " + path);
+            }
+            RemoteSerializer serializer = new RemoteSerializer(address.substring(0, i),
+                    Integer.parseInt(address.substring(i + 1)));
+            serializer.setHashFunction(hashFunc);
+            return serializer;
+        } else if (path.endsWith(".store")) {
+            ContentStoreSerializer serializer = new ContentStoreSerializer(path);
+            serializer.setThrottle(throttle);
+            return serializer;
+        } else if (zip) {
+            ZipSerializer serializer = new ZipSerializer(path);
+            serializer.setHashFunction(hashFunc);
+            serializer.setVerification(verify);
+            serializer.setHashCache(hashCache);
+            serializer.setThrottle(throttle);
+            return serializer;
+        } else {
+            FileSystemSerializer serializer = new FileSystemSerializer(path);
+            serializer.setHashFunction(hashFunc);
+            serializer.setVerification(verify);
+            serializer.setHashCache(hashCache);
+            serializer.setUpdateInPlace(updateInPlace);
+            serializer.setThrottle(throttle);
+            serializer.setSymlinks(symlinks);
+            return serializer;
+        }
+    }
+
+    /**
+     * Compares trees selecting files by the matcher of the engine. Changes are ordered by the
+     * scheduler of the engine if it is set, the plan is estimated for the second tree.
+     * @param first the first tree.
+     * @param second the second tree.
+     * @return changes or <code>null</code> if trees are the same.
+     * @throws SynchronizationException if changes can't be detected.
+     * @throws IOException
+     */
+    public SyncPatch compare(MetaFile first, MetaFile second) throws SynchronizationException, IOException {
+        Metrics previous = Metrics.bind(metrics);
+        try {
+            SyncPatch patch = Synchronizer.sync(first, second, matcher, hashFunc);
+            if (scheduler != null) {
+                scheduler.schedule(patch, second);
+            }
+            return patch;
+        } catch (ContentStoreSerializer.UncheckedStoreException e) {
+            throw e.getCause();
+        } finally {
+            Metrics.bind(previous);
+        }
+    }
+
+    /**
+     * Copies changes from source to destination without source modification.
+     * @param source source path, see {@link #open(String)}.
+     * @param destination destination path.
+     * @return applied changes or <code>null</code> if there were no differences.
+     * @throws IOException
+     * @throws SynchronizationException
+     */
+    public SyncPatch copy(String source, String destination) throws IOException, SynchronizationException {
+        return run(source, destination, false, null);
+    }
+
+    /**
+     * Synchronizes source and destination, newer files of both of them are kept.
+     * @param source source path, see {@link #open(String)}.
+     * @param destination destination path.
+     * @return applied changes or <code>null</code> if there were no differences.
+     * @throws IOException
+     * @throws SynchronizationException
+     */
+    public SyncPatch sync(String source, String destination) throws IOException, SynchronizationException {
+        return run(source, destination, true, null);
+    }
+
+    /**
+     * Copies or synchronizes source and destination. Synchronization interrupted with the journal
+     * is resumed by the run with the same journal, see {@link Journal}.
+     * @param source source path, see {@link #open(String)}.
+     * @param destination destination path.
+     * @param syncSource <code>true</code> to modify source too.
+     * @param journalFile checkpoint journal or <code>null</code>.
+     * @return applied changes or <code>null</code> if there were no differences.
+     * @throws IOException
+     * @throws SynchronizationException
+     */
+    public SyncPatch run(String source, String destination, boolean syncSource, File journalFile)
+            throws IOException, SynchronizationException {
+        Metrics previous = Metrics.bind(metrics);
+        try {
+            return run(open(source), open(destination), syncSource, journalFile);
+        } catch (ContentStoreSerializer.UncheckedStoreException e) {
+            throw e.getCause();
+        } finally {
+            Metrics.bind(previous);
+        }
+    }
+
+    private SyncPatch run(Serializer src, Serializer dst, boolean syncSource, File journalFile)
+            throws IOException, SynchronizationException {
+        setLinks(dst);
+        Journal journal = journalFile != null ? new Journal(journalFile) : null;
+        try {
+            if (journal != null) {
+                journal.cacheHashes(hashCache);
+                setJournal(src, journal);
+                setJournal(dst, journal);
+            }
+
+            MetaFile first = src.read();
+            MetaFile second = dst.read();
+            SyncPatch sync;
+            if ((journal != null) && journal.hasPatch()) {
+                sync = journal.getPatch(first, second);
+            } else {
+                sync = compare(first, second);
+                if (journal != null) {
+                    journal.setPatch(sync, first, second);
+                }
+            }
+
+            if (syncSource) {
+                if (scheduler != null) {
+                    scheduler.print(PatchScheduler.estimate(sync, first));
+                }
+                prefetch(dst, sync);
+                src.patch(sync);
+            }
+
+            prefetch(src, sync);
+            dst.patch(sync);
+
+            if (journal != null) {
+                journal.delete();
+            }
+            return sync;
+        } finally {
+            if (journal != null) {
+                journal.close();
+            }
+            close(src);
+            close(dst);
+        }
+    }
+
+    /**
+     * Applies indexed container to the directory, files are written by the pool of the engine.
+     * @param container container.
+     * @param root directory to be patched.
+     * @throws IOException
+     */
+    public void apply(IndexedPatch container, File root) throws IOException {
+        container.setThrottle(throttle);
+        Metrics previous = Metrics.bind(metrics);
+        try {
+            container.apply(root, matcher, executor);
+        } finally {
+            Metrics.bind(previous);
+        }
+    }
+
+    /**
+     * Stops threads of the engine.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Configures links of destination, links are created in destination only.
+     */
+    void setLinks(Serializer destination) {
+        if (destination instanceof FileSystemSerializer) {
+            ((FileSystemSerializer) destination).setLinkNewFiles(linkNewFiles);
+            ((FileSystemSerializer) destination).setLinkReference(linkReference);
+        }
+    }
+
+    /**
+     * Passes journal to serializers recording written files.
+     */
+    static void setJournal(Serializer serializer, Journal journal) {
+        if (serializer instanceof FileSystemSerializer) {
+            ((FileSystemSerializer) serializer).setJournal(journal);
+        } else if (serializer instanceof ZipSerializer) {
+            ((ZipSerializer) serializer).setJournal(journal);
+        }
+    }
+
+    /**
+     * Requests content of remote files in batches ahead of the patch being applied.
+     */
+    private static void prefetch(Serializer serializer, SyncPatch sync) throws IOException {
+        if (serializer instanceof RemoteSerializer) {
+            ((RemoteSerializer) serializer).prefetch(sync);
+        }
+    }
+
+    private static void close(Serializer serializer) throws IOException {
+        if (serializer instanceof Closeable) {
+            ((Closeable) serializer).close();
+        }
+    }
+
+    /**
+     * Builder of {@link SyncEngine}. Builder can build several engines, they share hash cache,
+     * throttle and metrics if they were set.
+     */
+    public static class Builder {
+        private List<String> includes;
+        private List<String> excludes;
+        private FileMatcher matcher;
+        private String hashFunc;
+        private boolean verify;
+        private boolean updateInPlace;
+        private boolean linkNewFiles;
+        private String linkReference;
+        private HashCache hashCache;
+        private Throttle throttle;
+        private Metrics metrics;
+        private PatchScheduler scheduler;
+        private FileSystemSerializer.Symlinks symlinks = FileSystemSerializer.Symlinks.FOLLOW;
+        private int threads = 1;
+
+        /**
+         * Adds patterns of files to be synchronized, see {@link FilePatternMatcher}.
+         * @param patterns patterns.
+         * @return this builder.
+         */
+        public Builder include(String... patterns) {
+            return include(Arrays.asList(patterns));
+        }
+
+        /**
+         * Adds patterns of files to be synchronized.
+         * @param patterns patterns or <code>null</code>.
+         * @return this builder.
+         */
+        public Builder include(List<String> patterns) {
+            if (patterns != null) {
+                if (includes == null) {
+                    includes = new ArrayList<>();
+                }
+                includes.addAll(patterns);
+            }
+            return this;
+        }
+
+        /**
+         * Adds patterns of files to be excluded from synchronization.
+         * @param patterns patterns.
+         * @return this builder.
+         */
+        public Builder exclude(String... patterns) {
+            return exclude(Arrays.asList(patterns));
+        }
+
+        /**
+         * Adds patterns of files to be excluded from synchronization.
+         * @param patterns patterns or <code>null</code>.
+         * @return this builder.
+         */
+        public Builder exclude(List<String> patterns) {
+            if (patterns != null) {
+                if (excludes == null) {
+                    excludes = new ArrayList<>();
+                }
+                excludes.addAll(patterns);
+            }
+            return this;
+        }
+
+        /**
+         * Sets matcher which is combined with include and exclude patterns.
+         * @param matcher matcher or <code>null</code>.
+         * @return this builder.
+         */
+        public Builder matcher(FileMatcher matcher) {
+            this.matcher = matcher;
+            return this;
+        }
+
+        /**
+         * Sets hash function used to compare and copy files.
+         * @param hashFunc hash function or <code>null</code> to compare content.
+         * @return this builder.
+         */
+        public Builder hashFunction(String hashFunc) {
+            this.hashFunc = hashFunc;
+            return this;
+        }
+
+        /**
+         * Sets verification of copied files against hash sums of master files.
+         * @param verify <code>true</code> to verify.
+         * @return this builder.
+         */
+        public Builder verify(boolean verify) {
+            this.verify = verify;
+            return this;
+        }
+
+        /**
+         * Sets update of changed blocks of large files only.
+         * @param updateInPlace <code>true</code> to update in place.
+         * @return this builder.
+         */
+        public Builder updateInPlace(boolean updateInPlace) {
+            this.updateInPlace = updateInPlace;
+            return this;
+        }
+
+        /**
+         * Sets creation of new files of directories as hard links to source files.
+         * @param linkNewFiles <code>true</code> to link new files.
+         * @return this builder.
+         */
+        public Builder linkNewFiles(boolean linkNewFiles) {
+            this.linkNewFiles = linkNewFiles;
+            return this;
+        }
+
+        /**
+         * Sets reference directory unchanged files are hard linked to.
+         * @param linkReference reference directory or <code>null</code>.
+         * @return this builder.
+         */
+        public Builder linkReference(String linkReference) {
+            this.linkReference = linkReference;
+            return this;
+        }
+
+        /**
+         * Sets hash cache, so hash sums are shared with other engines.
+         * @param hashCache hash cache or <code>null</code> for own cache of the engine.
+         * @return this builder.
+         */
+        public Builder hashCache(HashCache hashCache) {
+            this.hashCache = hashCache;
+            return this;
+        }
+
+        /**
+         * Sets throttle, so limits are shared with other engines.
+         * @param throttle throttle or <code>null</code> for own unlimited throttle.
+         * @return this builder.
+         */
+        public Builder throttle(Throttle throttle) {
+            this.throttle = throttle;
+            return this;
+        }
+
+        /**
+         * Sets metrics, so reports are shared with other engines.
+         * @param metrics metrics or <code>null</code> for own metrics of the engine.
+         * @return this builder.
+         */
+        public Builder metrics(Metrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Sets scheduler ordering changes before they are applied.
+         * @param scheduler scheduler or <code>null</code> to apply changes in order they are found.
+         * @return this builder.
+         */
+        public Builder scheduler(PatchScheduler scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Sets how symbolic links of directories are read.
+         * @param symlinks handling of links, links are followed by default.
+         * @return this builder.
+         */
+        public Builder symlinks(FileSystemSerializer.Symlinks symlinks) {
+            this.symlinks = symlinks;
+            return this;
+        }
+
+        /**
+         * Sets number of threads writing files of indexed containers.
+         * @param threads number of threads.
+         * @return this builder.
+         */
+        public Builder threads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Builds the engine.
+         * @return engine.
+         */
+        public SyncEngine build() {
+            return new SyncEngine(this);
+        }
+
+        private FileMatcher buildMatcher() {
+            List<FileMatcher> matchers = new ArrayList<>();
+            if (matcher != null) {
+                matchers.add(matcher);
+            }
+            if (includes != null) {
+                List<FileMatcher> list = new ArrayList<>(includes.size());
+                for (String include : includes) {
+                    list.add(new FilePatternMatcher(include, true));
+                }
+                matchers.add(new ComposedFileMatcher(list));
+            }
+            if (excludes != null) {
+                List<FileMatcher> list = new ArrayList<>(excludes.size());
+                for (String exclude : excludes) {
+                    list.add(new FilePatternMatcher(exclude, false));
+                }
+                matchers.add(new ComposedFileMatcher(list));
+            }
+            if (matchers.isEmpty()) {
+                return null;
+            }
+            return matchers.size() == 1 ? matchers.get(0) : new ComposedFileMatcher(matchers);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many independent synchronizations in one process. Jobs are run by the shared pool of
+ * threads in order they are listed, they share hash cache, {@link Throttle} and
+ * {@link Metrics}, so limits of bandwidth, open files and bytes in flight are global, waiting
+ * threads of all jobs get permits in turn and metrics report all jobs together.
+ * <p>
+ * Job file lists one job per line: parameters of {@link Sync} followed by source and
+ * destination. Parameters <code>-c -s -i -x -h -v -u -l -L -k -r -o -p</code> are accepted,
+ * paths with spaces are quoted by <code>"</code>. Empty lines and lines starting with
+ * <code>#</code> are skipped:
+ * <pre>
+ * -c -h SHA-1 -x **&#47;*.tmp /data/mail /backup/mail
+ * -c "/data/my documents" /backup/documents.zip
+ * </pre>
+ *
+ * @author Alexander Alexeev
+ */
+public class SyncJobs {
+    private List<Job> jobs = new ArrayList<>();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private HashCache hashCache = new HashCache();
+    private Throttle throttle = new Throttle();
+    private Metrics metrics = new Metrics();
+    private PrintStream log = System.err;
+
+    /**
+     * Sets number of jobs run at the same time.
+     * @param threads number of threads, number of processors by default.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Sets throttle shared by all jobs.
+     * @param throttle throttle.
+     */
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Returns metrics shared by all jobs.
+     * @return metrics.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets stream failures of jobs are reported to.
+     * @param log stream for messages, standard error stream by default.
+     */
+    public void setLog(PrintStream log) {
+        this.log = log;
+    }
+
+    /**
+     * Adds jobs listed in the job file.
+     * @param file job file.
+     * @throws IOException
+     * @throws IllegalArgumentException if a line can't be parsed.
+     */
+    public void load(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+            int n = 0;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                n++;
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    try {
+                        add(split(line));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException(file + ":" + n + ": " + e.getMessage(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds job.
+     * @param args parameters of {@link Sync} followed by source and destination.
+     */
+    public void add(List<String> args) {
+        if (args.size() < 2) {
+            throw new IllegalArgumentException("Source and destination must be provided");
+        }
+        SyncEngine.Builder builder = new SyncEngine.Builder().hashCache(hashCache).throttle(throttle)
+                .metrics(metrics);
+        boolean syncSource = false;
+        File journal = null;
+        PatchScheduler scheduler = null;
+        int last = args.size() - 2;
+        for (int i = 0; i < last; ) {
+            switch (args.get(i)) {
+                case "-c":
+                    syncSource = false;
+                    i += 1;
+                    break;
+                case "-s":
+                    syncSource = true;
+                    i += 1;
+                    break;
+                case "-i":
+                    i = fillList(args, i + 1, last, builder, true);
+                    break;
+                case "-x":
+                    i = fillList(args, i + 1, last, builder, false);
+                    break;
+                case "-h":
+                    builder.hashFunction(args.get(i + 1));
+                    i += 2;
+                    break;
+                case "-v":
+                    builder.verify(true);
+                    i += 1;
+                    break;
+                case "-u":
+                    builder.updateInPlace(true);
+                    i += 1;
+                    break;
+                case "-l":
+                    builder.linkNewFiles(true);
+                    i += 1;
+                    break;
+                case "-L":
+                    builder.linkReference(args.get(i + 1));
+                    i += 2;
+                    break;
+                case "-k":
+                    builder.symlinks(FileSystemSerializer.Symlinks.valueOf(args.get(i + 1).toUpperCase()));
+                    i += 2;
+                    break;
+                case "-r":
+                    journal = new File(args.get(i + 1));
+                    i += 2;
+                    break;
+                case "-o":
+                    scheduler = scheduler != null ? scheduler : new PatchScheduler();
+                    scheduler.setPolicy(args.get(i + 1));
+                    i += 2;
+                    break;
+                case "-p":
+                    List<String> patterns = new ArrayList<>();
+                    while ((++i < last) && !args.get(i).startsWith("-")) {
+                        patterns.add(args.get(i));
+                    }
+                    scheduler = scheduler != null ? scheduler : new PatchScheduler();
+                    scheduler.setPriorities(patterns);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown parameter: " + args.get(i));
+            }
+        }
+        builder.scheduler(scheduler);
+        jobs.add(new Job(builder.build(), args.get(last), args.get(last + 1), syncSource, journal));
+    }
+
+    /**
+     * Runs all jobs. Failure of one job doesn't stop others, failures are reported to the log.
+     * @return number of failed jobs.
+     * @throws InterruptedException if waiting for jobs is interrupted, running jobs are stopped.
+     */
+    public int run() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(jobs.size(), 1)));
+        try {
+            List<Future<Void>> futures = new ArrayList<>(jobs.size());
+            for (final Job job : jobs) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        job.engine.run(job.source, job.destination, job.syncSource, job.journal);
+                        return null;
+                    }
+                }));
+            }
+            int failed = 0;
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    failed++;
+                    Job job = jobs.get(i);
+                    log.println("Job " + job.source + " -> " + job.destination + " failed: " + e.getCause());
+                }
+            }
+            return failed;
+        } finally {
+            executor.shutdownNow();
+            for (Job job : jobs) {
+                job.engine.close();
+            }
+        }
+    }
+
+    /**
+     * Returns number of jobs.
+     * @return number of added jobs.
+     */
+    public int size() {
+        return jobs.size();
+    }
+
+    private static int fillList(List<String> args, int i, int last, SyncEngine.Builder builder,
+            boolean include) {
+        List<String> list = new ArrayList<>();
+        while ((i < last) && !args.get(i).startsWith("-")) {
+            list.add(args.get(i++));
+        }
+        if (include) {
+            builder.include(list);
+        } else {
+            builder.exclude(list);
+        }
+        return i;
+    }
+
+    /**
+     * Splits line by spaces, quoted parts are kept together.
+     */
+    static List<String> split(String line) {
+        List<String> args = new ArrayList<>();
+        StringBuilder arg = null;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                if (arg == null) {
+                    arg = new StringBuilder();
+                }
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (arg != null) {
+                    args.add(arg.toString());
+                    arg = null;
+                }
+            } else {
+                if (arg == null) {
+                    arg = new StringBuilder();
+                }
+                arg.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unclosed quote");
+        }
+        if (arg != null) {
+            args.add(arg.toString());
+        }
+        return args;
+    }
+
+    private static class Job {
+        final SyncEngine engine;
+        final String source;
+        final String destination;
+        final boolean syncSource;
+        final File journal;
+
+        Job(SyncEngine engine, String source, String destination, boolean syncSource, File journal) {
+            this.engine = engine;
+            this.source = source;
+            this.destination = destination;
+            this.syncSource = syncSource;
+            this.journal = journal;
+        }
+    }
+}
@@ -8,8 +8,10 @@
 package org.mumidol.sync;
 
 import java.io.*;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -20,10 +22,24 @@ import java.util.Set;
  * @author Alexander Alexeev
  */
 public class SyncPatch {
+    private static final int MAGIC = 0x53594E50; // SYNP
+    private static final int VERSION = 6;
+
+    /** content of moved file isn't saved */
+    static final int NO_CONTENT = 0;
+    /** content is saved inline */
+    static final int CONTENT = 1;
+    /** content is the same as content of file saved earlier, path of that file is saved */
+    static final int REFERENCE = 2;
+    /** file is a symbolic link, path it points to is saved */
+    static final int LINK = 3;
+
     private MetaFile master;
     private String depName;
     private Set<SyncPatch> syncs;
     private boolean masterCopy;
+    private MetaFile dependent;
+    private Map<String, String> moves = Collections.emptyMap();
 
     SyncPatch(MetaFile master, String depName) {
         this.master = master;
@@ -61,6 +77,10 @@ public class SyncPatch {
         return syncs;
     }
 
+    void setSyncs(Set<SyncPatch> syncs) {
+        this.syncs = syncs;
+    }
+
     /**
      * Returns true if master files of all underlying changes are descendants of master file.
      * @return <code>true</code> if all changes are located in the master file hierarchy,
@@ -71,7 +91,79 @@ public class SyncPatch {
     }
 
     /**
-     * Saves {@link SyncPatch} to the OutputStream.
+     * Returns files moved within the patched tree. Every added file which content is the same
+     * as content of a deleted file is described by the path of the deleted file (origin), so
+     * serializers can move origin instead of copying content. Content of moved files isn't
+     * saved to the patch. Paths are relative to the patch root and separated by /.
+     * @return map from path of added file to path of origin, empty map if there are no moves.
+     */
+    public Map<String, String> getMoves() {
+        return moves;
+    }
+
+    void setMoves(Map<String, String> moves) {
+        this.moves = Collections.unmodifiableMap(moves);
+    }
+
+    /**
+     * Returns dependent file to be deleted.
+     * @return dependent file or <code>null</code> if unknown.
+     */
+    MetaFile getDependent() {
+        return dependent;
+    }
+
+    void setDependent(MetaFile dependent) {
+        this.dependent = dependent;
+    }
+
+    /**
+     * Returns file of the master tree.
+     * @param path path relative to the patch root, separated by /.
+     * @return file or <code>null</code> if master tree doesn't contain it.
+     */
+    MetaFile getMasterFile(String path) {
+        SyncPatch sync = this;
+        MetaFile file = null;
+        for (String name : path.split("/")) {
+            if (sync != null) { // changed directories of loaded patch don't keep their files
+                file = null;
+                SyncPatch child = null;
+                if (sync.syncs != null) {
+                    for (SyncPatch s : sync.syncs) {
+                        if ((s.master != null) && s.master.getName().equals(name)) {
+                            child = s;
+                        }
+                    }
+                }
+                if (child == null) {
+                    file = sync.master;
+                }
+                sync = child;
+            }
+            if (sync == null) { // added files are kept by the tree
+                if ((file == null) || file.isFile() || (file.getFiles() == null)) {
+                    return null;
+                }
+                file = file.getFiles().get(name);
+            }
+        }
+        return sync != null ? sync.master : file;
+    }
+
+    /**
+     * Returns path of child file relative to the patch root.
+     * @param path parent path.
+     * @param name child name.
+     * @return child path.
+     */
+    static String getPath(String path, String name) {
+        return path.isEmpty() ? name : path + "/" + name;
+    }
+
+    /**
+     * Saves {@link SyncPatch} to the OutputStream. Content of files with the same content
+     * is saved once.
      *
      * @param patch changes to be saved.
      * @param os - output stream changes to be save to.
@@ -79,11 +171,37 @@ public class SyncPatch {
      * @see SyncPatch
      */
     public static void save(SyncPatch patch, OutputStream os) throws IOException {
-        DataOutputStream dos = new DataOutputStream(os);
+        save(patch, os, Compression.NONE.name());
+    }
+
+    /**
+     * Saves {@link SyncPatch} to the OutputStream compressed. Compression is recorded in the
+     * header, so patch is decompressed by {@link #load(InputStream)} transparently.
+     *
+     * @param patch changes to be saved.
+     * @param os output stream changes to be save to.
+     * @param compression name of compression: <code>none</code>, <code>deflate</code> or
+     * <code>lz</code>.
+     * @throws IOException
+     */
+    public static void save(SyncPatch patch, OutputStream os, String compression) throws IOException {
+        Compression c = Compression.forName(compression);
+        DataOutputStream header = new DataOutputStream(os);
+        header.writeInt(MAGIC);
+        header.writeByte(VERSION);
+        header.writeByte(c.ordinal());
+        Output out = new Output(c.newOutputStream(os), patch.getMoves(), DuplicateDetector.detect(patch));
         try {
-            writeSync(patch, dos);
+            out.dos.writeInt(patch.getMoves().size());
+            for (Map.Entry<String, String> e : patch.getMoves().entrySet()) {
+                out.dos.writeUTF(e.getKey());
+                out.dos.writeUTF(e.getValue());
+                MetaFile moved = patch.getMasterFile(e.getKey()); // origin is checked before it is moved
+                out.dos.writeLong(moved != null ? moved.getSize() : -1);
+            }
+            writeSync(patch, "", out);
         } finally {
-            dos.close();
+            out.dos.close();
         }
     }
 
@@ -95,81 +213,160 @@ public class SyncPatch {
      * @see SyncPatch
      */
     public static SyncPatch load(InputStream is) throws IOException {
-        DataInputStream dis = new DataInputStream(is);
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
         try {
-            return readSync(dis);
+            int version = readHeader(dis);
+            Map<String, byte[]> contents = new HashMap<>();
+            if (version < 2) {
+                return readSync(dis, version, null, contents);
+            }
+            dis = decompress(dis, version);
+            Map<String, String> moves = new HashMap<>();
+            for (int i = dis.readInt(); i > 0; i--) {
+                moves.put(dis.readUTF(), dis.readUTF());
+                if (version >= 6) {
+                    dis.readLong(); // size of moved file is read with the tree
+                }
+            }
+            SyncPatch patch = readSync(dis, version, null, contents);
+            if (!moves.isEmpty()) {
+                patch.setMoves(moves);
+            }
+            return patch;
         } finally {
             dis.close();
         }
     }
 
+    /**
+     * Composes ordered chain of patches into one patch. Applying the composed patch has the same
+     * effect as applying the chain in sequence, but content of every file is written once.
+     *
+     * @param patches patches in order they are to be applied.
+     * @return composed patch or <code>null</code> if the chain has no effect.
+     * @throws IOException if the chain can't be expressed by a single patch.
+     */
+    public static SyncPatch compose(List<SyncPatch> patches) throws IOException {
+        PatchComposer composer = new PatchComposer();
+        for (SyncPatch patch : patches) {
+            composer.add(patch);
+        }
+        return composer.getPatch();
+    }
+
+    /**
+     * Reads header of saved patch.
+     * @param dis input stream supporting mark.
+     * @return format version.
+     * @throws IOException if format is unknown.
+     */
+    static int readHeader(DataInputStream dis) throws IOException {
+        dis.mark(1);
+        int first = dis.read();
+        dis.reset();
+        if (first != (MAGIC >>> 24)) { // patch saved before format was versioned
+            return 1;
+        }
+        if (dis.readInt() != MAGIC) {
+            throw new IOException("Unknown patch format");
+        }
+        int version = dis.readUnsignedByte();
+        if (version > VERSION) {
+            throw new IOException("Unsupported patch version: " + version);
+        }
+        return version;
+    }
+
+    /**
+     * Returns stream decompressing patch data following the header.
+     * @param dis input stream positioned after the header.
+     * @param version format version.
+     * @return decompressing stream or the same stream if patch isn't compressed.
+     * @throws IOException if compression is unknown.
+     */
+    static DataInputStream decompress(DataInputStream dis, int version) throws IOException {
+        if (version < 4) {
+            return dis;
+        }
+        Compression compression = Compression.forId(dis.readUnsignedByte());
+        return compression == Compression.NONE ? dis :
+                new DataInputStream(new BufferedInputStream(compression.newInputStream(dis)));
+    }
+
     //  private stuff
 //  ==========================================================================================
-    private static void writeSync(SyncPatch sync, DataOutputStream dos) throws IOException {
-        dos.writeBoolean(sync.getDependentName() != null);
+    private static void writeSync(SyncPatch sync, String path, Output out) throws IOException {
+        out.dos.writeBoolean(sync.getDependentName() != null);
         if (sync.getDependentName() != null) {
-            dos.writeUTF(sync.getDependentName());
-            SyncMetaFile.writeMasterFile(sync.getMaster(), dos, false);
+            out.dos.writeUTF(sync.getDependentName());
+            SyncMetaFile.writeMasterFile(sync.getMaster(), false, path, out);
         } else {
-            SyncMetaFile.writeMasterFile(sync.getMaster(), dos, true);
+            SyncMetaFile.writeMasterFile(sync.getMaster(), true, path, out);
         }
-        writeSyncs(sync.getSyncs(), dos);
+        writeSyncs(sync.getSyncs(), path, out);
     }
 
-    private static void writeSyncs(Set<SyncPatch> syncs, DataOutputStream dos) throws IOException {
+    private static void writeSyncs(Set<SyncPatch> syncs, String path, Output out) throws IOException {
         if (syncs != null) {
-            dos.writeInt(syncs.size());
+            out.dos.writeInt(syncs.size());
             for (SyncPatch i : syncs) {
-                writeSync(i, dos);
+                writeSync(i, getPath(path, i.getMaster() != null ?
+                        i.getMaster().getName() : i.getDependentName()), out);
             }
         } else {
-            dos.writeInt(0);
+            out.dos.writeInt(0);
         }
     }
 
-    private static SyncPatch readSync(DataInputStream dis) throws IOException {
+    private static SyncPatch readSync(DataInputStream dis, int version, String parentPath,
+            Map<String, byte[]> contents) throws IOException {
         MetaFile master;
         String depName = null;
         if (dis.readBoolean()) {
             depName = dis.readUTF();
-            master = SyncMetaFile.readMasterFile(dis, false);
+            master = SyncMetaFile.readMasterFile(dis, false, version, parentPath, contents);
         } else {
-            master = SyncMetaFile.readMasterFile(dis, true);
+            master = SyncMetaFile.readMasterFile(dis, true, version, parentPath, contents);
         }
 
         Set<SyncPatch> syncs = null;
         int count = dis.readInt();
         if (count != 0) {
-            syncs = readSyncs(count, dis);
+            String path = parentPath == null ? "" :
+                    getPath(parentPath, master != null ? master.getName() : depName);
+            syncs = readSyncs(count, dis, version, path, contents);
         }
 
         return new SyncPatch(master, depName, syncs);
     }
 
-    private static Set<SyncPatch> readSyncs(int count, DataInputStream dis) throws IOException {
-        Set<SyncPatch> syncs = new HashSet<SyncPatch>(count);
+    private static Set<SyncPatch> readSyncs(int count, DataInputStream dis, int version,
+            String path, Map<String, byte[]> contents) throws IOException {
+        Set<SyncPatch> syncs = new LinkedHashSet<SyncPatch>(count); // keeps order of changes
         for (int i = 0; i < count; i++) {
-            syncs.add(readSync(dis));
+            syncs.add(readSync(dis, version, path, contents));
         }
         return syncs;
     }
 
-    static class SyncMetaFile implements MetaFile {
+    static class SyncMetaFile implements LinkMetaFile {
         private String name;
         private boolean isFile;
         private Map<String, SyncMetaFile> files;
         private long size;
         private long time;
         private byte[] content;
+        private String target;
 
         private SyncMetaFile(String name, boolean isFile, Map<String,
-                SyncMetaFile> files, long size, long time, byte[] content) {
+                SyncMetaFile> files, long size, long time, byte[] content, String target) {
             this.name = name;
             this.isFile = isFile;
             this.files = files;
             this.size = size;
             this.time = time;
             this.content = content;
+            this.target = target;
         }
 
         @Override
@@ -194,7 +391,7 @@ public class SyncPatch {
 
         @Override
         public byte[] getHash(String hashFunc) {
-            throw new UnsupportedOperationException();
+            return null;
         }
 
         @Override
@@ -209,11 +406,20 @@ public class SyncPatch {
 
         @Override
         public InputStream getInputStream() throws IOException {
+            if (isFile && (content == null)) {
+                throw new IOException("Content of moved file isn't stored in the patch: " + name);
+            }
             return new ByteArrayInputStream(content);
         }
 
-        static void writeMasterFile(MetaFile master, DataOutputStream dos, boolean tree)
+        @Override
+        public String getLinkTarget() {
+            return target;
+        }
+
+        static void writeMasterFile(MetaFile master, boolean tree, String path, Output out)
                 throws IOException {
+            DataOutputStream dos = out.dos;
             dos.writeBoolean(master != null);
             if (master != null) {
                 dos.writeUTF(master.getName());
@@ -221,41 +427,91 @@ public class SyncPatch {
                 dos.writeLong(master.getTime());
                 if (master.isFile()) {
                     dos.writeLong(master.getSize());
-                    FileUtils.copy(master.getInputStream(), dos);
+                    String target = FileUtils.getLinkTarget(master);
+                    if (target != null) {
+                        dos.writeByte(LINK);
+                        dos.writeUTF(target);
+                    } else if (out.moves.containsKey(path)) {
+                        dos.writeByte(NO_CONTENT);
+                    } else if (out.duplicates.containsKey(path)) {
+                        dos.writeByte(REFERENCE);
+                        dos.writeUTF(out.duplicates.get(path));
+                    } else {
+                        dos.writeByte(CONTENT);
+                        // content compressed already is passed through
+                        out.cos.setStored(Compression.isCompressed(master));
+                        try (InputStream is = master.getInputStream()) {
+                            FileUtils.copy(is, dos);
+                        }
+                        out.cos.setStored(false);
+                    }
                 } else if (tree) {
                     dos.writeInt(master.getFiles().size());
                     for (MetaFile f : master.getFiles().values()) {
-                        writeMasterFile(f, dos, tree);
+                        writeMasterFile(f, tree, getPath(path, f.getName()), out);
                     }
                 }
             }
         }
 
-        static SyncMetaFile readMasterFile(DataInputStream dis, boolean tree)
-                throws IOException {
+        static SyncMetaFile readMasterFile(DataInputStream dis, boolean tree, int version,
+                String parentPath, Map<String, byte[]> contents) throws IOException {
             if (dis.readBoolean()) {
                 String name = dis.readUTF();
+                String path = parentPath == null ? "" : getPath(parentPath, name);
                 boolean isFile = dis.readBoolean();
                 long time = dis.readLong();
                 long size = 0;
                 byte[] content = null;
+                String target = null;
                 Map<String, SyncMetaFile> files = null;
                 if (isFile) {
                     size = dis.readLong();
-                    content = new byte[(int)size];
-                    dis.read(content);
+                    int kind = version < 2 ? CONTENT : dis.readUnsignedByte();
+                    if (kind == CONTENT) {
+                        content = new byte[(int)size];
+                        dis.readFully(content);
+                        contents.put(path, content);
+                    } else if (kind == REFERENCE) {
+                        String reference = dis.readUTF();
+                        content = contents.get(reference);
+                        if (content == null) {
+                            throw new IOException("Referenced content isn't found: " + reference);
+                        }
+                    } else if (kind == LINK) {
+                        target = dis.readUTF();
+                        content = FileUtils.getLinkContent(target);
+                    }
                 } else if (tree) {
                     int count = dis.readInt();
                     files = new HashMap<String, SyncMetaFile>(count);
                     for (int i = 0; i < count; i++) {
-                        SyncMetaFile f = readMasterFile(dis, tree);
+                        SyncMetaFile f = readMasterFile(dis, tree, version, path, contents);
                         files.put(f.getName(), f);
                     }
                 }
-                return new SyncMetaFile(name, isFile, files, size, time, content);
+                return new SyncMetaFile(name, isFile, files, size, time, content, target);
             } else {
                 return null;
             }
         }
     }
+
+    /**
+     * Output of saved patch.
+     */
+    private static class Output {
+        private Compression.CompressedOutputStream cos;
+        private DataOutputStream dos;
+        private Map<String, String> moves;
+        private Map<String, String> duplicates;
+
+        Output(Compression.CompressedOutputStream cos, Map<String, String> moves,
+                Map<String, String> duplicates) {
+            this.cos = cos;
+            this.dos = new DataOutputStream(cos);
+            this.moves = moves;
+            this.duplicates = duplicates;
+        }
+    }
 }
@@ -0,0 +1,279 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Server exporting a directory to {@link RemoteSerializer}. The directory is read by
+ * {@link FileSystemSerializer}, client receives manifest of the tree with hash sums first and
+ * requests content of the files which differ only. Patches sent by client are applied while they
+ * are received, see {@link StreamingPatcher}. Paths of requests and patches are checked, so
+ * files outside of the exported directory can't be read or changed.
+ * <p>
+ * Program accepts following parameters:
+ *  -p - followed by port, 7070 by default
+ *  -b - followed by address to bind to, loopback address by default
+ *  -j - followed by number of threads serving requests, 4 by default
+ *  -T - followed by limits of disk bandwidth and file rate, see {@link Throttle#setLimits(String)}
+ * The last parameter is exported directory.
+ *
+ * @author Alexander Alexeev
+ */
+public class SyncServer implements Closeable {
+    private static final int DEFAULT_PORT = 7070;
+
+    private File root;
+    private FileSystemSerializer serializer;
+    private HashCache hashCache = new HashCache();
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private int threads = 4;
+    private Throttle throttle = new Throttle();
+
+    /**
+     * Creates server exporting the directory.
+     * @param root exported directory.
+     */
+    public SyncServer(String root) {
+        this.root = new File(root).getAbsoluteFile();
+        serializer = new FileSystemSerializer(this.root.getPath());
+        serializer.setHashCache(hashCache);
+    }
+
+    /**
+     * Sets number of threads serving requests.
+     * @param threads number of threads.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Sets throttle limiting reading and writing of files, limits can be changed while
+     * the server is running.
+     * @param throttle throttle.
+     */
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+        serializer.setThrottle(throttle);
+    }
+
+    /**
+     * Starts accepting connections.
+     * @param address address to bind to or <code>null</code> for any address.
+     * @param port port, 0 for any free port.
+     * @throws IOException
+     */
+    public void start(InetAddress address, int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(address, port));
+        executor = Executors.newFixedThreadPool(threads);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "SyncServer acceptor");
+        acceptor.start();
+    }
+
+    /**
+     * Returns port the server listens to.
+     * @return port.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        InetAddress address = InetAddress.getLoopbackAddress();
+        int threads = 4;
+        Throttle throttle = new Throttle();
+        for (int i = 0; i < args.length - 1; ) {
+            switch (args[i]) {
+                case "-p":
+                    port = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-b":
+                    address = InetAddress.getByName(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-j":
+                    threads = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-T":
+                    throttle.setLimits(args[i + 1]);
+                    i += 2;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown parameter: " + args[i]);
+            }
+        }
+        if ((args.length == 0) || !new File(args[args.length - 1]).isDirectory()) {
+            throw new IllegalArgumentException("Exported directory must be provided");
+        }
+        SyncServer server = new SyncServer(args[args.length - 1]);
+        server.setThreads(threads);
+        server.setThrottle(throttle);
+        server.start(address, port);
+        System.out.println("Serving " + server.root + " on port " + server.getPort());
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                Thread reader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "SyncServer connection " + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (SocketException e) {
+                return; // server is closed
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reads requests of the connection and dispatches them to executor.
+     */
+    private void serve(Socket socket) {
+        Map<Integer, FrameChannel.ChunkInputStream> uploads = new ConcurrentHashMap<>();
+        try (FrameChannel channel = new FrameChannel(socket)) {
+            channel.handshake();
+            FrameChannel.Frame frame;
+            while ((frame = channel.readFrame()) != null) {
+                switch (frame.type) {
+                    case FrameChannel.MANIFEST:
+                        submit(channel, frame.id, frame.getText(), null);
+                        break;
+                    case FrameChannel.READ:
+                        submit(channel, frame.id, null, frame.getText());
+                        break;
+                    case FrameChannel.PATCH:
+                        // reading is blocked while patch is applied slower than it is received
+                        FrameChannel.ChunkInputStream upload = new FrameChannel.ChunkInputStream(256);
+                        uploads.put(frame.id, upload);
+                        submitPatch(channel, frame.id, upload);
+                        break;
+                    case FrameChannel.DATA:
+                        if (uploads.containsKey(frame.id)) {
+                            uploads.get(frame.id).offer(frame);
+                        }
+                        break;
+                    case FrameChannel.END:
+                        if (uploads.containsKey(frame.id)) {
+                            uploads.remove(frame.id).finish();
+                        }
+                        break;
+                    default:
+                        channel.writeFrame(frame.id, FrameChannel.ERROR, "Unknown request: " + frame.type, true);
+                }
+            }
+        } catch (IOException e) {
+            // connection is broken
+        } finally {
+            for (FrameChannel.ChunkInputStream upload : uploads.values()) {
+                upload.fail("Connection is closed");
+            }
+        }
+    }
+
+    private void submit(final FrameChannel channel, final int id, final String hashFunc, final String path) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // stream isn't closed on failure, so partial content isn't taken for complete
+                    OutputStream os = new FrameChannel.FrameOutputStream(channel, id);
+                    if (path != null) {
+                        try (InputStream is = throttle.read(new FileInputStream(resolve(path)))) {
+                            FileUtils.copy(is, os);
+                        }
+                    } else {
+                        MetaFile tree;
+                        synchronized (serializer) {
+                            serializer.setHashFunction(hashFunc);
+                            tree = serializer.read();
+                        }
+                        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+                        Manifest.save(tree, hashFunc, manifest);
+                        manifest.writeTo(os);
+                    }
+                    os.close();
+                } catch (IOException | RuntimeException e) {
+                    fail(channel, id, e);
+                }
+            }
+        });
+    }
+
+    private void submitPatch(final FrameChannel channel, final int id,
+            final FrameChannel.ChunkInputStream upload) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (serializer) {
+                        StreamingPatcher patcher = new StreamingPatcher(root);
+                        patcher.setThrottle(throttle);
+                        patcher.setConfined(true); // patch can't change files outside of root
+                        patcher.apply(upload);
+                    }
+                    channel.writeFrame(id, FrameChannel.END, new byte[0], 0, 0, true);
+                } catch (IOException | RuntimeException e) {
+                    upload.cancel(); // the rest of patch is dropped
+                    fail(channel, id, e);
+                }
+            }
+        });
+    }
+
+    private static void fail(FrameChannel channel, int id, Exception e) {
+        try {
+            channel.writeFrame(id, FrameChannel.ERROR, String.valueOf(e.getMessage()), true);
+        } catch (IOException ex) {
+            // connection is broken
+        }
+    }
+
+    /**
+     * Resolves requested path, paths outside of the exported directory are rejected.
+     */
+    private File resolve(String path) throws IOException {
+        File file = new File(root, path).getCanonicalFile();
+        if (!file.getPath().startsWith(root.getCanonicalPath() + File.separator)) {
+            throw new FileNotFoundException(path);
+        }
+        return file;
+    }
+}
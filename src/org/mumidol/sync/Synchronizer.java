@@ -7,6 +7,7 @@
 
 package org.mumidol.sync;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
@@ -37,14 +38,48 @@ public class Synchronizer {
      */
     public static SyncPatch sync(MetaFile first, MetaFile second, FileMatcher matcher, String hashFunc)
             throws NullPointerException, SynchronizationException, IOException {
+        return sync(first, second, matcher, hashFunc, false);
+    }
+
+    /**
+     * Finds changes of the tree since the snapshot of it was taken. Unlike
+     * {@link #sync(MetaFile, MetaFile, FileMatcher, String)} the tree is the master of all changes
+     * whatever last modification times are, so files restored to older versions are found too.
+     *
+     * @param tree current tree or <code>null</code> if it doesn't exist.
+     * @param snapshot snapshot of the tree or <code>null</code> if it isn't taken.
+     * @param matcher matcher to be used to filter files or <code>null</code>.
+     * @param hashFunc hash function or <code>null</code>.
+     * @return patch transforming the snapshot to the tree or <code>null</code> if there are no
+     *          differences.
+     * @throws NullPointerException if both trees are <code>null</code>.
+     * @throws SynchronizationException
+     */
+    static SyncPatch diff(MetaFile tree, MetaFile snapshot, FileMatcher matcher, String hashFunc)
+            throws NullPointerException, SynchronizationException, IOException {
+        if ((tree == null) && (snapshot != null)) {
+            SyncPatch patch = new SyncPatch(null, snapshot.getName());
+            patch.setDependent(snapshot);
+            return patch;
+        }
+        return sync(tree, snapshot, matcher, hashFunc, true);
+    }
+
+    private static SyncPatch sync(MetaFile first, MetaFile second, FileMatcher matcher, String hashFunc,
+            boolean firstWins) throws NullPointerException, SynchronizationException, IOException {
         if ((first == null) && (second == null)) {
             throw new NullPointerException();
         }
 
         if (matcher != null) {
-            FileSieve sieve = new FileSieve(matcher);
-            first = first != null ? sieve.sift(first) : null;
-            second = second != null ? sieve.sift(second) : null;
+            Metrics.Timer timer = Metrics.getMetrics().start(Metrics.Phase.SIEVE, null);
+            try {
+                FileSieve sieve = new FileSieve(matcher);
+                first = first != null ? sieve.sift(first) : null;
+                second = second != null ? sieve.sift(second) : null;
+            } finally {
+                timer.stop();
+            }
         }
 
         if (first == null) {
@@ -57,7 +92,16 @@ public class Synchronizer {
             throw new SynchronizationException("Synchronization impossible between file and directory");
         }
 
-        return recurSync(first, second, hashFunc);
+        Metrics.Timer timer = Metrics.getMetrics().start(Metrics.Phase.COMPARE, null);
+        try {
+            SyncPatch patch = recurSync(first, second, hashFunc, firstWins);
+            if (patch != null) {
+                MoveDetector.detect(patch, hashFunc);
+            }
+            return patch;
+        } finally {
+            timer.stop();
+        }
     }
 
     /**
@@ -78,38 +122,23 @@ public class Synchronizer {
 
 //  private stuff
 //  =============================================================================================
-    private static SyncPatch recurSync(MetaFile first, MetaFile second, String hashFunc)
-            throws SynchronizationException, IOException {
+    private static SyncPatch recurSync(MetaFile first, MetaFile second, String hashFunc,
+            boolean firstWins) throws SynchronizationException, IOException {
         if (first.isFile()) {
-            if (first.getSize() == second.getSize()) {
-                InputStream fis = first.getInputStream();
-                InputStream sis = second.getInputStream();
-                if (hashFunc == null) {
-                    if (FileUtils.isEqual(fis, sis)) {
-                        return null;
-                    }
-                } else {
-                    byte[] hash1 = first.getHash(hashFunc);
-                    byte[] hash2 = second.getHash(hashFunc);
-                    if ((hash1 == null) && (hash2 == null) ||
-                        ((hash1 == null) || (hash2 == null)) &&
-                                (HashManager.getHashManager().getCalculator(hashFunc) == null)) {
-                        if (FileUtils.isEqual(fis, sis)) {
-                            return null;
-                        }
-                    }
-                    if (hash1 == null) {
-                        hash1 = HashManager.getHashManager().getCalculator(hashFunc).calculate(fis);
-                    }
-                    if (hash2 == null) {
-                        hash2 = HashManager.getHashManager().getCalculator(hashFunc).calculate(sis);
-                    }
-                    if (Arrays.equals(hash1, hash2)) {
-                        return null;
-                    }
+            String link1 = FileUtils.getLinkTarget(first);
+            String link2 = FileUtils.getLinkTarget(second);
+            if ((link1 != null) && (link2 != null)) { // links are compared by their targets
+                if (link1.equals(link2)) {
+                    return null;
                 }
+            } else if ((link1 != null) || (link2 != null)) { // the other tree stores link as a file
+                if ((link1 != null) ? isLinkContent(link1, second) : isLinkContent(link2, first)) {
+                    return null;
+                }
+            } else if ((first.getSize() == second.getSize()) && isSame(first, second, hashFunc)) {
+                return null;
             }
-            if (first.getTime() > second.getTime()) {
+            if (firstWins || (first.getTime() > second.getTime())) {
                 return new SyncPatch(first, second.getName());
             } else if (first.getTime() < second.getTime()) {
                 return new SyncPatch(second, first.getName());
@@ -128,23 +157,23 @@ public class Synchronizer {
                     // if the one is file and the other is directory
                     if (fc.isFile() && !sc.isFile() || !fc.isFile() && sc.isFile()) {
                         same = false;
-                        syncs.add(new SyncPatch(getMaster(fc, sc), null));
+                        syncs.add(new SyncPatch(firstWins ? fc : getMaster(fc, sc), null));
                     } else { // both files or directories exist
-                        SyncPatch si = recurSync(fc, sc, hashFunc);
+                        SyncPatch si = recurSync(fc, sc, hashFunc, firstWins);
                         if (si != null) {
                             syncs.add(si);
                         }
                     }
                 } else { // file exist only in first directory
                     same = false;
-                    syncs.add(diffSync(first, second, first.getFiles().get(name)));
+                    syncs.add(diffSync(first.getFiles().get(name), compare(first, second, firstWins)));
                 }
             }
 
             if (!remained.isEmpty()) {
                 same = false;
                 for (String name : remained) {
-                    syncs.add(diffSync(second, first, second.getFiles().get(name)));
+                    syncs.add(diffSync(second.getFiles().get(name), -compare(first, second, firstWins)));
                 }
             }
 
@@ -155,7 +184,7 @@ public class Synchronizer {
                     return new SyncPatch(first, second.getName(), syncs);
                 }
             } else {
-                if (first.getTime() >= second.getTime()) {
+                if (compare(first, second, firstWins) >= 0) {
                     return new SyncPatch(first, second.getName(), syncs);
                 } else {
                     return new SyncPatch(second, first.getName(), syncs);
@@ -164,17 +193,77 @@ public class Synchronizer {
         }
     }
 
-    private static SyncPatch diffSync(MetaFile fileOwner, MetaFile other, MetaFile file)
-            throws SynchronizationException {
-        if (fileOwner.getTime() > other.getTime()) {
+    private static boolean isSame(MetaFile first, MetaFile second, String hashFunc) throws IOException {
+        if (hashFunc != null) {
+            byte[] hash1 = first.getHash(hashFunc);
+            byte[] hash2 = second.getHash(hashFunc);
+            HashCalculator calculator = HashManager.getHashManager().getCalculator(hashFunc);
+            if ((hash1 != null) && (hash2 != null) ||
+                    (calculator != null) && ((hash1 != null) || (hash2 != null))) {
+                if (hash1 == null) {
+                    hash1 = calculate(first, calculator, hashFunc);
+                }
+                if (hash2 == null) {
+                    hash2 = calculate(second, calculator, hashFunc);
+                }
+                return Arrays.equals(hash1, hash2);
+            }
+        }
+        // comparison of content is cheaper than calculation of both hash sums
+        try (InputStream fis = first.getInputStream(); InputStream sis = second.getInputStream()) {
+            return FileUtils.isEqual(fis, sis);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the file is the link stored by serializer which doesn't support
+     * links, see {@link LinkMetaFile}.
+     */
+    private static boolean isLinkContent(String target, MetaFile file) throws IOException {
+        byte[] content = FileUtils.getLinkContent(target);
+        if (file.getSize() != content.length) {
+            return false;
+        }
+        try (InputStream is = file.getInputStream()) {
+            return FileUtils.isEqual(new ByteArrayInputStream(content), is);
+        }
+    }
+
+    private static byte[] calculate(MetaFile file, HashCalculator calculator, String hashFunc)
+            throws IOException {
+        byte[] hash;
+        try (InputStream is = file.getInputStream()) {
+            hash = calculator.calculate(is);
+        }
+        if (file instanceof HashCache.Cacheable) {
+            ((HashCache.Cacheable) file).cacheHash(hashFunc, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Creates change of the file existing in one directory only.
+     * @param order result of comparison of the directory the file exists in with the other one.
+     */
+    private static SyncPatch diffSync(MetaFile file, int order) throws SynchronizationException {
+        if (order > 0) {
             return new SyncPatch(file, null);
-        } else if (fileOwner.getTime() < other.getTime()) {
-            return new SyncPatch(null, file.getName());
+        } else if (order < 0) {
+            SyncPatch patch = new SyncPatch(null, file.getName());
+            patch.setDependent(file);
+            return patch;
         } else {
             throw new SynchronizationException("The same time for conflicted directories");
         }
     }
 
+    /**
+     * Compares last modification times of files, the first file is newer if it always wins.
+     */
+    private static int compare(MetaFile first, MetaFile second, boolean firstWins) {
+        return firstWins ? 1 : Long.compare(first.getTime(), second.getTime());
+    }
+
     private static MetaFile getMaster(MetaFile first, MetaFile second) throws SynchronizationException {
         if (first.getTime() > second.getTime()) {
             return first;
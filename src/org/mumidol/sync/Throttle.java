@@ -0,0 +1,435 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits bandwidth and rate of opened files of reading and writing, so synchronization running
+ * in background doesn't saturate the disk. Every limit is a token bucket: tokens are added with
+ * the limited rate up to one second worth of them, every read or written byte (opened file)
+ * takes a token. Caller which takes more tokens than there are waits until the debt is paid,
+ * so all threads sharing the throttle get the limited rate together.
+ * <p>
+ * Throttle is shared by serializers like {@link HashCache}. Limits can be changed at any
+ * time, streams which are opened already follow new limits. Zero limit means no limit.
+ * <p>
+ * Throttle also limits number of open streams and number of bytes being read or written by all
+ * threads at the same time. Waiting is fair, so threads get permits in order they asked for them.
+ * Thread which holds open stream already doesn't wait for the next one (copying opens source and
+ * target), so threads can't lock each other, but the limit may be exceeded by such streams.
+ *
+ * @author Alexander Alexeev
+ */
+public class Throttle {
+    private Bucket readBytes = new Bucket();
+    private Bucket readFiles = new Bucket();
+    private Bucket writeBytes = new Bucket();
+    private Bucket writeFiles = new Bucket();
+    private volatile Semaphore openFiles;
+    private volatile InFlight bytesInFlight;
+    private ThreadLocal<AtomicInteger> held = new ThreadLocal<AtomicInteger>() {
+        @Override
+        protected AtomicInteger initialValue() {
+            return new AtomicInteger();
+        }
+    };
+
+    /**
+     * Sets limit of read bytes.
+     * @param bytesPerSecond bytes per second or 0 for no limit.
+     */
+    public void setReadRate(long bytesPerSecond) {
+        readBytes.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Sets limit of files opened for reading.
+     * @param filesPerSecond files per second or 0 for no limit.
+     */
+    public void setReadFileRate(long filesPerSecond) {
+        readFiles.setRate(filesPerSecond);
+    }
+
+    /**
+     * Sets limit of written bytes.
+     * @param bytesPerSecond bytes per second or 0 for no limit.
+     */
+    public void setWriteRate(long bytesPerSecond) {
+        writeBytes.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Sets limit of files opened for writing.
+     * @param filesPerSecond files per second or 0 for no limit.
+     */
+    public void setWriteFileRate(long filesPerSecond) {
+        writeFiles.setRate(filesPerSecond);
+    }
+
+    /**
+     * Sets limit of streams opened by all threads at the same time.
+     * @param files number of streams or 0 for no limit.
+     */
+    public void setMaxOpenFiles(int files) {
+        openFiles = files > 0 ? new Semaphore(files, true) : null;
+    }
+
+    /**
+     * Sets limit of bytes being read or written by all threads at the same time.
+     * @param bytes number of bytes or 0 for no limit.
+     */
+    public void setMaxBytesInFlight(long bytes) {
+        bytesInFlight = bytes > 0 ? new InFlight((int) Math.min(bytes, Integer.MAX_VALUE)) : null;
+    }
+
+    /**
+     * Sets limits described by comma separated list of <code>name=value</code> pairs, where
+     * name is <code>r</code> (read bytes), <code>w</code> (written bytes), <code>rf</code>
+     * (read files), <code>wf</code> (written files), <code>of</code> (open files) or
+     * <code>fl</code> (bytes in flight) and value may have suffix k, m or g.
+     * For example <code>r=20m,w=10m,wf=200</code>.
+     * @param limits list of limits.
+     * @throws IllegalArgumentException if list can't be parsed.
+     */
+    public void setLimits(String limits) {
+        for (String limit : limits.split(",")) {
+            int i = limit.indexOf('=');
+            if (i == -1) {
+                throw new IllegalArgumentException("Limit must be name=value: " + limit);
+            }
+            long value = parseSize(limit.substring(i + 1).trim());
+            switch (limit.substring(0, i).trim()) {
+                case "r":
+                    setReadRate(value);
+                    break;
+                case "w":
+                    setWriteRate(value);
+                    break;
+                case "rf":
+                    setReadFileRate(value);
+                    break;
+                case "wf":
+                    setWriteFileRate(value);
+                    break;
+                case "of":
+                    setMaxOpenFiles((int) Math.min(value, Integer.MAX_VALUE));
+                    break;
+                case "fl":
+                    setMaxBytesInFlight(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown limit: " + limit);
+            }
+        }
+    }
+
+    /**
+     * Opens throttled reading of the file.
+     * @param is input stream of the file.
+     * @return throttled stream.
+     * @throws IOException if waiting is interrupted.
+     */
+    public InputStream read(InputStream is) throws IOException {
+        readFiles.acquire(1);
+        return new ThrottledInputStream(is, open());
+    }
+
+    /**
+     * Opens throttled writing of the file.
+     * @param os output stream of the file.
+     * @return throttled stream.
+     * @throws IOException if waiting is interrupted.
+     */
+    public OutputStream write(OutputStream os) throws IOException {
+        writeFiles.acquire(1);
+        return new ThrottledOutputStream(os, open());
+    }
+
+    /**
+     * Takes tokens of bytes which are read not by streams, for example transferred by channels.
+     * @param bytes number of bytes.
+     * @throws IOException if waiting is interrupted.
+     */
+    void acquireRead(long bytes) throws IOException {
+        readBytes.acquire(bytes);
+    }
+
+    /**
+     * Takes tokens of bytes which are written not by streams.
+     * @param bytes number of bytes.
+     * @throws IOException if waiting is interrupted.
+     */
+    void acquireWrite(long bytes) throws IOException {
+        writeBytes.acquire(bytes);
+    }
+
+    /**
+     * Takes token of file opened for writing not by {@link #write(OutputStream)}.
+     * @throws IOException if waiting is interrupted.
+     */
+    void acquireWriteFile() throws IOException {
+        writeFiles.acquire(1);
+    }
+
+    /**
+     * Returns <code>true</code> if bytes are limited, so large transfers are to be split.
+     * @return <code>true</code> if either read or write rate is limited.
+     */
+    boolean isLimited() {
+        return (readBytes.rate > 0) || (writeBytes.rate > 0);
+    }
+
+    /**
+     * Takes permit of open stream. Thread holding other streams takes permit if it is available
+     * and doesn't wait otherwise.
+     * @return permit to be released when the stream is closed.
+     */
+    private Permit open() throws InterruptedIOException {
+        Semaphore semaphore = openFiles;
+        AtomicInteger count = held.get();
+        boolean acquired = false;
+        if (semaphore != null) {
+            if (count.get() == 0) {
+                try {
+                    semaphore.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                acquired = true;
+            } else {
+                acquired = semaphore.tryAcquire();
+            }
+        }
+        count.incrementAndGet();
+        return new Permit(acquired ? semaphore : null, count);
+    }
+
+    /**
+     * Takes permits of bytes in flight.
+     * @return number of bytes which may be transferred, not greater than requested.
+     */
+    private static int acquireInFlight(InFlight semaphore, int len) throws InterruptedIOException {
+        len = Math.max(Math.min(len, semaphore.limit), 1);
+        try {
+            semaphore.acquire(len);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        return len;
+    }
+
+    /**
+     * Parses number with optional suffix k, m or g.
+     * @param value value, for example <code>64k</code>.
+     * @return number.
+     */
+    static long parseSize(String value) {
+        long multiplier = 1;
+        switch (value.isEmpty() ? ' ' : Character.toLowerCase(value.charAt(value.length() - 1))) {
+            case 'k':
+                multiplier = 1024;
+                break;
+            case 'm':
+                multiplier = 1024 * 1024;
+                break;
+            case 'g':
+                multiplier = 1024 * 1024 * 1024;
+                break;
+            default:
+                break;
+        }
+        if (multiplier > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        long rate = (long) (Double.parseDouble(value) * multiplier);
+        if (rate < 0) {
+            throw new IllegalArgumentException("Limit must not be negative: " + value);
+        }
+        return rate;
+    }
+
+    /**
+     * Token bucket holding tokens of one second at most. Tokens may be taken in debt, taker waits
+     * until the debt is paid.
+     */
+    private static class Bucket {
+        private volatile long rate;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        synchronized void setRate(long rate) {
+            refill();
+            this.rate = rate;
+            tokens = Math.min(tokens, rate);
+        }
+
+        void acquire(long n) throws InterruptedIOException {
+            if (rate <= 0) {
+                return;
+            }
+            long wait;
+            synchronized (this) {
+                refill();
+                tokens -= n;
+                wait = tokens < 0 ? (long) (-tokens * 1e9 / rate) : 0;
+            }
+            if (wait > 0) { // sleeps without lock, so other takers compute their waits after the debt
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate > 0) {
+                tokens = Math.min(rate, tokens + (now - last) * (double) rate / 1e9);
+            }
+            last = now;
+        }
+    }
+
+    /**
+     * Permits of bytes in flight.
+     */
+    private static class InFlight extends Semaphore {
+        final int limit;
+
+        InFlight(int limit) {
+            super(limit, true);
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * Permit of open stream.
+     */
+    private static class Permit {
+        private Semaphore semaphore;
+        private AtomicInteger count;
+        private boolean released;
+
+        Permit(Semaphore semaphore, AtomicInteger count) {
+            this.semaphore = semaphore;
+            this.count = count;
+        }
+
+        synchronized void release() {
+            if (!released) {
+                released = true;
+                count.decrementAndGet();
+                if (semaphore != null) {
+                    semaphore.release();
+                }
+            }
+        }
+    }
+
+    private class ThrottledInputStream extends FilterInputStream {
+        private Permit permit;
+
+        ThrottledInputStream(InputStream in, Permit permit) {
+            super(in);
+            this.permit = permit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                readBytes.acquire(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            InFlight semaphore = bytesInFlight;
+            if ((semaphore != null) && (len > 0)) {
+                len = acquireInFlight(semaphore, len);
+            }
+            int n;
+            try {
+                n = in.read(b, off, len);
+            } finally {
+                if ((semaphore != null) && (len > 0)) {
+                    semaphore.release(len);
+                }
+            }
+            if (n > 0) {
+                readBytes.acquire(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return in.skip(n);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                permit.release();
+            }
+        }
+    }
+
+    private class ThrottledOutputStream extends FilterOutputStream {
+        private Permit permit;
+
+        ThrottledOutputStream(OutputStream out, Permit permit) {
+            super(out);
+            this.permit = permit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            writeBytes.acquire(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeBytes.acquire(len);
+            InFlight semaphore = bytesInFlight;
+            while ((semaphore != null) && (len > 0)) { // large buffer is written in parts
+                int n = acquireInFlight(semaphore, len);
+                try {
+                    out.write(b, off, n);
+                } finally {
+                    semaphore.release(n);
+                }
+                off += n;
+                len -= n;
+            }
+            if (semaphore == null) {
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                permit.release();
+            }
+        }
+    }
+}
@@ -7,13 +7,17 @@
 
 package org.mumidol.sync;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 /**
@@ -25,15 +29,73 @@ public class ZipSerializer implements Serializer {
     private File zip;
     private ZipFile zipFile;
     private ZipMetaFile root;
+    private String hashFunc;
+    private boolean verify;
+    private HashCache hashCache = new HashCache();
+    private Map<String, String> moves = Collections.emptyMap();
+    private Journal journal;
+    private int part;
+    private IndexedPatch.CountingOutputStream written;
+    private Throttle throttle = new Throttle();
 
     public ZipSerializer(String zip) {
         this.zip = new File(zip);
     }
 
+    /**
+     * Sets hash function to be calculated while entries are written.
+     * @param hashFunc hash function or <code>null</code> to disable calculation.
+     * @see FileSystemSerializer#setHashFunction(String)
+     */
+    public void setHashFunction(String hashFunc) {
+        this.hashFunc = hashFunc;
+    }
+
+    /**
+     * Sets whether hash sum of written entry is to be checked against the master one.
+     * @param verify <code>true</code> to check hash sums.
+     */
+    public void setVerification(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Sets checkpoint journal. Archive is written to a partial archive next to it rather than
+     * to a temporary file, and every written entry is recorded with its offset in the partial
+     * archive. Partial archives of interrupted runs are kept, so resumed run reads recorded
+     * entries back from them instead of their masters. Partial archives are deleted when the
+     * archive is written completely.
+     * @param journal journal or <code>null</code>.
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Sets throttle limiting reading of entries and writing of the archive.
+     * @param throttle throttle.
+     */
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Sets hash cache to be used by this serializer.
+     * @param hashCache hash cache.
+     */
+    public void setHashCache(HashCache hashCache) {
+        this.hashCache = hashCache;
+    }
+
     @Override
     public MetaFile read() throws IOException {
         if (zip.exists()) {
-            return constructTree(getZipFile().entries());
+            Metrics.Timer timer = Metrics.getMetrics().start(Metrics.Phase.SCAN, zip.getPath());
+            try {
+                return constructTree(getZipFile().entries());
+            } finally {
+                timer.stop();
+            }
         } else {
             return null;
         }
@@ -44,19 +106,47 @@ public class ZipSerializer implements Serializer {
         if ((sync == null) || (sync.getMaster() == root) && sync.isMasterCopy()) {
             return;
         }
+        Metrics.Timer timer = Metrics.getMetrics().start(Metrics.Phase.APPLY, zip.getPath());
+        try {
+            writeArchive(sync);
+        } finally {
+            timer.stop();
+        }
+    }
 
+    private void writeArchive(SyncPatch sync) throws IOException {
+        if ((root == null) && zip.exists()) {
+            read();
+        }
         if (root == null) {
             root = new ZipMetaFile();
         }
 
-        File tempFile = File.createTempFile("sync", ".zip");
-        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(tempFile));
-        write0(root, sync, "", out);
+        File tempFile;
+        if (journal != null) {
+            part = 1;
+            while (getPart(part).exists()) {
+                part++;
+            }
+            tempFile = getPart(part);
+        } else {
+            tempFile = File.createTempFile("sync", ".zip");
+        }
+        written = new IndexedPatch.CountingOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+        ZipOutputStream out = new ZipOutputStream(throttle.write(written));
+        moves = sync.getMoves();
+        try {
+            write0(root, sync, "", out);
+        } finally {
+            moves = Collections.emptyMap();
+        }
         out.finish();
         out.close();
 
         if (zip.exists()) {
             zipFile.close();
+            zipFile = null;
             if (!zip.delete()) {
                 throw new IOException("Couldn't delete zip file: " + zip);
             }
@@ -64,6 +154,38 @@ public class ZipSerializer implements Serializer {
         if (!tempFile.renameTo(zip)) {
             throw new IOException("Couldn't rename temp file to: " + zip);
         }
+        if (journal != null) {
+            for (int i = 1; i < part; i++) {
+                getPart(i).delete();
+            }
+        }
+    }
+
+    /**
+     * Returns partial archive written by the run with the given number.
+     */
+    private File getPart(int number) {
+        return new File(zip.getPath() + "." + number + ".part");
+    }
+
+    /**
+     * Opens content of the entry written to partial archive by interrupted run.
+     * @param stamp recorded number of partial archive and offset of the entry in it.
+     * @return content or <code>null</code> if partial archive doesn't exist.
+     */
+    private InputStream openPart(long stamp) throws IOException {
+        File file = getPart((int) (stamp >>> 48));
+        if (!file.isFile()) {
+            return null;
+        }
+        FileInputStream fis = new FileInputStream(file);
+        fis.getChannel().position(stamp & ((1L << 48) - 1));
+        ZipInputStream zis = new ZipInputStream(new BufferedInputStream(throttle.read(fis), 64 * 1024));
+        if (zis.getNextEntry() == null) {
+            zis.close();
+            return null;
+        }
+        return zis;
     }
 
     private ZipFile getZipFile() throws IOException {
@@ -103,6 +225,9 @@ public class ZipSerializer implements Serializer {
             i = j + 1;
             j = getNextInd(i, path);
         }
+        if (!entry.isDirectory()) {
+            Metrics.getMetrics().add(Metrics.Counter.FILES_SCANNED, 1);
+        }
         node.add(new ZipMetaFile(node, entry));
     }
 
@@ -118,7 +243,7 @@ public class ZipSerializer implements Serializer {
         return prefix.isEmpty() ? name : prefix + "/" + name;
     }
 
-    private static void write0(MetaFile file, SyncPatch sync, String path, ZipOutputStream out)
+    private void write0(MetaFile file, SyncPatch sync, String path, ZipOutputStream out)
             throws IOException {
         if (sync.getMaster() == null) {
             // skips deleted files
@@ -128,7 +253,7 @@ public class ZipSerializer implements Serializer {
         } else if (sync.getMaster().isFile()) {
             addFile(sync.getMaster(), path, out);
         } else {
-            Set<SyncPatch> syncs = new HashSet<>(sync.getSyncs());
+            Set<SyncPatch> syncs = new LinkedHashSet<>(sync.getSyncs()); // new files are added in order of the patch
             for (MetaFile f : file.getFiles().values()) {
                 boolean found = false;
                 for (Iterator<SyncPatch> i = syncs.iterator(); i.hasNext(); ) {
@@ -146,18 +271,43 @@ public class ZipSerializer implements Serializer {
                 }
             }
             for (SyncPatch s : syncs) {
-                write0(null, s, getPath(path, s.getMaster().getName()), out);
+                if (s.getMaster() != null) { // deleted file doesn't exist
+                    write0(null, s, getPath(path, s.getMaster().getName()), out);
+                }
             }
         }
     }
 
-    private static void addFile(MetaFile file, String path, ZipOutputStream out) throws IOException {
+    private void addFile(MetaFile file, String path, ZipOutputStream out) throws IOException {
         if (file.isFile()) {
+            HashCalculator.Digest digest = null;
+            if ((hashFunc != null) && (HashManager.getHashManager().getCalculator(hashFunc) != null)) {
+                digest = HashManager.getHashManager().getCalculator(hashFunc).createDigest();
+            }
+            Journal.Entry recorded = null;
+            if (journal != null) {
+                recorded = journal.get(getCacheKey(path), file.getSize(), file.getTime());
+            }
+            InputStream content = recorded != null ? openPart(recorded.stamp) : null;
+            long offset = written.count;
+            long start = System.nanoTime();
             ZipEntry entry = new ZipEntry(path);
             entry.setTime(file.getTime());
             out.putNextEntry(entry);
-            try (InputStream is = file.getInputStream()) {
-                FileUtils.copy(is, out);
+            try (InputStream is = content != null ? content : getInputStream(file, path)) {
+                FileUtils.copy(is, out, digest);
+            }
+            out.closeEntry();
+            Metrics.getMetrics().fileWritten(entry.getSize(), start);
+            if (journal != null) {
+                out.flush();
+                journal.record(getCacheKey(path), file.getSize(), file.getTime(),
+                        ((long) part << 48) | offset, null, null);
+            }
+            if (digest != null) {
+                byte[] hash = digest.digest();
+                FileUtils.teeHash(file, hashFunc, hash, verify);
+                hashCache.put(getCacheKey(path), hashFunc, entry.getSize(), entry.getCrc(), hash);
             }
         } else {
             if (file.getFiles().isEmpty()) {
@@ -171,13 +321,33 @@ public class ZipSerializer implements Serializer {
         }
     }
 
-    class ZipMetaFile implements MetaFile {
+    /**
+     * Returns content of the file to be added. Moved file is read from its origin entry
+     * of this archive, because content of moved file is absent in saved patches.
+     */
+    private InputStream getInputStream(MetaFile file, String path) throws IOException {
+        String origin = moves.get(path);
+        if ((origin != null) && zip.exists()) {
+            ZipEntry entry = getZipFile().getEntry(origin);
+            if ((entry != null) && !entry.isDirectory()) {
+                return getZipFile().getInputStream(entry);
+            }
+        }
+        return file.getInputStream();
+    }
+
+    private String getCacheKey(String path) {
+        return zip.getAbsolutePath() + "!/" + path;
+    }
+
+    class ZipMetaFile implements MetaFile, HashCache.Cacheable {
         private ZipMetaFile parent;
         private String path;
         private String name;
         private boolean isDir;
         private Map<String, ZipMetaFile> files;
         private byte[] crc = new byte[4];
+        private long crcValue;
         private long size;
         private long time;
 
@@ -201,7 +371,8 @@ public class ZipSerializer implements Serializer {
             this.path = entry.getName();
             extractName(path);
             this.isDir = entry.isDirectory();
-            long t = entry.getCrc();
+            crcValue = entry.getCrc();
+            long t = crcValue;
             for (int i = 3; i >= 0; i--) {
                 crc[i] = (byte) t;
                 t >>= 8;
@@ -241,10 +412,20 @@ public class ZipSerializer implements Serializer {
 
         @Override
         public byte[] getHash(String hashFunc) {
+            if (isDir) {
+                return null;
+            }
             if ("CRC-32".equals(HashManager.getHashManager().getCanonicalName(hashFunc))) {
                 return crc;
             }
-            return null;
+            return hashCache.get(getCacheKey(path), hashFunc, size, crcValue);
+        }
+
+        @Override
+        public void cacheHash(String hashFunc, byte[] hash) {
+            if (!isDir) {
+                hashCache.put(getCacheKey(path), hashFunc, size, crcValue, hash);
+            }
         }
 
         @Override
@@ -263,7 +444,8 @@ public class ZipSerializer implements Serializer {
 
         @Override
         public InputStream getInputStream() throws IOException {
-            return getZipFile().getInputStream(getZipFile().getEntry(path));
+            return Metrics.getMetrics().read(
+                    throttle.read(getZipFile().getInputStream(getZipFile().getEntry(path))));
         }
 
         void add(ZipMetaFile file) {
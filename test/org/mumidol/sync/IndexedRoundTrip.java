@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Round trip of {@link IndexedPatch}. Directory with a symbolic link is saved to the container
+ * with links preserved, the container is applied to an empty directory and to a directory where
+ * an added file exists already. Exits with non-zero status if a check fails:
+ * <pre>
+ * ant test-indexed
+ * </pre>
+ *
+ * @author Alexander Alexeev
+ */
+public class IndexedRoundTrip {
+    public static void main(String[] args) throws Exception {
+        File work = Files.createTempDirectory("indexed-round-trip").toFile();
+        try {
+            run(work);
+        } finally {
+            delete(work);
+        }
+        System.out.println("Indexed round trip passed");
+    }
+
+    private static void run(File work) throws Exception {
+        File source = new File(work, "source");
+        File empty = new File(work, "empty");
+        long time = System.currentTimeMillis() / 1000 * 1000 - 3600 * 1000;
+        write(new File(source, "a.txt"), "first file", time);
+        write(new File(source, "sub/b.txt"), "second file", time);
+        Files.createSymbolicLink(new File(source, "sub/link").toPath(), Paths.get("../a.txt"));
+        new File(source, "sub").setLastModified(time);
+        source.setLastModified(time + 60 * 1000); // source is newer
+        empty.mkdirs();
+        empty.setLastModified(time);
+
+        File container = new File(work, "patch.syni");
+        SyncEngine engine = new SyncEngine.Builder().hashFunction("SHA-1")
+                .symlinks(FileSystemSerializer.Symlinks.PRESERVE).build();
+        try {
+            SyncPatch patch = engine.compare(engine.open(source.getPath()).read(),
+                    engine.open(empty.getPath()).read());
+            check(patch != null, "changes are detected");
+            IndexedPatch.save(patch, container);
+
+            try (IndexedPatch indexed = IndexedPatch.open(container)) {
+                IndexedPatch.Entry link = null;
+                for (IndexedPatch.Entry e : indexed.getEntries()) {
+                    if (e.getPath().equals("sub/link")) {
+                        link = e;
+                    }
+                }
+                check(link != null, "link is stored");
+                check(link.getOperation() == IndexedPatch.Operation.LINK, "link is stored as link");
+                check("../a.txt".equals(link.getLinkTarget()), "link target is stored");
+                check(link.isAdded(), "link is added");
+
+                // empty directory
+                File target = new File(work, "target");
+                target.mkdirs();
+                engine.apply(indexed, target);
+                checkLink(new File(target, "sub/link"), "../a.txt");
+                checkContent(new File(target, "a.txt"), "first file");
+                checkContent(new File(target, "sub/b.txt"), "second file");
+
+                // added file exists already
+                File existing = new File(work, "existing");
+                write(new File(existing, "sub/b.txt"), "existing file", time);
+                engine.apply(indexed, existing);
+                checkContent(new File(existing, "sub/b.txt"), "existing file");
+                checkContent(new File(existing, "a.txt"), "first file");
+                checkLink(new File(existing, "sub/link"), "../a.txt");
+            }
+        } finally {
+            engine.close();
+        }
+    }
+
+    private static void checkLink(File file, String target) throws IOException {
+        check(Files.isSymbolicLink(file.toPath()), file + " is a link");
+        check(Files.readSymbolicLink(file.toPath()).toString().equals(target), file + " points to " + target);
+    }
+
+    private static void checkContent(File file, String content) throws IOException {
+        check(file.isFile(), file + " exists");
+        check(Arrays.equals(Files.readAllBytes(file.toPath()), content.getBytes(StandardCharsets.UTF_8)),
+                file + " has the expected content");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError("Check failed: " + message);
+        }
+    }
+
+    private static void write(File file, String content, long time) throws IOException {
+        file.getParentFile().mkdirs();
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        file.setLastModified(time);
+    }
+
+    private static void delete(File file) {
+        File[] list = Files.isSymbolicLink(file.toPath()) ? null : file.listFiles();
+        if (list != null) {
+            for (File f : list) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+}
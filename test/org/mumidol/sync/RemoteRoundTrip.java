@@ -0,0 +1,232 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Alexander Alexeev.
+ *
+ */
+
+package org.mumidol.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Round trip of {@link RemoteSerializer} and {@link SyncServer} on localhost. Exported directory
+ * is copied from the server, changed copy is copied back, then patches with paths escaping the
+ * exported directory are sent and must be rejected. Exits with non-zero status if a check fails:
+ * <pre>
+ * ant test-remote
+ * </pre>
+ *
+ * @author Alexander Alexeev
+ */
+public class RemoteRoundTrip {
+    public static void main(String[] args) throws Exception {
+        File work = Files.createTempDirectory("remote-round-trip").toFile();
+        try {
+            run(work);
+        } finally {
+            delete(work);
+        }
+        System.out.println("Remote round trip passed");
+    }
+
+    private static void run(File work) throws Exception {
+        File exported = new File(work, "exported");
+        File local = new File(work, "local");
+        long time = System.currentTimeMillis() / 1000 * 1000 - 3600 * 1000;
+        write(new File(exported, "a.txt"), "first file", time);
+        write(new File(exported, "sub/c.txt"), "first file", time); // duplicate content
+        byte[] large = new byte[3 * 1024 * 1024 + 17];
+        new Random(1).nextBytes(large);
+        write(new File(exported, "sub/b.bin"), large, time);
+        new File(exported, "sub").setLastModified(time);
+        exported.setLastModified(time);
+
+        SyncServer server = new SyncServer(exported.getPath());
+        server.start(InetAddress.getLoopbackAddress(), 0);
+        SyncEngine engine = new SyncEngine.Builder().hashFunction("SHA-1").build();
+        try {
+            String remote = "sync://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" +
+                    server.getPort();
+
+            // server to client
+            check(engine.copy(remote, local.getPath()) != null, "changes are copied from server");
+            checkSame(exported, local);
+            check(engine.copy(remote, local.getPath()) == null, "copied trees are the same");
+
+            // client to server
+            long later = time + 60 * 1000;
+            write(new File(local, "a.txt"), "changed file", later);
+            write(new File(local, "sub/d.txt"), "added file", later);
+            new File(local, "sub/b.bin").delete();
+            new File(local, "sub").setLastModified(later);
+            local.setLastModified(later);
+            check(engine.copy(local.getPath(), remote) != null, "changes are copied to server");
+            checkSame(local, exported);
+
+            // paths escaping exported directory
+            write(new File(work, "secret.txt"), "secret", time);
+            RemoteSerializer serializer = new RemoteSerializer(
+                    InetAddress.getLoopbackAddress().getHostAddress(), server.getPort());
+            try {
+                checkRejected(serializer, patch(new Node("../escaped.txt", "escaped")),
+                        "name with ..");
+                checkRejected(serializer, patch(new Node("/tmp/escaped.txt", "escaped")),
+                        "name with separator");
+                SyncPatch move = patch(new Node("stolen.txt", "secret"));
+                move.setMoves(Collections.singletonMap("stolen.txt", "../secret.txt"));
+                checkRejected(serializer, move, "moved file outside of exported directory");
+            } finally {
+                serializer.close();
+            }
+            check(!new File(work, "escaped.txt").exists(), "file isn't written outside");
+            check(new File(work, "secret.txt").exists(), "file isn't moved from outside");
+            check(!new File(exported, "stolen.txt").exists(), "file isn't moved to exported directory");
+            checkSame(local, exported);
+        } finally {
+            engine.close();
+            server.close();
+        }
+    }
+
+    /**
+     * Creates patch adding the file to the root directory.
+     */
+    private static SyncPatch patch(Node file) {
+        Node root = new Node(Collections.singletonMap(file.getName(), file));
+        file.parent = root;
+        Set<SyncPatch> syncs = new LinkedHashSet<>();
+        syncs.add(new SyncPatch(file, null));
+        return new SyncPatch(root, "", syncs);
+    }
+
+    private static void checkRejected(RemoteSerializer serializer, SyncPatch patch, String message) {
+        try {
+            serializer.patch(patch);
+        } catch (IOException e) {
+            return;
+        }
+        throw new AssertionError("Patch isn't rejected: " + message);
+    }
+
+    private static void checkSame(File expected, File actual) throws IOException {
+        check(actual.exists(), actual + " exists");
+        check(expected.isFile() == actual.isFile(), actual + " has the same type");
+        if (expected.isFile()) {
+            check(Arrays.equals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath())),
+                    actual + " has the same content");
+        } else {
+            String[] names = expected.list();
+            String[] actualNames = actual.list();
+            Arrays.sort(names);
+            Arrays.sort(actualNames);
+            check(Arrays.equals(names, actualNames), actual + " has the same files");
+            for (String name : names) {
+                checkSame(new File(expected, name), new File(actual, name));
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError("Check failed: " + message);
+        }
+    }
+
+    private static void write(File file, String content, long time) throws IOException {
+        write(file, content.getBytes(StandardCharsets.UTF_8), time);
+    }
+
+    private static void write(File file, byte[] content, long time) throws IOException {
+        file.getParentFile().mkdirs();
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(content);
+        }
+        file.setLastModified(time);
+    }
+
+    private static void delete(File file) {
+        File[] list = file.listFiles();
+        if (list != null) {
+            for (File f : list) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * File or directory of crafted patch.
+     */
+    private static class Node implements MetaFile {
+        private Node parent;
+        private String name;
+        private byte[] content;
+        private Map<String, Node> files;
+
+        Node(String name, String content) {
+            this.name = name;
+            this.content = content.getBytes(StandardCharsets.UTF_8);
+        }
+
+        Node(Map<String, Node> files) {
+            this.name = "";
+            this.files = new HashMap<>(files);
+        }
+
+        @Override
+        public MetaFile getParent() {
+            return parent;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isFile() {
+            return files == null;
+        }
+
+        @Override
+        public Map<String, Node> getFiles() {
+            return files;
+        }
+
+        @Override
+        public byte[] getHash(String hashFunc) {
+            return null;
+        }
+
+        @Override
+        public long getSize() {
+            return content != null ? content.length : 0;
+        }
+
+        @Override
+        public long getTime() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(content);
+        }
+    }
+}